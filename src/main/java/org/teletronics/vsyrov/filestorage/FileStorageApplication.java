@@ -2,10 +2,12 @@ package org.teletronics.vsyrov.filestorage;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 /**
  * @author vsyrov
  */
+@EnableScheduling
 @SpringBootApplication
 public class FileStorageApplication {
 
@@ -12,7 +12,9 @@ import org.teletronics.vsyrov.filestorage.common.exception.BadRequestException;
 import org.teletronics.vsyrov.filestorage.common.exception.DuplicateFileException;
 import org.teletronics.vsyrov.filestorage.common.exception.ForbiddenException;
 import org.teletronics.vsyrov.filestorage.common.exception.NotFoundException;
+import org.teletronics.vsyrov.filestorage.common.exception.PossessionProofRequiredException;
 import org.teletronics.vsyrov.filestorage.common.exception.UnexpectedStorageException;
+import org.teletronics.vsyrov.filestorage.common.model.PossessionChallenge;
 
 @RestControllerAdvice
 public class GlobalExceptionHandler {
@@ -27,6 +29,11 @@ public class GlobalExceptionHandler {
         return ResponseEntity.status(HttpStatus.NOT_FOUND).body(e.getMessage());
     }
 
+    @ExceptionHandler(PossessionProofRequiredException.class)
+    public ResponseEntity<PossessionChallenge> handleProofRequired(PossessionProofRequiredException e) {
+        return ResponseEntity.status(HttpStatus.PRECONDITION_REQUIRED).body(e.getChallenge());
+    }
+
     @ExceptionHandler({ForbiddenException.class})
     public ResponseEntity<String> handleForbidden(ForbiddenException e) {
         return ResponseEntity.status(HttpStatus.FORBIDDEN).body(e.getMessage());
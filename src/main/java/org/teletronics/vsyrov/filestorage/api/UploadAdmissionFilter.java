@@ -0,0 +1,86 @@
+package org.teletronics.vsyrov.filestorage.api;
+
+import java.io.IOException;
+import java.util.List;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.teletronics.vsyrov.filestorage.common.exception.InsufficientStorageException;
+import org.teletronics.vsyrov.filestorage.common.exception.TooManyUploadsException;
+import org.teletronics.vsyrov.filestorage.service.upload.UploadAdmission;
+import org.teletronics.vsyrov.filestorage.service.upload.UploadAdmission.Permit;
+
+/**
+ * Admission control for upload requests. Runs before the dispatcher servlet, so a rejected upload is
+ * answered with 429 or 507 before any of its body (multipart or raw) has been read or spooled.
+ *
+ * @author vsyrov
+ */
+@Component
+@RequiredArgsConstructor
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class UploadAdmissionFilter extends OncePerRequestFilter {
+    private static final List<String> UPLOAD_PATHS = List.of(
+            "/file/v1",
+            "/file/v1/stream",
+            "/file/v1/batch",
+            "/file/v1/sessions/*/parts/*"
+    );
+    private static final AntPathMatcher MATCHER = new AntPathMatcher();
+
+    private final UploadAdmission admission;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String method = request.getMethod();
+        if (!HttpMethod.POST.matches(method) && !HttpMethod.PUT.matches(method)) {
+            return true;
+        }
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return UPLOAD_PATHS.stream().noneMatch(p -> MATCHER.match(p, path));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String ownerId = request.getHeader("X-User-Id");
+        if (ownerId == null || ownerId.isBlank()) {
+            // the controller answers the missing header
+            chain.doFilter(request, response);
+            return;
+        }
+        Permit permit;
+        try {
+            permit = admission.admit(ownerId, request.getContentLengthLong());
+        } catch (TooManyUploadsException e) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+            reject(response, HttpStatus.TOO_MANY_REQUESTS, e.getMessage());
+            return;
+        } catch (InsufficientStorageException e) {
+            reject(response, HttpStatus.INSUFFICIENT_STORAGE, e.getMessage());
+            return;
+        }
+        try (permit) {
+            chain.doFilter(request, response);
+        }
+    }
+
+    private static void reject(HttpServletResponse response, HttpStatus status, String message) throws IOException {
+        // the unread body is not worth draining
+        response.setHeader(HttpHeaders.CONNECTION, "close");
+        response.setStatus(status.value());
+        response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+        response.getWriter().write(message);
+    }
+}
@@ -0,0 +1,89 @@
+package org.teletronics.vsyrov.filestorage.api.controller;
+
+import java.time.Instant;
+import java.util.List;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.service.bulk.BulkJobReport;
+import org.teletronics.vsyrov.filestorage.service.bulk.BulkOperationService;
+import org.teletronics.vsyrov.filestorage.service.bulk.BulkSelector;
+
+/**
+ * Bulk changes of the caller's files. Every call starts a background job and answers 202 with its report;
+ * the report is polled by job id.
+ *
+ * @author vsyrov
+ */
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@RequiredArgsConstructor
+@RequestMapping("/file")
+public class BulkOperationController {
+    private final BulkOperationService bulk;
+
+    @PostMapping(path = "/v1/bulk/delete", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<BulkJobReport> delete(
+            @RequestHeader("X-User-Id") String ownerId,
+            @RequestBody BulkRequest body
+    ) {
+        return ResponseEntity.accepted().body(bulk.delete(ownerId, body.selector()));
+    }
+
+    @PostMapping(path = "/v1/bulk/retag", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<BulkJobReport> retag(
+            @RequestHeader("X-User-Id") String ownerId,
+            @RequestBody BulkRequest body
+    ) {
+        return ResponseEntity.accepted()
+                .body(bulk.retag(ownerId, body.selector(), body.tags(), body.addTags(), body.removeTags()));
+    }
+
+    @PostMapping(path = "/v1/bulk/visibility", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<BulkJobReport> changeVisibility(
+            @RequestHeader("X-User-Id") String ownerId,
+            @RequestBody BulkRequest body
+    ) {
+        return ResponseEntity.accepted().body(bulk.changeVisibility(ownerId, body.selector(), body.visibility()));
+    }
+
+    @GetMapping("/v1/bulk/{jobId}")
+    public ResponseEntity<BulkJobReport> status(
+            @RequestHeader("X-User-Id") String ownerId,
+            @PathVariable String jobId
+    ) {
+        return ResponseEntity.ok(bulk.status(ownerId, jobId));
+    }
+
+    /**
+     * {@code ids} or {@code filter} selects the files; {@code tags} / {@code addTags} / {@code removeTags} are
+     * used by retag, {@code visibility} by the visibility change.
+     */
+    public record BulkRequest(
+            List<String> ids,
+            Filter filter,
+            List<String> tags,
+            List<String> addTags,
+            List<String> removeTags,
+            VisibilityType visibility
+    ) {
+        BulkSelector selector() {
+            return filter == null
+                    ? new BulkSelector(ids, null, null, null)
+                    : new BulkSelector(ids, filter.tag(), filter.visibility(), filter.createdBefore());
+        }
+    }
+
+    public record Filter(String tag, VisibilityType visibility, Instant createdBefore) {
+    }
+}
@@ -0,0 +1,283 @@
+package org.teletronics.vsyrov.filestorage.api.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.teletronics.vsyrov.filestorage.service.FileService.DownloadResource;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Writes download responses straight from the CAS file.
+ * <p>
+ * When the connector supports it, the file is handed to Tomcat via the sendfile request attributes,
+ * so the bytes go from the page cache to the socket ({@code FileChannel.transferTo}) without passing
+ * through the heap. Otherwise the file is copied with positional reads into the response. A packed object
+ * is served the same way, as a slice of its pack segment; inline content is written from its array.
+ * <p>
+ * {@code Range} / {@code If-Range} are honoured: a single range is answered with 206 and
+ * {@code Content-Range}, several ranges with {@code multipart/byteranges}. Skipped bytes are never read.
+ * <p>
+ * Objects stored compressed are sent as they are, with {@code Content-Encoding}, to clients that accept
+ * the encoding, and decompressed on the fly for the others. They are always served whole
+ * ({@code Accept-Ranges: none}), and the encoded representation gets its own ETag.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class DownloadResponder {
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final boolean sendfileEnabled;
+
+    public DownloadResponder(@Value("${filestorage.download.sendfile:true}") boolean sendfileEnabled) {
+        this.sendfileEnabled = sendfileEnabled;
+    }
+
+    public void write(HttpServletRequest request, HttpServletResponse response, DownloadResource r) throws IOException {
+        long length = r.length();
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, r.lastModified().toEpochMilli());
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + r.filename() + "\"");
+        if (r.contentEncoding() != null) {
+            writeEncoded(request, response, r);
+            return;
+        }
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.ETAG, etag(r));
+
+        List<HttpRange> requested = requestedRanges(request, r);
+        if (requested.isEmpty()) {
+            writeFull(request, response, r);
+            return;
+        }
+
+        List<long[]> ranges = satisfiable(requested, length);
+        if (ranges.isEmpty()) {
+            response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            response.setContentLength(0);
+            return;
+        }
+        if (ranges.size() > 1 && ranges.stream().mapToLong(x -> x[1] - x[0] + 1).sum() > length) {
+            // overlapping ranges asking for more than the file itself: the whole file is cheaper
+            writeFull(request, response, r);
+            return;
+        }
+
+        response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        if (ranges.size() == 1) {
+            long start = ranges.getFirst()[0];
+            long end = ranges.getFirst()[1];
+            response.setContentType(contentType(r));
+            response.setHeader(HttpHeaders.CONTENT_RANGE, contentRange(start, end, length));
+            writeRange(request, response, r, start, end + 1);
+        } else {
+            writeMultipart(response, r, ranges);
+        }
+    }
+
+    private void writeFull(HttpServletRequest request, HttpServletResponse response, DownloadResource r)
+            throws IOException {
+        response.setContentType(contentType(r));
+        writeRange(request, response, r, 0, r.length());
+    }
+
+    private void writeEncoded(HttpServletRequest request, HttpServletResponse response, DownloadResource r)
+            throws IOException {
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "none");
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        response.setContentType(contentType(r));
+        if (r.sendEncoded(request.getHeader(HttpHeaders.ACCEPT_ENCODING))) {
+            response.setHeader(HttpHeaders.ETAG, "\"" + r.hash() + "-" + r.contentEncoding() + "\"");
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, r.contentEncoding());
+            writeRange(request, response, r, 0, r.storedLength());
+            return;
+        }
+        response.setHeader(HttpHeaders.ETAG, etag(r));
+        response.setContentLengthLong(r.length());
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(r.path(), READ), COPY_BUFFER_SIZE)) {
+            in.transferTo(response.getOutputStream());
+        }
+    }
+
+    private void writeRange(
+            HttpServletRequest request,
+            HttpServletResponse response,
+            DownloadResource r,
+            long start,
+            long endExclusive
+    ) throws IOException {
+        long count = endExclusive - start;
+        response.setContentLengthLong(count);
+        if (r.data() != null) {
+            response.getOutputStream().write(r.data(), (int) start, (int) count);
+            return;
+        }
+        if (count > 0 && sendfileSupported(request)) {
+            request.setAttribute(SENDFILE_FILENAME_ATTR, r.path().toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START_ATTR, r.offset() + start);
+            request.setAttribute(SENDFILE_END_ATTR, r.offset() + endExclusive);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(r.path(), READ)) {
+            copy(channel, r.offset() + start, count, response.getOutputStream(), ByteBuffer.allocate(COPY_BUFFER_SIZE));
+        }
+    }
+
+    private void writeMultipart(HttpServletResponse response, DownloadResource r, List<long[]> ranges)
+            throws IOException {
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        String contentType = contentType(r);
+        long length = r.length();
+
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        long contentLength = 0;
+        for (long[] range : ranges) {
+            byte[] header = ("\r\n--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": " + contentRange(range[0], range[1], length) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(header);
+            contentLength += header.length + range[1] - range[0] + 1;
+        }
+        byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += closing.length;
+
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+
+        OutputStream out = response.getOutputStream();
+        if (r.data() != null) {
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] range = ranges.get(i);
+                out.write(partHeaders.get(i));
+                out.write(r.data(), (int) range[0], (int) (range[1] - range[0] + 1));
+            }
+            out.write(closing);
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(r.path(), READ)) {
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] range = ranges.get(i);
+                out.write(partHeaders.get(i));
+                copy(channel, r.offset() + range[0], range[1] - range[0] + 1, out, buffer);
+            }
+        }
+        out.write(closing);
+    }
+
+    private static void copy(FileChannel channel, long position, long count, OutputStream out, ByteBuffer buffer)
+            throws IOException {
+        long pos = position;
+        long remaining = count;
+        while (remaining > 0) {
+            buffer.clear();
+            if (remaining < buffer.capacity()) {
+                buffer.limit((int) remaining);
+            }
+            int n = channel.read(buffer, pos);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file at position " + pos);
+            }
+            out.write(buffer.array(), 0, n);
+            pos += n;
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Ranges to serve, or an empty list when the whole representation must be sent
+     * (no or malformed {@code Range}, or a stale {@code If-Range} validator).
+     */
+    private List<HttpRange> requestedRanges(HttpServletRequest request, DownloadResource r) {
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader == null || !"GET".equals(request.getMethod()) || !ifRangeMatches(request, r)) {
+            return List.of();
+        }
+        try {
+            return HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            log.debug("Ignoring malformed Range header {}", rangeHeader);
+            return List.of();
+        }
+    }
+
+    private static boolean ifRangeMatches(HttpServletRequest request, DownloadResource r) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // strong comparison: weak validators never match
+            return ifRange.equals(etag(r));
+        }
+        try {
+            return request.getDateHeader(HttpHeaders.IF_RANGE) / 1000 == r.lastModified().getEpochSecond();
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Resolves ranges against the file length, dropping unsatisfiable ones.
+     * Returns inclusive {@code [start, end]} pairs.
+     */
+    private static List<long[]> satisfiable(List<HttpRange> requested, long length) {
+        List<long[]> ranges = new ArrayList<>(requested.size());
+        for (HttpRange range : requested) {
+            try {
+                long start = range.getRangeStart(length);
+                long end = range.getRangeEnd(length);
+                if (start <= end) {
+                    ranges.add(new long[]{start, end});
+                }
+            } catch (IllegalArgumentException e) {
+                log.debug("Skipping unsatisfiable range {} for length {}", range, length);
+            }
+        }
+        return ranges;
+    }
+
+    private boolean sendfileSupported(HttpServletRequest request) {
+        return sendfileEnabled && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR));
+    }
+
+    private static String contentRange(long start, long end, long length) {
+        return "bytes " + start + "-" + end + "/" + length;
+    }
+
+    private static String etag(DownloadResource r) {
+        return "\"" + r.hash() + "\"";
+    }
+
+    private static String contentType(DownloadResource r) {
+        return r.contentType() == null || r.contentType().isBlank()
+                ? "application/octet-stream" : r.contentType();
+    }
+}
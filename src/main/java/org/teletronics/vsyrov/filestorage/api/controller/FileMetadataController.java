@@ -1,10 +1,17 @@
 package org.teletronics.vsyrov.filestorage.api.controller;
 
-import java.util.Collections;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
@@ -16,36 +23,49 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.teletronics.vsyrov.filestorage.api.mapper.FileMapper;
+import org.teletronics.vsyrov.filestorage.common.exception.BadRequestException;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
 import org.teletronics.vsyrov.filestorage.service.FileService;
+import org.teletronics.vsyrov.filestorage.service.MetadataService.FileSlice;
 
 /**
  * @author vsyrov
  */
 @RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 @RequiredArgsConstructor
 @RequestMapping("/files")
 public class FileMetadataController {
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    private static final String NDJSON_VALUE = "application/x-ndjson";
+    private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
 
     private final FileService fileService;
     private final FileMapper mapper;
+    private final ObjectMapper objectMapper;
 
     @GetMapping("/v1/public")
     public ResponseEntity<List<FileDto>> listPublicFiles(
             @RequestParam(value = "tag", required = false) String tag,
             @RequestParam(value = "page", defaultValue = "0") int page,
             @RequestParam(value = "size", defaultValue = "20") int size,
-            @RequestParam(value = "sort", defaultValue = "filename,asc") String sort
+            @RequestParam(value = "sort", defaultValue = "fileName,asc") String sort,
+            @RequestParam(value = "cursor", required = false) String cursor
     ) {
+        if (cursor != null) {
+            return slice(fileService.listPublicAfter(tag, order(sort), size, cursor));
+        }
         Pageable p = pageable(sort, page, size);
         var pageRes = fileService.listPublic(tag, p);
         return ResponseEntity.ok(pageRes.getContent().stream().map(mapper::toDto).toList());
     }
 
     @GetMapping(path = "/v1/tags", produces = MediaType.APPLICATION_JSON_VALUE)
-    public Map<String, List<String>> listTags(
+    public Map<String, Object> listTags(
             @RequestHeader("X-User-Id") String userId
     ) {
-        return Collections.singletonMap("tags", fileService.getAccessibleTags(userId));
+        Map<String, Long> counts = fileService.getAccessibleTags(userId);
+        return Map.of("tags", List.copyOf(counts.keySet()), "counts", counts);
     }
 
     @GetMapping("/v1")
@@ -54,16 +74,69 @@ public class FileMetadataController {
             @RequestParam(value = "tag", required = false) String tag,
             @RequestParam(value = "page", defaultValue = "0") int page,
             @RequestParam(value = "size", defaultValue = "20") int size,
-            @RequestParam(value = "sort", defaultValue = "filename,asc") String sort
+            @RequestParam(value = "sort", defaultValue = "fileName,asc") String sort,
+            @RequestParam(value = "cursor", required = false) String cursor
     ) {
+        if (cursor != null) {
+            return slice(fileService.listOwnedAfter(ownerId, tag, order(sort), size, cursor));
+        }
         Pageable p = pageable(sort, page, size);
         var pageRes = fileService.listOwned(ownerId, tag, p);
         return ResponseEntity.ok(pageRes.getContent().stream().map(mapper::toDto).toList());
     }
 
+    /**
+     * Whole catalogue as newline-delimited JSON, one {@link FileDto} per line, written while the Mongo cursor
+     * is iterated: memory use does not depend on the number of files.
+     * {@code scope=owned} (default) exports the caller's files, {@code scope=public} all public files.
+     */
+    @GetMapping(path = "/v1/export", produces = NDJSON_VALUE)
+    public void export(
+            @RequestHeader(value = "X-User-Id", required = false) String userId,
+            @RequestParam(value = "scope", defaultValue = "owned") String scope,
+            HttpServletResponse response
+    ) throws IOException {
+        String ownerId = switch (scope) {
+            case "owned" -> {
+                if (userId == null || userId.isBlank()) {
+                    throw new BadRequestException("X-User-Id is required to export owned files");
+                }
+                yield userId;
+            }
+            case "public" -> null;
+            default -> throw new BadRequestException("Scope must be 'owned' or 'public'");
+        };
+
+        try (Stream<FileMetadata> files = fileService.exportAll(ownerId)) {
+            response.setContentType(NDJSON_VALUE);
+            OutputStream out = new BufferedOutputStream(response.getOutputStream(), EXPORT_BUFFER_SIZE);
+            ObjectWriter writer = objectMapper.writerFor(FileDto.class);
+            for (FileMetadata meta : (Iterable<FileMetadata>) files::iterator) {
+                out.write(writer.writeValueAsBytes(mapper.toDto(meta)));
+                out.write('\n');
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Cursor mode: {@code cursor=} (empty) starts a listing, the {@value #NEXT_CURSOR_HEADER} response header
+     * carries the token for the next page and is absent on the last one.
+     */
+    private ResponseEntity<List<FileDto>> slice(FileSlice slice) {
+        var response = ResponseEntity.ok();
+        if (slice.nextCursor() != null) {
+            response.header(NEXT_CURSOR_HEADER, slice.nextCursor());
+        }
+        return response.body(slice.items().stream().map(mapper::toDto).toList());
+    }
+
     private Pageable pageable(String sort, int page, int size) {
+        return PageRequest.of(page, size, Sort.by(order(sort)));
+    }
+
+    private Sort.Order order(String sort) {
         String[] sp = sort.split(",");
-        Sort s = Sort.by(Sort.Direction.fromString(sp.length > 1 ? sp[1] : "asc"), sp[0]);
-        return PageRequest.of(page, size, s);
+        return new Sort.Order(Sort.Direction.fromString(sp.length > 1 ? sp[1] : "asc"), sp[0]);
     }
 }
@@ -1,9 +1,13 @@
 package org.teletronics.vsyrov.filestorage.api.controller;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
-import org.springframework.core.io.Resource;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -20,19 +24,28 @@ import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
 import org.teletronics.vsyrov.filestorage.api.mapper.FileMapper;
 import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.service.BatchUploadService;
+import org.teletronics.vsyrov.filestorage.service.BatchUploadService.ItemResult;
+import org.teletronics.vsyrov.filestorage.service.BatchUploadService.ItemStatus;
 import org.teletronics.vsyrov.filestorage.service.FileService;
+import org.teletronics.vsyrov.filestorage.service.FileService.ContentClaim;
 
 /**
  * @author vsyrov
  */
 @RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 @RequiredArgsConstructor
 @RequestMapping("/file")
 public class FileStorageController {
+    private static final String TAR_MEDIA_TYPE = "application/x-tar";
+
     private final FileService files;
+    private final BatchUploadService batches;
     private final FileMapper mapper;
+    private final DownloadResponder downloadResponder;
 
-    @PostMapping(name = "/v1", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    @PostMapping(path = "/v1", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
     public ResponseEntity<FileDto> uploadFile(
             @RequestHeader("X-User-Id") String ownerId,
             @RequestParam("file") MultipartFile file,
@@ -44,6 +57,98 @@ public class FileStorageController {
         return ResponseEntity.status(201).body(mapper.toDto(meta));
     }
 
+    @PostMapping(path = "/v1/stream", consumes = "!" + MediaType.APPLICATION_FORM_URLENCODED_VALUE)
+    public ResponseEntity<FileDto> uploadStream(
+            @RequestHeader("X-User-Id") String ownerId,
+            @RequestHeader(value = HttpHeaders.CONTENT_TYPE, required = false) String contentType,
+            @RequestHeader(value = HttpHeaders.CONTENT_LENGTH, required = false) Long contentLength,
+            @RequestParam("filename") String filename,
+            @RequestParam("visibility") VisibilityType visibility,
+            @RequestParam(value = "tags", required = false) List<String> tags,
+            InputStream body
+    ) {
+        long declaredSize = contentLength == null ? -1 : contentLength;
+        var meta = files.uploadStream(ownerId, body, declaredSize, contentType, filename, visibility, tags);
+        return ResponseEntity.status(201).body(mapper.toDto(meta));
+    }
+
+    /**
+     * Uploads every {@code file} part of the request; the status is 200 whatever happened to the items,
+     * each of them reports its own outcome.
+     */
+    @PostMapping(path = "/v1/batch", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<BatchUploadResponse> uploadBatch(
+            @RequestHeader("X-User-Id") String ownerId,
+            @RequestParam("file") List<MultipartFile> parts,
+            @RequestParam("visibility") VisibilityType visibility,
+            @RequestParam(value = "tags", required = false) List<String> tags
+    ) {
+        return ResponseEntity.ok(toResponse(batches.uploadParts(ownerId, parts, visibility, tags)));
+    }
+
+    /**
+     * Same as the multipart batch for a tar stream: each regular file is named by its path in the archive.
+     */
+    @PostMapping(path = "/v1/batch", consumes = TAR_MEDIA_TYPE)
+    public ResponseEntity<BatchUploadResponse> uploadTarBatch(
+            @RequestHeader("X-User-Id") String ownerId,
+            @RequestParam("visibility") VisibilityType visibility,
+            @RequestParam(value = "tags", required = false) List<String> tags,
+            InputStream body
+    ) {
+        return ResponseEntity.ok(toResponse(batches.uploadTar(ownerId, body, visibility, tags)));
+    }
+
+    private BatchUploadResponse toResponse(List<ItemResult> results) {
+        var items = results.stream()
+                .map(r -> new BatchItemDto(r.index(), r.filename(), r.status().name(),
+                        r.file() != null ? mapper.toDto(r.file()) : null, r.error()))
+                .toList();
+        return new BatchUploadResponse(
+                count(results, ItemStatus.CREATED),
+                count(results, ItemStatus.DUPLICATE),
+                count(results, ItemStatus.ERROR),
+                items
+        );
+    }
+
+    private static int count(List<ItemResult> results, ItemStatus status) {
+        return (int) results.stream().filter(r -> r.status() == status).count();
+    }
+
+    public record BatchUploadResponse(int created, int duplicates, int errors, List<BatchItemDto> items) {
+    }
+
+    public record BatchItemDto(int index, String filename, String status, FileDto file, String error) {
+    }
+
+    /**
+     * Creates a file from content the server already stores; 404 means the body has to be uploaded,
+     * 428 carries a proof-of-possession challenge to answer in a repeated request.
+     */
+    @PostMapping(path = "/v1/by-hash", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<FileDto> uploadByHash(
+            @RequestHeader("X-User-Id") String ownerId,
+            @RequestBody HashUploadRequest body
+    ) {
+        var claim = new ContentClaim(body.hash(), body.algorithm(), body.size(), body.challenge(), body.proof());
+        var meta = files.uploadByHash(ownerId, claim, body.filename(), body.visibility(), body.tags(), body.contentType());
+        return ResponseEntity.status(201).body(mapper.toDto(meta));
+    }
+
+    public record HashUploadRequest(
+            String hash,
+            String algorithm,
+            long size,
+            String filename,
+            VisibilityType visibility,
+            List<String> tags,
+            String contentType,
+            String challenge,
+            String proof
+    ) {
+    }
+
     @PatchMapping("/v1/{id}/rename")
     public ResponseEntity<Void> rename(
             @RequestHeader("X-User-Id") String ownerId,
@@ -67,16 +172,12 @@ public class FileStorageController {
     }
 
     @GetMapping("/v1/{id}")
-    public ResponseEntity<Resource> download(
+    public void download(
             @RequestHeader("X-User-Id") String userId,
-            @PathVariable String id
-    ) {
-        var r = files.download(id, userId);
-        return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + r.filename() + "\"")
-                .contentType(MediaType.parseMediaType(
-                        r.contentType() == null || r.contentType().isBlank()
-                                ? "application/octet-stream" : r.contentType()))
-                .body(r.body());
+            @PathVariable String id,
+            HttpServletRequest request,
+            HttpServletResponse response
+    ) throws IOException {
+        downloadResponder.write(request, response, files.download(id, userId));
     }
 }
@@ -0,0 +1,35 @@
+package org.teletronics.vsyrov.filestorage.api.controller;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.teletronics.vsyrov.filestorage.service.gc.CasGarbageCollector;
+import org.teletronics.vsyrov.filestorage.service.gc.GcReport;
+
+/**
+ * @author vsyrov
+ */
+@RestController
+@RequiredArgsConstructor
+@RequestMapping("/admin")
+public class GcAdminController {
+    private final CasGarbageCollector gc;
+
+    @GetMapping("/v1/gc")
+    public ResponseEntity<GcReport> status() {
+        return ResponseEntity.ok(gc.status());
+    }
+
+    @PostMapping("/v1/gc")
+    public ResponseEntity<GcReport> start(@RequestParam(value = "dryRun", defaultValue = "false") boolean dryRun) {
+        if (!gc.start(dryRun)) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(gc.status());
+        }
+        return ResponseEntity.accepted().body(gc.status());
+    }
+}
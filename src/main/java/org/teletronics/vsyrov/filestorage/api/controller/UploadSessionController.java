@@ -0,0 +1,107 @@
+package org.teletronics.vsyrov.filestorage.api.controller;
+
+import java.io.InputStream;
+import java.util.List;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.teletronics.vsyrov.filestorage.api.controller.UploadSessionDto.PartDto;
+import org.teletronics.vsyrov.filestorage.api.mapper.FileMapper;
+import org.teletronics.vsyrov.filestorage.common.model.UploadSession;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.service.UploadSessionService;
+import org.teletronics.vsyrov.filestorage.storage.FileSystemPartStorage.Part;
+
+/**
+ * @author vsyrov
+ */
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@RequiredArgsConstructor
+@RequestMapping("/file")
+public class UploadSessionController {
+    private final UploadSessionService sessions;
+    private final FileMapper mapper;
+
+    @PostMapping(path = "/v1/sessions", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<UploadSessionDto> create(
+            @RequestHeader("X-User-Id") String ownerId,
+            @RequestBody CreateSessionRequest body
+    ) {
+        var session = sessions.create(ownerId, body.filename(), body.visibility(), body.tags(), body.contentType());
+        return ResponseEntity.status(201).body(toDto(session, List.of()));
+    }
+
+    public record CreateSessionRequest(
+            String filename,
+            VisibilityType visibility,
+            List<String> tags,
+            String contentType
+    ) {
+    }
+
+    @GetMapping("/v1/sessions/{id}")
+    public ResponseEntity<UploadSessionDto> get(
+            @RequestHeader("X-User-Id") String ownerId,
+            @PathVariable String id
+    ) {
+        var session = sessions.getOwned(ownerId, id);
+        return ResponseEntity.ok(toDto(session, sessions.listParts(ownerId, id)));
+    }
+
+    @PutMapping(path = "/v1/sessions/{id}/parts/{partNumber}", consumes = "!" + MediaType.APPLICATION_FORM_URLENCODED_VALUE)
+    public ResponseEntity<PartDto> uploadPart(
+            @RequestHeader("X-User-Id") String ownerId,
+            @PathVariable String id,
+            @PathVariable int partNumber,
+            InputStream body
+    ) {
+        var part = sessions.uploadPart(ownerId, id, partNumber, body);
+        return ResponseEntity.ok(new PartDto(part.number(), part.size()));
+    }
+
+    @PostMapping(path = "/v1/sessions/{id}/complete", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<FileDto> complete(
+            @RequestHeader("X-User-Id") String ownerId,
+            @PathVariable String id,
+            @RequestBody CompleteSessionRequest body
+    ) {
+        var meta = sessions.complete(ownerId, id, body.partCount());
+        return ResponseEntity.status(201).body(mapper.toDto(meta));
+    }
+
+    public record CompleteSessionRequest(int partCount) {
+    }
+
+    @DeleteMapping("/v1/sessions/{id}")
+    public ResponseEntity<Void> abort(
+            @RequestHeader("X-User-Id") String ownerId,
+            @PathVariable String id
+    ) {
+        sessions.abort(ownerId, id);
+        return ResponseEntity.noContent().build();
+    }
+
+    private static UploadSessionDto toDto(UploadSession session, List<Part> parts) {
+        return new UploadSessionDto(
+                session.getId(),
+                session.getFileName(),
+                session.getVisibility().name(),
+                session.getTags(),
+                session.getCreatedTs(),
+                session.getExpiresAt(),
+                parts.stream().map(p -> new PartDto(p.number(), p.size())).toList()
+        );
+    }
+}
@@ -0,0 +1,20 @@
+package org.teletronics.vsyrov.filestorage.api.controller;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * @author vsyrov
+ */
+public record UploadSessionDto(
+        String id,
+        String fileName,
+        String visibility,
+        List<String> tags,
+        Instant createdTs,
+        Instant expiresAt,
+        List<PartDto> parts
+) {
+    public record PartDto(int partNumber, long size) {
+    }
+}
@@ -0,0 +1,86 @@
+package org.teletronics.vsyrov.filestorage.api.reactive;
+
+import java.util.List;
+import java.util.Map;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.teletronics.vsyrov.filestorage.api.controller.FileDto;
+import org.teletronics.vsyrov.filestorage.api.mapper.FileMapper;
+import org.teletronics.vsyrov.filestorage.common.exception.BadRequestException;
+import org.teletronics.vsyrov.filestorage.service.ReactiveFileService;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reactive edition of {@code FileMetadataController} (offset pages, tags and export; cursor listings are
+ * served by the servlet edition only).
+ *
+ * @author vsyrov
+ */
+@RestController
+@RequiredArgsConstructor
+@RequestMapping("/files")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveFileMetadataController {
+    private final ReactiveFileService fileService;
+    private final FileMapper mapper;
+
+    @GetMapping("/v1/public")
+    public Flux<FileDto> listPublicFiles(
+            @RequestParam(value = "tag", required = false) String tag,
+            @RequestParam(value = "page", defaultValue = "0") int page,
+            @RequestParam(value = "size", defaultValue = "20") int size,
+            @RequestParam(value = "sort", defaultValue = "fileName,asc") String sort
+    ) {
+        return fileService.listPublic(tag, pageable(sort, page, size)).map(mapper::toDto);
+    }
+
+    @GetMapping(path = "/v1/tags", produces = MediaType.APPLICATION_JSON_VALUE)
+    public Mono<Map<String, Object>> listTags(
+            @RequestHeader("X-User-Id") String userId
+    ) {
+        return fileService.getAccessibleTags(userId)
+                .map(counts -> Map.of("tags", List.copyOf(counts.keySet()), "counts", counts));
+    }
+
+    @GetMapping("/v1")
+    public Flux<FileDto> listUserFiles(
+            @RequestHeader("X-User-Id") String ownerId,
+            @RequestParam(value = "tag", required = false) String tag,
+            @RequestParam(value = "page", defaultValue = "0") int page,
+            @RequestParam(value = "size", defaultValue = "20") int size,
+            @RequestParam(value = "sort", defaultValue = "fileName,asc") String sort
+    ) {
+        return fileService.listOwned(ownerId, tag, pageable(sort, page, size)).map(mapper::toDto);
+    }
+
+    @GetMapping(path = "/v1/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<FileDto> export(
+            @RequestHeader(value = "X-User-Id", required = false) String userId,
+            @RequestParam(value = "scope", defaultValue = "owned") String scope
+    ) {
+        return switch (scope) {
+            case "owned" -> (userId == null || userId.isBlank())
+                    ? Flux.error(new BadRequestException("X-User-Id is required to export owned files"))
+                    : fileService.exportAll(userId).map(mapper::toDto);
+            case "public" -> fileService.exportAll(null).map(mapper::toDto);
+            default -> Flux.error(new BadRequestException("Scope must be 'owned' or 'public'"));
+        };
+    }
+
+    private Pageable pageable(String sort, int page, int size) {
+        String[] sp = sort.split(",");
+        return PageRequest.of(page, size,
+                Sort.by(new Sort.Order(Sort.Direction.fromString(sp.length > 1 ? sp[1] : "asc"), sp[0])));
+    }
+}
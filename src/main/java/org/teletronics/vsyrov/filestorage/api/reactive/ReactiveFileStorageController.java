@@ -0,0 +1,174 @@
+package org.teletronics.vsyrov.filestorage.api.reactive;
+
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PatchMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RequestPart;
+import org.springframework.web.bind.annotation.RestController;
+import org.teletronics.vsyrov.filestorage.api.controller.FileDto;
+import org.teletronics.vsyrov.filestorage.api.controller.FileStorageController.RenameRequest;
+import org.teletronics.vsyrov.filestorage.api.mapper.FileMapper;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.service.FileService.DownloadResource;
+import org.teletronics.vsyrov.filestorage.service.ReactiveFileService;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Reactive edition of {@code FileStorageController}, same paths and contracts. Active when the application
+ * runs as a reactive web application ({@code reactive} profile).
+ *
+ * @author vsyrov
+ */
+@RestController
+@RequiredArgsConstructor
+@RequestMapping("/file")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveFileStorageController {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ReactiveFileService files;
+    private final FileMapper mapper;
+
+    @PostMapping(path = "/v1", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Mono<ResponseEntity<FileDto>> uploadFile(
+            @RequestHeader("X-User-Id") String ownerId,
+            @RequestPart("file") FilePart file,
+            @RequestParam(value = "filename", required = false) String filename,
+            @RequestParam("visibility") VisibilityType visibility,
+            @RequestParam(value = "tags", required = false) List<String> tags
+    ) {
+        String name = (filename == null || filename.isBlank()) ? file.filename() : filename;
+        MediaType partType = file.headers().getContentType();
+        return files.uploadStream(ownerId, file.content(), -1, partType == null ? null : partType.toString(),
+                        name, visibility, tags)
+                .map(meta -> ResponseEntity.status(201).body(mapper.toDto(meta)));
+    }
+
+    @PostMapping(path = "/v1/stream", consumes = "!" + MediaType.APPLICATION_FORM_URLENCODED_VALUE)
+    public Mono<ResponseEntity<FileDto>> uploadStream(
+            @RequestHeader("X-User-Id") String ownerId,
+            @RequestHeader(value = HttpHeaders.CONTENT_TYPE, required = false) String contentType,
+            @RequestHeader(value = HttpHeaders.CONTENT_LENGTH, required = false) Long contentLength,
+            @RequestParam("filename") String filename,
+            @RequestParam("visibility") VisibilityType visibility,
+            @RequestParam(value = "tags", required = false) List<String> tags,
+            @RequestBody Flux<DataBuffer> body
+    ) {
+        long declaredSize = contentLength == null ? -1 : contentLength;
+        return files.uploadStream(ownerId, body, declaredSize, contentType, filename, visibility, tags)
+                .map(meta -> ResponseEntity.status(201).body(mapper.toDto(meta)));
+    }
+
+    @PatchMapping("/v1/{id}/rename")
+    public Mono<ResponseEntity<Void>> rename(
+            @RequestHeader("X-User-Id") String ownerId,
+            @PathVariable String id,
+            @RequestBody RenameRequest body
+    ) {
+        return files.rename(ownerId, id, body.filename()).thenReturn(ResponseEntity.noContent().build());
+    }
+
+    @DeleteMapping("/v1/{id}")
+    public Mono<ResponseEntity<Void>> delete(
+            @RequestHeader("X-User-Id") String ownerId,
+            @PathVariable String id
+    ) {
+        return files.delete(ownerId, id).thenReturn(ResponseEntity.noContent().build());
+    }
+
+    /**
+     * The file is written by the resource codec: zero-copy on Netty, {@code Range} answered with 206.
+     * Compressed objects go out as stored when the client accepts the encoding, otherwise they are
+     * decompressed on the bounded elastic scheduler; either way without ranges, like packed objects.
+     */
+    @GetMapping("/v1/{id}")
+    public Mono<ResponseEntity<?>> download(
+            @RequestHeader("X-User-Id") String userId,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+            @PathVariable String id
+    ) {
+        return files.download(id, userId).map(r -> toResponse(r, acceptEncoding));
+    }
+
+    private ResponseEntity<?> toResponse(DownloadResource r, String acceptEncoding) {
+        String contentType = r.contentType() == null || r.contentType().isBlank()
+                ? MediaType.APPLICATION_OCTET_STREAM_VALUE : r.contentType();
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .lastModified(r.lastModified())
+                .header(HttpHeaders.CONTENT_DISPOSITION,
+                        ContentDisposition.attachment().filename(r.filename()).build().toString())
+                .contentType(MediaType.parseMediaType(contentType));
+        if (r.data() != null) {
+            // inline content, already in memory; the codec serves ranges of the array
+            return response
+                    .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                    .eTag(r.hash())
+                    .body(new ByteArrayResource(r.data()));
+        }
+        if (r.offset() > 0) {
+            // a slice of a pack segment: small, read with positional async reads and served whole
+            Flux<DataBuffer> slice = DataBufferUtils.takeUntilByteCount(
+                    DataBufferUtils.readAsynchronousFileChannel(
+                            () -> AsynchronousFileChannel.open(r.path(), StandardOpenOption.READ),
+                            r.offset(),
+                            DefaultDataBufferFactory.sharedInstance,
+                            BUFFER_SIZE),
+                    r.length());
+            return response
+                    .header(HttpHeaders.ACCEPT_RANGES, "none")
+                    .eTag(r.hash())
+                    .contentLength(r.length())
+                    .body(slice);
+        }
+        if (r.contentEncoding() == null) {
+            return response
+                    .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                    .eTag(r.hash())
+                    .body(new FileSystemResource(r.path()));
+        }
+        response.header(HttpHeaders.ACCEPT_RANGES, "none").varyBy(HttpHeaders.ACCEPT_ENCODING);
+        if (r.sendEncoded(acceptEncoding)) {
+            return response
+                    .eTag(r.hash() + "-" + r.contentEncoding())
+                    .header(HttpHeaders.CONTENT_ENCODING, r.contentEncoding())
+                    .contentLength(r.storedLength())
+                    // not a Resource, so the codec cannot answer a Range with slices of the encoded bytes
+                    .body(DataBufferUtils.read(r.path(), DefaultDataBufferFactory.sharedInstance, BUFFER_SIZE));
+        }
+        Flux<DataBuffer> decoded = DataBufferUtils.readInputStream(
+                        () -> new GZIPInputStream(Files.newInputStream(r.path()), BUFFER_SIZE),
+                        DefaultDataBufferFactory.sharedInstance,
+                        BUFFER_SIZE)
+                .subscribeOn(Schedulers.boundedElastic());
+        return response
+                .eTag(r.hash())
+                .contentLength(r.length())
+                .body(decoded);
+    }
+}
@@ -0,0 +1,64 @@
+package org.teletronics.vsyrov.filestorage.api.reactive;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import org.teletronics.vsyrov.filestorage.common.exception.InsufficientStorageException;
+import org.teletronics.vsyrov.filestorage.common.exception.TooManyUploadsException;
+import org.teletronics.vsyrov.filestorage.service.upload.UploadAdmission;
+import org.teletronics.vsyrov.filestorage.service.upload.UploadAdmission.Permit;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reactive counterpart of {@code UploadAdmissionFilter}: the permit is held until the exchange completes.
+ *
+ * @author vsyrov
+ */
+@Component
+@RequiredArgsConstructor
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class UploadAdmissionWebFilter implements WebFilter {
+    private static final List<String> UPLOAD_PATHS = List.of("/file/v1", "/file/v1/stream");
+    private static final AntPathMatcher MATCHER = new AntPathMatcher();
+
+    private final UploadAdmission admission;
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        var request = exchange.getRequest();
+        String path = request.getPath().pathWithinApplication().value();
+        String ownerId = request.getHeaders().getFirst("X-User-Id");
+        if (request.getMethod() != HttpMethod.POST || ownerId == null || ownerId.isBlank()
+                || UPLOAD_PATHS.stream().noneMatch(p -> MATCHER.match(p, path))) {
+            return chain.filter(exchange);
+        }
+        Permit permit;
+        try {
+            permit = admission.admit(ownerId, request.getHeaders().getContentLength());
+        } catch (TooManyUploadsException e) {
+            exchange.getResponse().getHeaders().set(HttpHeaders.RETRY_AFTER, "1");
+            return reject(exchange.getResponse(), HttpStatus.TOO_MANY_REQUESTS, e.getMessage());
+        } catch (InsufficientStorageException e) {
+            return reject(exchange.getResponse(), HttpStatus.INSUFFICIENT_STORAGE, e.getMessage());
+        }
+        return chain.filter(exchange).doFinally(signal -> permit.close());
+    }
+
+    private static Mono<Void> reject(ServerHttpResponse response, HttpStatus status, String message) {
+        response.setStatusCode(status);
+        DataBuffer body = response.bufferFactory().wrap(message.getBytes(StandardCharsets.UTF_8));
+        return response.writeWith(Mono.just(body));
+    }
+}
@@ -0,0 +1,10 @@
+package org.teletronics.vsyrov.filestorage.common.exception;
+
+/**
+ * @author vsyrov
+ */
+public class InsufficientStorageException extends RuntimeException {
+    public InsufficientStorageException(String message) {
+        super(message);
+    }
+}
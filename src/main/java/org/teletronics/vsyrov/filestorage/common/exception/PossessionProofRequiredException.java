@@ -0,0 +1,17 @@
+package org.teletronics.vsyrov.filestorage.common.exception;
+
+import lombok.Getter;
+import org.teletronics.vsyrov.filestorage.common.model.PossessionChallenge;
+
+/**
+ * @author vsyrov
+ */
+@Getter
+public class PossessionProofRequiredException extends RuntimeException {
+    private final PossessionChallenge challenge;
+
+    public PossessionProofRequiredException(PossessionChallenge challenge) {
+        super("Proof of possession required");
+        this.challenge = challenge;
+    }
+}
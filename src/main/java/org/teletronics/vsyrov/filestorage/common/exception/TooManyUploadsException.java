@@ -0,0 +1,10 @@
+package org.teletronics.vsyrov.filestorage.common.exception;
+
+/**
+ * @author vsyrov
+ */
+public class TooManyUploadsException extends RuntimeException {
+    public TooManyUploadsException(String message) {
+        super(message);
+    }
+}
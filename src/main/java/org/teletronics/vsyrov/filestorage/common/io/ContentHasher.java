@@ -0,0 +1,41 @@
+package org.teletronics.vsyrov.filestorage.common.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental content hash. Implementations are not thread-safe; a single writer feeds the bytes in order.
+ *
+ * @author vsyrov
+ */
+public interface ContentHasher {
+
+    void update(byte[] b, int off, int len);
+
+    default void update(byte b) {
+        update(new byte[]{b}, 0, 1);
+    }
+
+    /**
+     * Consumes the remaining bytes of {@code buffer}; direct buffers are copied through a small heap array.
+     */
+    default void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        byte[] chunk = new byte[Math.min(buffer.remaining(), 8192)];
+        while (buffer.hasRemaining()) {
+            int n = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, n);
+            update(chunk, 0, n);
+        }
+    }
+
+    /**
+     * Completes the hash. The hasher is reset afterwards.
+     */
+    byte[] digest();
+
+    void reset();
+}
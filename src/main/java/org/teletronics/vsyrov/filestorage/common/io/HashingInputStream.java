@@ -2,53 +2,50 @@ package org.teletronics.vsyrov.filestorage.common.io;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 
-import lombok.AccessLevel;
-import lombok.AllArgsConstructor;
 import lombok.Getter;
 import org.springframework.lang.Nullable;
 
 import static java.util.Objects.requireNonNull;
 
 /**
+ * Hashes the bytes read through it. Like the {@link ContentHasher} underneath it has a single reader, so
+ * nothing here is synchronized and a virtual thread reading from it never pins its carrier.
+ *
  * @author vsyrov
  */
-@AllArgsConstructor(access = AccessLevel.PRIVATE)
 public class HashingInputStream extends InputStream {
     private static final String DEFAULT_HASH_ALGORITHM = "SHA-256";
 
-    private final DigestInputStream dis;
-    private final MessageDigest messageDigest;
+    private final InputStream source;
+    private final ContentHasher hasher;
     @Getter
     private long bytesRead;
 
     public static HashingInputStream of(InputStream sourceStream) {
-        return of(sourceStream, DEFAULT_HASH_ALGORITHM);
+        return of(sourceStream, (String) null);
     }
 
     public static HashingInputStream of(InputStream sourceStream, @Nullable String hashAlgorithm) {
-        return new HashingInputStream(sourceStream, hashAlgorithm);
+        var resolvedHashAlgorithm = hashAlgorithm == null ? DEFAULT_HASH_ALGORITHM : hashAlgorithm;
+        return new HashingInputStream(sourceStream, MessageDigestHasher.of(resolvedHashAlgorithm));
     }
 
-    private HashingInputStream(InputStream sourceStream, @Nullable String hashAlgorithm) {
-        requireNonNull(sourceStream, "The source InputStream cannot be null");
-        var resolvedHashAlgorithm = hashAlgorithm == null ? DEFAULT_HASH_ALGORITHM : hashAlgorithm;
+    public static HashingInputStream of(InputStream sourceStream, ContentHasher hasher) {
+        return new HashingInputStream(sourceStream, hasher);
+    }
 
-        try {
-            this.messageDigest = MessageDigest.getInstance(resolvedHashAlgorithm);
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalArgumentException("Unknown hash algorithm: " + hashAlgorithm, e);
-        }
-        this.dis = new DigestInputStream(sourceStream, messageDigest);
+    private HashingInputStream(InputStream sourceStream, ContentHasher hasher) {
+        this.source = requireNonNull(sourceStream, "The source InputStream cannot be null");
+        this.hasher = requireNonNull(hasher, "The hasher cannot be null");
     }
 
     @Override
     public int read() throws IOException {
-        int b = dis.read();
+        int b = source.read();
         if (b != -1) {
+            hasher.update((byte) b);
             bytesRead++;
         }
         return b;
@@ -56,8 +53,9 @@ public class HashingInputStream extends InputStream {
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        int n = dis.read(b, off, len);
+        int n = source.read(b, off, len);
         if (n > 0) {
+            hasher.update(b, off, n);
             bytesRead += n;
         }
         return n;
@@ -70,46 +68,41 @@ public class HashingInputStream extends InputStream {
 
     @Override
     public long skip(long n) throws IOException {
-        return dis.skip(n);
+        return source.skip(n);
     }
 
     @Override
     public int available() throws IOException {
-        return dis.available();
+        return source.available();
     }
 
     @Override
     public void close() throws IOException {
-        dis.close();
+        source.close();
     }
 
     @Override
-    public synchronized void mark(int readlimit) {
-        dis.mark(readlimit);
+    public void mark(int readlimit) {
+        source.mark(readlimit);
     }
 
     @Override
-    public synchronized void reset() throws IOException {
-        dis.reset();
-        messageDigest.reset();
+    public void reset() throws IOException {
+        source.reset();
+        hasher.reset();
         bytesRead = 0;
     }
 
     @Override
     public boolean markSupported() {
-        return dis.markSupported();
+        return source.markSupported();
     }
 
     public byte[] digest() {
-        return messageDigest.digest();
+        return hasher.digest();
     }
 
     public String digestHex() {
-        byte[] d = digest();
-        StringBuilder sb = new StringBuilder(d.length * 2);
-        for (byte x : d) {
-            sb.append(String.format("%02x", x));
-        }
-        return sb.toString();
+        return HexFormat.of().formatHex(digest());
     }
 }
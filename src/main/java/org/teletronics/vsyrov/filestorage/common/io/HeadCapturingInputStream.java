@@ -0,0 +1,82 @@
+package org.teletronics.vsyrov.filestorage.common.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Pass-through stream that keeps a copy of the first {@code capacity} bytes read,
+ * so the head of an upload can be inspected without reopening the stored file.
+ *
+ * @author vsyrov
+ */
+public class HeadCapturingInputStream extends FilterInputStream {
+    private final byte[] head;
+    private int captured;
+
+    public HeadCapturingInputStream(InputStream sourceStream, int capacity) {
+        super(requireNonNull(sourceStream, "The source InputStream cannot be null"));
+        this.head = new byte[capacity];
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1 && captured < head.length) {
+            head[captured++] = (byte) b;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0 && captured < head.length) {
+            int toCopy = Math.min(n, head.length - captured);
+            System.arraycopy(b, off, head, captured, toCopy);
+            captured += toCopy;
+        }
+        return n;
+    }
+
+    /**
+     * Skipped bytes are read through, otherwise they would be missing from the head.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0 || captured >= head.length) {
+            return in.skip(n);
+        }
+        byte[] buf = new byte[(int) Math.min(n, 8192)];
+        long remaining = n;
+        while (remaining > 0) {
+            int r = read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (r < 0) {
+                break;
+            }
+            remaining -= r;
+        }
+        return n - remaining;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    public byte[] head() {
+        return Arrays.copyOf(head, captured);
+    }
+}
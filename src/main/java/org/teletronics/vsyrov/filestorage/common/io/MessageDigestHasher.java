@@ -0,0 +1,51 @@
+package org.teletronics.vsyrov.filestorage.common.io;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Sequential hash backed by a JCA {@link MessageDigest}.
+ *
+ * @author vsyrov
+ */
+public class MessageDigestHasher implements ContentHasher {
+    private final MessageDigest messageDigest;
+
+    private MessageDigestHasher(MessageDigest messageDigest) {
+        this.messageDigest = messageDigest;
+    }
+
+    public static MessageDigestHasher of(String algorithm) {
+        try {
+            return new MessageDigestHasher(MessageDigest.getInstance(algorithm));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unknown hash algorithm: " + algorithm, e);
+        }
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        messageDigest.update(b, off, len);
+    }
+
+    @Override
+    public void update(byte b) {
+        messageDigest.update(b);
+    }
+
+    @Override
+    public void update(ByteBuffer buffer) {
+        messageDigest.update(buffer);
+    }
+
+    @Override
+    public byte[] digest() {
+        return messageDigest.digest();
+    }
+
+    @Override
+    public void reset() {
+        messageDigest.reset();
+    }
+}
@@ -0,0 +1,239 @@
+package org.teletronics.vsyrov.filestorage.common.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.springframework.lang.Nullable;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Sequential reader of a tar stream (ustar, GNU and pax). Only regular files are returned; directories,
+ * links and devices are skipped. Long names from GNU {@code L} records and pax {@code path} records are
+ * honoured, sizes in base-256 as well. The content of an entry has to be read before {@link #next()} is
+ * called again, whatever is left of it is skipped.
+ *
+ * @author vsyrov
+ */
+public class TarReader {
+    private static final int BLOCK = 512;
+    private static final int MAX_META_SIZE = 1024 * 1024;
+
+    private final InputStream in;
+    private long remaining;
+    private long padding;
+    @Nullable
+    private String pendingName;
+
+    public TarReader(InputStream in) {
+        this.in = requireNonNull(in, "The source InputStream cannot be null");
+    }
+
+    /**
+     * @return the next regular file, or {@code null} at the end of the archive
+     */
+    @Nullable
+    public Entry next() throws IOException {
+        skip(remaining + padding);
+        remaining = 0;
+        padding = 0;
+        while (true) {
+            byte[] header = in.readNBytes(BLOCK);
+            if (header.length == 0 || (header.length == BLOCK && isZero(header))) {
+                return null;
+            }
+            if (header.length < BLOCK) {
+                throw new IOException("Truncated tar header");
+            }
+            verifyChecksum(header);
+            long size = number(header, 124, 12);
+            byte type = header[156];
+            switch (type) {
+                case 'L' -> {
+                    pendingName = trimNul(new String(readMeta(size), StandardCharsets.UTF_8));
+                    continue;
+                }
+                case 'x' -> {
+                    String path = paxPath(readMeta(size));
+                    if (path != null) {
+                        pendingName = path;
+                    }
+                    continue;
+                }
+                case '0', 0, '7' -> {
+                    // regular file
+                }
+                default -> {
+                    skip(size + pad(size));
+                    pendingName = null;
+                    continue;
+                }
+            }
+            String name = pendingName != null ? pendingName : name(header);
+            pendingName = null;
+            remaining = size;
+            padding = pad(size);
+            return new Entry(name, size, new EntryStream());
+        }
+    }
+
+    private String name(byte[] header) {
+        String name = string(header, 0, 100);
+        boolean ustar = string(header, 257, 5).equals("ustar");
+        String prefix = ustar ? string(header, 345, 155) : "";
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    private byte[] readMeta(long size) throws IOException {
+        if (size > MAX_META_SIZE) {
+            throw new IOException("Tar metadata record too large: " + size);
+        }
+        byte[] data = in.readNBytes((int) size);
+        if (data.length < size) {
+            throw new IOException("Truncated tar metadata record");
+        }
+        skip(pad(size));
+        return data;
+    }
+
+    private void skip(long n) throws IOException {
+        if (n <= 0) {
+            return;
+        }
+        try {
+            in.skipNBytes(n);
+        } catch (EOFException e) {
+            throw new IOException("Truncated tar stream", e);
+        }
+    }
+
+    /**
+     * Pax records: {@code "<length> <key>=<value>\n"}; only {@code path} matters here.
+     */
+    @Nullable
+    private static String paxPath(byte[] data) {
+        int pos = 0;
+        String path = null;
+        while (pos < data.length) {
+            int space = pos;
+            while (space < data.length && data[space] != ' ') {
+                space++;
+            }
+            int length;
+            try {
+                length = Integer.parseInt(new String(data, pos, space - pos, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                return path;
+            }
+            if (length <= 0 || pos + length > data.length) {
+                return path;
+            }
+            String record = new String(data, space + 1, pos + length - space - 2, StandardCharsets.UTF_8);
+            if (record.startsWith("path=")) {
+                path = record.substring(5);
+            }
+            pos += length;
+        }
+        return path;
+    }
+
+    private static void verifyChecksum(byte[] header) throws IOException {
+        long expected = number(header, 148, 8);
+        long sum = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            sum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xff);
+        }
+        if (sum != expected) {
+            throw new IOException("Not a tar stream: header checksum mismatch");
+        }
+    }
+
+    /**
+     * Octal, or base-256 (big-endian) when the high bit of the first byte is set.
+     */
+    private static long number(byte[] header, int offset, int length) throws IOException {
+        if ((header[offset] & 0x80) != 0) {
+            long value = header[offset] & 0x7f;
+            for (int i = offset + 1; i < offset + length; i++) {
+                value = (value << 8) | (header[i] & 0xff);
+            }
+            return value;
+        }
+        String digits = string(header, offset, length).trim();
+        if (digits.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(digits, 8);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number in tar header: " + digits, e);
+        }
+    }
+
+    private static String string(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static String trimNul(String s) {
+        int nul = s.indexOf('\0');
+        return nul < 0 ? s : s.substring(0, nul);
+    }
+
+    private static long pad(long size) {
+        return (BLOCK - size % BLOCK) % BLOCK;
+    }
+
+    private static boolean isZero(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A regular file of the archive; {@code content} ends with the entry.
+     */
+    public record Entry(String name, long size, InputStream content) {
+    }
+
+    private class EntryStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Truncated tar entry");
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw new IOException("Truncated tar entry");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            // the rest of the entry is skipped by the next call to next()
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.teletronics.vsyrov.filestorage.common.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Takes one permit from a shared {@link TokenBucket} per byte read, so all streams wrapped with the same
+ * bucket together stay under its rate.
+ *
+ * @author vsyrov
+ */
+public class ThrottledInputStream extends FilterInputStream {
+    private final TokenBucket bucket;
+
+    public ThrottledInputStream(InputStream in, TokenBucket bucket) {
+        super(in);
+        this.bucket = bucket;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            take(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            take(n);
+        }
+        return n;
+    }
+
+    private void take(long n) throws InterruptedIOException {
+        try {
+            bucket.acquire(n);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttling upload");
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.teletronics.vsyrov.filestorage.common.io;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking token bucket shared by the threads of one throttled activity (GC removals, upload writes).
+ * A rate of zero or less means unlimited. Up to one second of unused rate can be spent as a burst.
+ *
+ * @author vsyrov
+ */
+public class TokenBucket {
+    private final double perSecond;
+    private double available;
+    private long refilledAt = System.nanoTime();
+
+    public TokenBucket(double perSecond) {
+        this.perSecond = perSecond;
+        this.available = perSecond;
+    }
+
+    public void acquire(long permits) throws InterruptedException {
+        if (perSecond <= 0 || permits <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            available = Math.min(perSecond, available + (now - refilledAt) / 1e9 * perSecond);
+            refilledAt = now;
+            // go into debt so a request larger than the bucket still passes, just later
+            available -= permits;
+            waitNanos = available >= 0 ? 0 : (long) (-available / perSecond * 1e9);
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
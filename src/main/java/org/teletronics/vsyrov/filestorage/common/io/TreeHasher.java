@@ -0,0 +1,216 @@
+package org.teletronics.vsyrov.filestorage.common.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.stream.IntStream;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Two-level Merkle hash: the content is cut into {@link #CHUNK_SIZE} leaves, every leaf is hashed on its own
+ * and the root is the hash of the leaf digests followed by the content length. Leaves are independent, so they
+ * are hashed on the common fork-join pool while the caller keeps feeding bytes, and a file on disk can be hashed
+ * by all cores at once ({@link #hashFile}). Both paths produce the same digest.
+ * <p>
+ * Memory is bounded for the whole process rather than per upload: besides the chunk it is filling, a hasher
+ * only hands a chunk to the pool while one of the process-wide slots (twice the pool parallelism) is free,
+ * and buffers are reused through a shared free list.
+ * <p>
+ * Leaf and root inputs are prefixed with different marker bytes, so a leaf can never be mistaken for a root.
+ *
+ * @author vsyrov
+ */
+public class TreeHasher implements ContentHasher {
+    public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final byte LEAF = 0;
+    private static final byte ROOT = 1;
+    /**
+     * Chunks hashed in the background by all hashers of the process together; when none is free the caller
+     * hashes its chunk itself, which also slows down the upload feeding it.
+     */
+    private static final int MAX_IN_FLIGHT = Math.max(2, ForkJoinPool.getCommonPoolParallelism() * 2);
+    private static final Semaphore IN_FLIGHT = new Semaphore(MAX_IN_FLIGHT);
+    /**
+     * Chunk buffers nobody uses right now, taken for the next chunk instead of allocating 4 MiB again.
+     */
+    private static final BlockingQueue<byte[]> FREE = new ArrayBlockingQueue<>(MAX_IN_FLIGHT);
+
+    private final String digestName;
+    private final Deque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+    private final List<byte[]> leaves = new ArrayList<>();
+    private byte[] current;
+    private int filled;
+    private long length;
+
+    public TreeHasher(String digestName) {
+        this.digestName = digestName;
+        newDigest(digestName);
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (current == null) {
+                current = takeBuffer();
+            }
+            int n = Math.min(len, CHUNK_SIZE - filled);
+            System.arraycopy(b, off, current, filled, n);
+            filled += n;
+            length += n;
+            off += n;
+            len -= n;
+            if (filled == CHUNK_SIZE) {
+                submitCurrent();
+            }
+        }
+    }
+
+    @Override
+    public byte[] digest() {
+        if (filled > 0 || (leaves.isEmpty() && pending.isEmpty())) {
+            submitCurrent();
+        }
+        while (!pending.isEmpty()) {
+            completeOldest();
+        }
+        byte[] root = root(digestName, leaves, length);
+        reset();
+        return root;
+    }
+
+    /**
+     * Leaves still being hashed are not cancelled: they finish on their own and hand back their buffer.
+     */
+    @Override
+    public void reset() {
+        pending.clear();
+        leaves.clear();
+        if (current != null) {
+            recycle(current);
+        }
+        current = null;
+        filled = 0;
+        length = 0;
+    }
+
+    /**
+     * Hashes a file with positional reads, one leaf per task, on the common fork-join pool.
+     */
+    public static byte[] hashFile(Path file, String digestName) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            long size = channel.size();
+            int chunks = (int) Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            List<byte[]> leaves = IntStream.range(0, chunks)
+                    .parallel()
+                    .mapToObj(i -> readLeaf(channel, (long) i * CHUNK_SIZE, size, digestName))
+                    .toList();
+            return root(digestName, leaves, size);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void submitCurrent() {
+        byte[] chunk = current == null ? new byte[0] : current;
+        int chunkLength = filled;
+        current = null;
+        filled = 0;
+        while (!pending.isEmpty() && pending.peek().isDone()) {
+            completeOldest();
+        }
+        if (chunk.length == CHUNK_SIZE && IN_FLIGHT.tryAcquire()) {
+            pending.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return leaf(digestName, chunk, chunkLength);
+                } finally {
+                    recycle(chunk);
+                    IN_FLIGHT.release();
+                }
+            }));
+        } else {
+            pending.add(CompletableFuture.completedFuture(leaf(digestName, chunk, chunkLength)));
+            recycle(chunk);
+        }
+    }
+
+    private void completeOldest() {
+        try {
+            leaves.add(pending.poll().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while hashing", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Leaf hashing failed", e.getCause());
+        }
+    }
+
+    private static byte[] readLeaf(FileChannel channel, long position, long size, String digestName) {
+        byte[] chunk = takeBuffer();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, (int) Math.min(CHUNK_SIZE, size - position));
+            long pos = position;
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, pos);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of file at position " + pos);
+                }
+                pos += n;
+            }
+            return leaf(digestName, chunk, buffer.position());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            recycle(chunk);
+        }
+    }
+
+    private static byte[] takeBuffer() {
+        byte[] chunk = FREE.poll();
+        return chunk != null ? chunk : new byte[CHUNK_SIZE];
+    }
+
+    private static void recycle(byte[] chunk) {
+        if (chunk.length == CHUNK_SIZE) {
+            FREE.offer(chunk);
+        }
+    }
+
+    private static byte[] leaf(String digestName, byte[] chunk, int len) {
+        MessageDigest md = newDigest(digestName);
+        md.update(LEAF);
+        md.update(chunk, 0, len);
+        return md.digest();
+    }
+
+    private static byte[] root(String digestName, List<byte[]> leaves, long length) {
+        MessageDigest md = newDigest(digestName);
+        md.update(ROOT);
+        leaves.forEach(md::update);
+        md.update(ByteBuffer.allocate(Long.BYTES).putLong(length).array());
+        return md.digest();
+    }
+
+    private static MessageDigest newDigest(String digestName) {
+        try {
+            return MessageDigest.getInstance(digestName);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unknown hash algorithm: " + digestName, e);
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+package org.teletronics.vsyrov.filestorage.common.model;
+
+import java.time.Instant;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * One stored CAS object, keyed by its content hash. {@code refCount} is the number of {@link FileMetadata}
+ * documents pointing at it and is only changed with {@code $inc}; {@code deleting} is set while the object
+ * is being physically removed, so nobody can take a new reference in between. {@code data} holds the whole
+ * content of a tiny object kept here instead of in the CAS, and goes away with the blob.
+ *
+ * @author vsyrov
+ */
+@Data
+@Builder(toBuilder = true)
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "blobs")
+public class Blob {
+    @Id
+    String hash;
+    long refCount;
+    long size;
+    String location;
+    boolean deleting;
+    byte[] data;
+    Instant createdTs;
+    Instant updatedTs;
+}
@@ -13,6 +13,7 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 @Data
@@ -22,6 +23,19 @@ import org.springframework.data.mongodb.core.mapping.Document;
 @Document(collection = "metadata")
 @CompoundIndex(name = "uniq_filename_per_owner", def = "{'ownerId': 1, 'fileName': 1}", unique = true)
 @CompoundIndex(name = "uniq_hash_per_owner", def = "{'ownerId': 1, 'hash': 1}", unique = true)
+// listings: equality on visibility or owner (and tag), then the sort key with _id as tie-breaker
+@CompoundIndex(name = "vis_tags_fileName", def = "{'visibility': 1, 'tags': 1, 'fileName': 1, '_id': 1}")
+@CompoundIndex(name = "vis_tags_createdTs", def = "{'visibility': 1, 'tags': 1, 'createdTs': 1, '_id': 1}")
+@CompoundIndex(name = "vis_tags_size", def = "{'visibility': 1, 'tags': 1, 'size': 1, '_id': 1}")
+@CompoundIndex(name = "vis_fileName", def = "{'visibility': 1, 'fileName': 1, '_id': 1}")
+@CompoundIndex(name = "vis_createdTs", def = "{'visibility': 1, 'createdTs': 1, '_id': 1}")
+@CompoundIndex(name = "vis_size", def = "{'visibility': 1, 'size': 1, '_id': 1}")
+@CompoundIndex(name = "owner_tags_fileName", def = "{'ownerId': 1, 'tags': 1, 'fileName': 1, '_id': 1}")
+@CompoundIndex(name = "owner_tags_createdTs", def = "{'ownerId': 1, 'tags': 1, 'createdTs': 1, '_id': 1}")
+@CompoundIndex(name = "owner_tags_size", def = "{'ownerId': 1, 'tags': 1, 'size': 1, '_id': 1}")
+@CompoundIndex(name = "owner_fileName", def = "{'ownerId': 1, 'fileName': 1, '_id': 1}")
+@CompoundIndex(name = "owner_createdTs", def = "{'ownerId': 1, 'createdTs': 1, '_id': 1}")
+@CompoundIndex(name = "owner_size", def = "{'ownerId': 1, 'size': 1, '_id': 1}")
 public class FileMetadata {
     @Id
     String id;
@@ -30,7 +44,29 @@ public class FileMetadata {
     String contentType;
     VisibilityType visibility;
     List<String> tags;
+    /**
+     * Indexed on its own for lookups by content (garbage collection, reference counting fallbacks);
+     * {@code uniq_hash_per_owner} only helps when the owner is known.
+     */
+    @Indexed
     String hash;
+    /**
+     * Algorithm of {@link #hash}; missing on documents written before it was recorded, which are SHA-256.
+     */
+    HashAlgorithm hashAlgorithm;
     long size;
     Instant createdTs;
+    /**
+     * Content is served from the {@link Blob} document ({@code data}) rather than the CAS.
+     */
+    boolean inline;
+    /**
+     * Set while a bulk delete owns the document: single deletes and rehashing leave it alone, so its blob
+     * reference is released exactly once. Left over by a crash, it is taken over by any instance once
+     * {@code deleteClaimTs} is older than the claim lease.
+     */
+    @Indexed(sparse = true)
+    String deleteClaim;
+    @Indexed(sparse = true)
+    Instant deleteClaimTs;
 }
\ No newline at end of file
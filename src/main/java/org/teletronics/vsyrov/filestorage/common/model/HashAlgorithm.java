@@ -0,0 +1,60 @@
+package org.teletronics.vsyrov.filestorage.common.model;
+
+import java.util.Arrays;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.teletronics.vsyrov.filestorage.common.io.ContentHasher;
+import org.teletronics.vsyrov.filestorage.common.io.MessageDigestHasher;
+import org.teletronics.vsyrov.filestorage.common.io.TreeHasher;
+
+/**
+ * Content-hash algorithms. The algorithm is part of the content key: {@code SHA256} keys are the bare hex digest
+ * (the original layout), every other algorithm is stored as {@code <id>:<hex>}, so objects hashed with different
+ * algorithms can live side by side.
+ *
+ * @author vsyrov
+ */
+@Getter
+@RequiredArgsConstructor
+public enum HashAlgorithm {
+    SHA256("sha256", "SHA-256", false),
+    /**
+     * Faster than SHA-256 on 64-bit CPUs without SHA extensions.
+     */
+    SHA512_256("sha512-256", "SHA-512/256", false),
+    /**
+     * Chunked Merkle hash over SHA-256 leaves, leaves are hashed in parallel.
+     */
+    TREE_SHA256("tree-sha256", "SHA-256", true);
+
+    private static final char KEY_SEPARATOR = ':';
+
+    private final String id;
+    private final String digestName;
+    private final boolean tree;
+
+    public ContentHasher newHasher() {
+        return tree ? new TreeHasher(digestName) : MessageDigestHasher.of(digestName);
+    }
+
+    public String key(String hex) {
+        return this == SHA256 ? hex : id + KEY_SEPARATOR + hex;
+    }
+
+    public static HashAlgorithm fromId(String id) {
+        return Arrays.stream(values())
+                .filter(a -> a.id.equalsIgnoreCase(id))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown hash algorithm: " + id));
+    }
+
+    public static HashAlgorithm ofKey(String contentKey) {
+        int i = contentKey.indexOf(KEY_SEPARATOR);
+        return i < 0 ? SHA256 : fromId(contentKey.substring(0, i));
+    }
+
+    public static String hexOf(String contentKey) {
+        return contentKey.substring(contentKey.indexOf(KEY_SEPARATOR) + 1);
+    }
+}
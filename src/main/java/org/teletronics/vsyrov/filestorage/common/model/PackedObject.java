@@ -0,0 +1,32 @@
+package org.teletronics.vsyrov.filestorage.common.model;
+
+import java.time.Instant;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Where a small CAS object lives inside a pack segment: {@code length} content bytes starting at
+ * {@code offset} of {@code segment}, keyed by the content hash.
+ *
+ * @author vsyrov
+ */
+@Data
+@Builder(toBuilder = true)
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "packed_objects")
+public class PackedObject {
+    @Id
+    String hash;
+    @Indexed
+    String segment;
+    long offset;
+    long length;
+    Instant createdTs;
+}
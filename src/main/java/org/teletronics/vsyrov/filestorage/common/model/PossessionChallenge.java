@@ -0,0 +1,17 @@
+package org.teletronics.vsyrov.filestorage.common.model;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Byte ranges a client has to hash to prove it holds the content it claims by hash.
+ * The proof is the hex SHA-256 over the ranges concatenated in the given order; {@code challenge}
+ * is an opaque signed token to send back with it.
+ *
+ * @author vsyrov
+ */
+public record PossessionChallenge(String challenge, List<ByteRange> ranges, Instant expiresAt) {
+
+    public record ByteRange(long offset, long length) {
+    }
+}
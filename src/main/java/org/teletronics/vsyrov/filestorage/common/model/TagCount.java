@@ -0,0 +1,29 @@
+package org.teletronics.vsyrov.filestorage.common.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Number of files carrying {@code tag} in one scope: {@code public} for public files of all owners,
+ * {@code private:<ownerId>} for the private files of one owner. Only changed with {@code $inc}.
+ *
+ * @author vsyrov
+ */
+@Data
+@Builder(toBuilder = true)
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "tag_counts")
+@CompoundIndex(name = "scope_tag_uq", def = "{'scope': 1, 'tag': 1}", unique = true)
+public class TagCount {
+    @Id
+    String id;
+    String scope;
+    String tag;
+    long count;
+}
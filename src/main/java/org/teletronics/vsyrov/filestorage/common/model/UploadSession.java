@@ -0,0 +1,37 @@
+package org.teletronics.vsyrov.filestorage.common.model;
+
+import java.time.Instant;
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Resumable upload in progress. Mongo drops the document by itself once {@code expiresAt} passes;
+ * the part files left behind are reaped by {@code UploadSessionService}.
+ *
+ * @author vsyrov
+ */
+@Data
+@Builder(toBuilder = true)
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "upload_sessions")
+public class UploadSession {
+    @Id
+    String id;
+    String ownerId;
+    String fileName;
+    String contentType;
+    VisibilityType visibility;
+    List<String> tags;
+    Instant createdTs;
+    @Indexed(name = "ttl_expires_at", expireAfter = "0s")
+    Instant expiresAt;
+    boolean completing;
+}
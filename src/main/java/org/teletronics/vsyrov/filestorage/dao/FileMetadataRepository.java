@@ -1,26 +1,44 @@
 package org.teletronics.vsyrov.filestorage.dao;
 
+import java.util.List;
+import java.util.stream.Stream;
+
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.repository.Meta;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
 import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.HashAlgorithm;
 import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
 
 /**
  * @author vsyrov
  */
-public interface FileMetadataRepository extends MongoRepository<FileMetadata, String> {
+public interface FileMetadataRepository extends MongoRepository<FileMetadata, String>, FileMetadataRepositoryCustom {
     boolean existsByOwnerIdAndFileName(String userId, String fileName);
 
     boolean existsByOwnerIdAndHash(String userId, String contentHash);
 
+    @Query(fields = LISTING_FIELDS)
     Page<FileMetadata> findByOwnerId(String userId, Pageable pageable);
 
+    @Query(fields = LISTING_FIELDS)
     Page<FileMetadata> findByOwnerIdAndTagsContains(String userId, String tags, Pageable pageable);
 
+    @Query(fields = LISTING_FIELDS)
     Page<FileMetadata> findByVisibility(VisibilityType visibility, Pageable pageable);
 
+    @Query(fields = LISTING_FIELDS)
     Page<FileMetadata> findByVisibilityAndTagsContains(VisibilityType visibility, String tags, Pageable pageable);
 
     long countByHash(String hash);
+
+    @Meta(cursorBatchSize = 1000)
+    Stream<FileMetadata> streamByOwnerIdOrderByIdAsc(String ownerId);
+
+    @Meta(cursorBatchSize = 1000)
+    Stream<FileMetadata> streamByVisibilityOrderByIdAsc(VisibilityType visibility);
+
+    List<FileMetadata> findByIdGreaterThanAndHashAlgorithmNot(String id, HashAlgorithm algorithm, Pageable pageable);
 }
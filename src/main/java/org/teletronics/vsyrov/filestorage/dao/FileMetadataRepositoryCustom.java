@@ -0,0 +1,31 @@
+package org.teletronics.vsyrov.filestorage.dao;
+
+import java.util.List;
+
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.lang.Nullable;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+
+/**
+ * @author vsyrov
+ */
+public interface FileMetadataRepositoryCustom {
+    /**
+     * Projection of listing queries: the fields {@code FileDto} needs, without hash and algorithm.
+     */
+    String LISTING_FIELDS = "{'ownerId': 1, 'fileName': 1, 'contentType': 1, 'visibility': 1, 'tags': 1, "
+            + "'size': 1, 'createdTs': 1}";
+
+    /**
+     * Keyset page: documents matching {@code filter} that sort after ({@code afterValue}, {@code afterId})
+     * in {@code order} with {@code _id} as tie-breaker, projected to {@link #LISTING_FIELDS}. No count, no skip.
+     */
+    List<FileMetadata> findAfter(
+            Criteria filter,
+            Sort.Order order,
+            @Nullable Object afterValue,
+            @Nullable String afterId,
+            int limit
+    );
+}
@@ -0,0 +1,45 @@
+package org.teletronics.vsyrov.filestorage.dao;
+
+import java.util.List;
+
+import lombok.RequiredArgsConstructor;
+import org.bson.Document;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.BasicQuery;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.lang.Nullable;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+
+/**
+ * @author vsyrov
+ */
+@RequiredArgsConstructor
+public class FileMetadataRepositoryCustomImpl implements FileMetadataRepositoryCustom {
+    private final MongoTemplate mongo;
+
+    @Override
+    public List<FileMetadata> findAfter(
+            Criteria filter,
+            Sort.Order order,
+            @Nullable Object afterValue,
+            @Nullable String afterId,
+            int limit
+    ) {
+        Criteria criteria = filter;
+        if (afterId != null) {
+            String field = order.getProperty();
+            boolean asc = order.isAscending();
+            Criteria beyondValue = asc ? Criteria.where(field).gt(afterValue) : Criteria.where(field).lt(afterValue);
+            Criteria sameValue = asc
+                    ? Criteria.where(field).is(afterValue).and("_id").gt(afterId)
+                    : Criteria.where(field).is(afterValue).and("_id").lt(afterId);
+            criteria = new Criteria().andOperator(filter, new Criteria().orOperator(beyondValue, sameValue));
+        }
+        Query query = new BasicQuery(criteria.getCriteriaObject(), Document.parse(LISTING_FIELDS))
+                .with(Sort.by(order, new Sort.Order(order.getDirection(), "_id")))
+                .limit(limit);
+        return mongo.find(query, FileMetadata.class);
+    }
+}
@@ -0,0 +1,39 @@
+package org.teletronics.vsyrov.filestorage.dao;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.repository.Meta;
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import static org.teletronics.vsyrov.filestorage.dao.FileMetadataRepositoryCustom.LISTING_FIELDS;
+
+/**
+ * Non-blocking read side of {@link FileMetadataRepository} for the reactive API.
+ *
+ * @author vsyrov
+ */
+public interface ReactiveFileMetadataRepository extends ReactiveMongoRepository<FileMetadata, String> {
+    Mono<Boolean> existsByOwnerIdAndFileName(String userId, String fileName);
+
+    @Query(fields = LISTING_FIELDS)
+    Flux<FileMetadata> findByOwnerId(String userId, Pageable pageable);
+
+    @Query(fields = LISTING_FIELDS)
+    Flux<FileMetadata> findByOwnerIdAndTagsContains(String userId, String tags, Pageable pageable);
+
+    @Query(fields = LISTING_FIELDS)
+    Flux<FileMetadata> findByVisibility(VisibilityType visibility, Pageable pageable);
+
+    @Query(fields = LISTING_FIELDS)
+    Flux<FileMetadata> findByVisibilityAndTagsContains(VisibilityType visibility, String tags, Pageable pageable);
+
+    @Meta(cursorBatchSize = 1000)
+    Flux<FileMetadata> findByOwnerIdOrderByIdAsc(String ownerId);
+
+    @Meta(cursorBatchSize = 1000)
+    Flux<FileMetadata> findByVisibilityOrderByIdAsc(VisibilityType visibility);
+}
@@ -0,0 +1,10 @@
+package org.teletronics.vsyrov.filestorage.dao;
+
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.teletronics.vsyrov.filestorage.common.model.UploadSession;
+
+/**
+ * @author vsyrov
+ */
+public interface UploadSessionRepository extends MongoRepository<UploadSession, String> {
+}
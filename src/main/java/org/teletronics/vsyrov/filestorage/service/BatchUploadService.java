@@ -0,0 +1,317 @@
+package org.teletronics.vsyrov.filestorage.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.Nullable;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import org.teletronics.vsyrov.filestorage.common.exception.BadRequestException;
+import org.teletronics.vsyrov.filestorage.common.io.TarReader;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.service.FileService.StagedContent;
+import org.teletronics.vsyrov.filestorage.service.MetadataService.InsertFailure;
+import org.teletronics.vsyrov.filestorage.service.upload.ContentReceiver;
+import org.teletronics.vsyrov.filestorage.service.upload.ReceivedContent;
+import org.teletronics.vsyrov.filestorage.service.utility.FileProcessingUtility;
+
+/**
+ * Uploads many files in one request, from the parts of a multipart body or the entries of a tar stream.
+ * <p>
+ * Items go through the same steps as a single upload, but each step runs for the whole batch at once:
+ * names and content are checked against the owner's files with one query each, parts are received and
+ * placed in the CAS on a pool of {@code filestorage.batch.parallelism} threads, and all metadata is
+ * written with one unordered bulk insert. A failing item does not fail the batch; every item gets its
+ * own result. Tar entries arrive one after another on a single stream, so only their placement runs
+ * in parallel.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Service
+public class BatchUploadService {
+    private final FileService fileService;
+    private final MetadataService metadataService;
+    private final BlobService blobService;
+    private final ContentReceiver contentReceiver;
+    private final int maxItems;
+    private final ExecutorService workers;
+
+    public BatchUploadService(
+            FileService fileService,
+            MetadataService metadataService,
+            BlobService blobService,
+            ContentReceiver contentReceiver,
+            @Value("${filestorage.batch.parallelism:8}") int parallelism,
+            @Value("${filestorage.batch.max-items:1000}") int maxItems
+    ) {
+        this.fileService = fileService;
+        this.metadataService = metadataService;
+        this.blobService = blobService;
+        this.contentReceiver = contentReceiver;
+        this.maxItems = maxItems;
+        var threadFactory = new CustomizableThreadFactory("batch-upload-");
+        threadFactory.setDaemon(true);
+        this.workers = Executors.newFixedThreadPool(Math.max(1, parallelism), threadFactory);
+    }
+
+    public List<ItemResult> uploadParts(
+            String ownerId,
+            List<MultipartFile> parts,
+            VisibilityType visibility,
+            @Nullable List<String> tags
+    ) {
+        validate(visibility, parts.size());
+        List<Item> items = new ArrayList<>(parts.size());
+        for (int i = 0; i < parts.size(); i++) {
+            MultipartFile part = parts.get(i);
+            items.add(new Item(i, FileProcessingUtility.defineFileName(part, null), part.getContentType()));
+        }
+        rejectDuplicateNames(ownerId, items);
+        parallel(pending(items), item -> {
+            MultipartFile part = parts.get(item.index);
+            try (InputStream in = part.getInputStream()) {
+                item.received = receive(in, part.getSize());
+            }
+        });
+        return commit(ownerId, items, visibility, tags);
+    }
+
+    /**
+     * Regular files of the archive become files named by their path in it; directories and links are skipped.
+     */
+    public List<ItemResult> uploadTar(
+            String ownerId,
+            InputStream body,
+            VisibilityType visibility,
+            @Nullable List<String> tags
+    ) {
+        validate(visibility, 0);
+        List<Item> items = new ArrayList<>();
+        try {
+            TarReader tar = new TarReader(body);
+            TarReader.Entry entry;
+            while ((entry = tar.next()) != null) {
+                if (items.size() == maxItems) {
+                    throw new BadRequestException("A batch holds at most " + maxItems + " files");
+                }
+                Item item = new Item(items.size(), StringUtils.removeStart(entry.name(), "./"), null);
+                items.add(item);
+                if (item.filename.isBlank()) {
+                    item.fail(ItemStatus.ERROR, "Empty entry name");
+                    continue;
+                }
+                item.received = receive(entry.content(), entry.size());
+            }
+        } catch (IOException e) {
+            discard(items);
+            throw new BadRequestException("Unreadable tar stream: " + e.getMessage());
+        } catch (RuntimeException e) {
+            discard(items);
+            throw e;
+        }
+        rejectDuplicateNames(ownerId, items);
+        return commit(ownerId, items, visibility, tags);
+    }
+
+    private void validate(VisibilityType visibility, int size) {
+        if (visibility == null) {
+            throw new BadRequestException("Visibility is required");
+        }
+        if (size > maxItems) {
+            throw new BadRequestException("A batch holds at most " + maxItems + " files");
+        }
+    }
+
+    private ReceivedContent receive(InputStream in, long declaredSize) throws IOException {
+        // content that will live in its blob is never written to the temp area
+        return declaredSize > 0 && blobService.canInline(declaredSize)
+                ? contentReceiver.receiveSmall(in, (int) blobService.inlineMaxSize())
+                : contentReceiver.receive(in);
+    }
+
+    /**
+     * Names taken by the owner already, or by an earlier item of the batch.
+     */
+    private void rejectDuplicateNames(String ownerId, List<Item> items) {
+        List<Item> pending = pending(items);
+        Set<String> taken = new HashSet<>(metadataService.existingNamesForUser(ownerId,
+                pending.stream().map(item -> item.filename).toList()));
+        for (Item item : pending) {
+            if (!taken.add(item.filename)) {
+                item.fail(ItemStatus.DUPLICATE, "Filename already exists for this user");
+            }
+        }
+    }
+
+    private List<ItemResult> commit(
+            String ownerId,
+            List<Item> items,
+            VisibilityType visibility,
+            @Nullable List<String> tags
+    ) {
+        List<String> normTags = FileProcessingUtility.normalizeTags(tags);
+        List<Item> received = pending(items);
+        Set<String> stored = new HashSet<>(metadataService.existingContentForUser(ownerId,
+                received.stream().map(item -> item.received.hash()).toList()));
+        for (Item item : received) {
+            if (!stored.add(item.received.hash())) {
+                item.fail(ItemStatus.DUPLICATE, "Same content already uploaded by this user");
+            }
+        }
+
+        parallel(pending(items), item -> {
+            ReceivedContent content = item.received;
+            item.received = null; // stage consumes the temp file whatever happens
+            item.staged = fileService.stage(
+                    content.temp(), content.hash(), content.size(), content.head(), item.clientContentType);
+            item.hash = content.hash();
+            item.size = content.size();
+        });
+
+        List<Item> staged = pending(items);
+        List<FileMetadata> docs = staged.stream()
+                .map(item -> MetadataService.newMetadata(ownerId, item.filename, item.staged.contentType(),
+                        item.size, item.hash, normTags, visibility, item.staged.inline()))
+                .toList();
+        List<InsertFailure> failures;
+        try {
+            failures = metadataService.insertAll(docs);
+        } catch (RuntimeException e) {
+            log.warn("Batch insert of {} files failed", docs.size(), e);
+            failures = docs.stream().map(doc -> InsertFailure.ERROR).toList();
+        }
+        for (int i = 0; i < staged.size(); i++) {
+            Item item = staged.get(i);
+            InsertFailure failure = failures.get(i);
+            if (failure == null) {
+                item.result = new ItemResult(item.index, item.filename, ItemStatus.CREATED, docs.get(i), null);
+                continue;
+            }
+            blobService.releaseQuietly(item.hash);
+            if (failure == InsertFailure.DUPLICATE) {
+                item.fail(ItemStatus.DUPLICATE, "Duplicate by name or content");
+            } else {
+                item.fail(ItemStatus.ERROR, "Failed to save metadata");
+            }
+        }
+        discard(items);
+        List<ItemResult> results = items.stream().map(item -> item.result).toList();
+        log.info("Batch of {} files for {}: {} created", results.size(), ownerId,
+                results.stream().filter(r -> r.status() == ItemStatus.CREATED).count());
+        return results;
+    }
+
+    /**
+     * Runs {@code task} for every item on the workers and waits for all of them; a failure only marks its item.
+     */
+    private void parallel(List<Item> items, ItemTask task) {
+        CompletableFuture<?>[] futures = items.stream()
+                .map(item -> CompletableFuture.runAsync(() -> {
+                    try {
+                        task.run(item);
+                    } catch (Exception e) {
+                        log.debug("Batch item {} ({}) failed", item.index, item.filename, e);
+                        item.fail(ItemStatus.ERROR, e.getMessage() != null ? e.getMessage() : e.toString());
+                    }
+                }, workers))
+                .toArray(CompletableFuture[]::new);
+        // not interruptible: every started item has to finish before its outcome is evaluated
+        CompletableFuture.allOf(futures).join();
+    }
+
+    private static List<Item> pending(List<Item> items) {
+        return items.stream().filter(item -> item.result == null).toList();
+    }
+
+    /**
+     * Drops temp files of items that ended before their content was staged.
+     */
+    private static void discard(List<Item> items) {
+        items.forEach(item -> {
+            if (item.received != null && item.received.temp() != null) {
+                deleteQuietly(item.received.temp());
+            }
+            item.received = null;
+        });
+    }
+
+    private static void deleteQuietly(Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (Exception ignore) {
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        workers.shutdownNow();
+    }
+
+    @FunctionalInterface
+    private interface ItemTask {
+        void run(Item item) throws Exception;
+    }
+
+    /**
+     * Working state of one item; written by one worker at a time and read after the step's join.
+     */
+    private static final class Item {
+        final int index;
+        final String filename;
+        @Nullable
+        final String clientContentType;
+        @Nullable
+        volatile ReceivedContent received;
+        @Nullable
+        volatile StagedContent staged;
+        @Nullable
+        volatile String hash;
+        volatile long size;
+        @Nullable
+        volatile ItemResult result;
+
+        Item(int index, String filename, @Nullable String clientContentType) {
+            this.index = index;
+            this.filename = filename;
+            this.clientContentType = clientContentType;
+        }
+
+        void fail(ItemStatus status, String error) {
+            result = new ItemResult(index, filename, status, null, error);
+        }
+    }
+
+    public enum ItemStatus {
+        CREATED,
+        DUPLICATE,
+        ERROR
+    }
+
+    /**
+     * Outcome of one item, in request order; {@code file} is set for {@link ItemStatus#CREATED} only.
+     */
+    public record ItemResult(
+            int index,
+            String filename,
+            ItemStatus status,
+            @Nullable FileMetadata file,
+            @Nullable String error
+    ) {
+    }
+}
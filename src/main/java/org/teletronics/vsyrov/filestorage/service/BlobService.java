@@ -0,0 +1,391 @@
+package org.teletronics.vsyrov.filestorage.service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.teletronics.vsyrov.filestorage.common.exception.UnexpectedStorageException;
+import org.teletronics.vsyrov.filestorage.common.model.Blob;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.service.utility.FileProcessingUtility;
+import org.teletronics.vsyrov.filestorage.storage.ContentStorageService;
+
+/**
+ * Reference counts of CAS objects in the {@code blobs} collection.
+ * <p>
+ * A reference is {@link #acquire acquired} before content is moved into the CAS and before its metadata is
+ * saved, and {@link #release released} after the metadata is gone. The object is physically removed only by
+ * whoever flips {@code deleting} on a blob with no references; while that flag is set, acquirers back off,
+ * so an upload can never race a delete of the same content.
+ * <p>
+ * Blobs of files stored before the collection existed are backfilled from the metadata on the first startup
+ * that finds no completion marker in {@code migrations} ({@code $max}, so running it again or next to live
+ * traffic never lowers a count).
+ * <p>
+ * Content up to {@code filestorage.inline.max-size} is kept in the blob itself ({@code data}) instead of
+ * the CAS; such a blob is created, shared and reclaimed exactly like any other, its content just disappears
+ * with the document.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Service
+public class BlobService implements InitializingBean {
+    private static final int ACQUIRE_ATTEMPTS = 50;
+    private static final long ACQUIRE_BACKOFF_MILLIS = 20;
+    private static final int BACKFILL_BATCH = 1000;
+    private static final String INLINE_LOCATION = "inline";
+    private static final String MIGRATIONS = "migrations";
+    private static final String BACKFILL_MARKER = "blob-backfill";
+
+    private final MongoTemplate mongo;
+    private final ContentStorageService contentStorageService;
+    private final MetadataService metadataService;
+    private final boolean backfillOnStartup;
+    private final long inlineMaxSize;
+
+    public BlobService(
+            MongoTemplate mongo,
+            ContentStorageService contentStorageService,
+            MetadataService metadataService,
+            @Value("${filestorage.blobs.backfill-on-startup:true}") boolean backfillOnStartup,
+            @Value("${filestorage.inline.max-size:0B}") DataSize inlineMaxSize
+    ) {
+        this.mongo = mongo;
+        this.contentStorageService = contentStorageService;
+        this.metadataService = metadataService;
+        this.backfillOnStartup = backfillOnStartup;
+        // inline content is taken from the captured head, so it can never be larger than that
+        this.inlineMaxSize = Math.min(inlineMaxSize.toBytes(), FileProcessingUtility.CONTENT_HEAD_SIZE);
+    }
+
+    /**
+     * Runs before the web server starts, so no request sees a hash without its blob.
+     */
+    @Override
+    public void afterPropertiesSet() {
+        finishInterruptedDeletes();
+        Query done = Query.query(Criteria.where("_id").is(BACKFILL_MARKER));
+        if (backfillOnStartup && !mongo.exists(done, MIGRATIONS)) {
+            backfill();
+            mongo.save(new Document("_id", BACKFILL_MARKER).append("completedTs", Instant.now()), MIGRATIONS);
+        }
+    }
+
+    /**
+     * Takes one reference on {@code hash}, creating the blob if needed.
+     *
+     * @return the blob after the increment
+     * @throws UnexpectedStorageException when the object stays in deletion for too long
+     */
+    public Blob acquire(String hash, long size) {
+        return acquire(hash, size, null);
+    }
+
+    /**
+     * Like {@link #acquire(String, long)}; a blob created by this call keeps {@code inlineData} as its content.
+     * An existing blob is left as it is, so the caller checks {@link Blob#getData()} of the result to learn
+     * whether the content really is inline.
+     */
+    public Blob acquire(String hash, long size, @Nullable byte[] inlineData) {
+        Instant now = Instant.now();
+        for (int attempt = 0; attempt < ACQUIRE_ATTEMPTS; attempt++) {
+            try {
+                Update update = new Update()
+                        .inc("refCount", 1)
+                        .set("updatedTs", now)
+                        .setOnInsert("size", size)
+                        .setOnInsert("location", inlineData != null ? INLINE_LOCATION : location(hash))
+                        .setOnInsert("createdTs", now);
+                if (inlineData != null) {
+                    update.setOnInsert("data", inlineData);
+                }
+                return mongo.findAndModify(
+                        Query.query(Criteria.where("_id").is(hash).and("deleting").is(false)),
+                        update,
+                        FindAndModifyOptions.options().upsert(true).returnNew(true),
+                        Blob.class
+                );
+            } catch (DuplicateKeyException e) {
+                // the blob exists with deleting=true: wait until the deleter has removed it
+                sleep();
+            }
+        }
+        throw new UnexpectedStorageException("Content " + hash + " is being deleted, retry later", null);
+    }
+
+    /**
+     * Whether content of {@code size} bytes is kept in its blob instead of the CAS
+     * ({@code filestorage.inline.max-size}, 0 = never).
+     */
+    public boolean canInline(long size) {
+        return inlineMaxSize > 0 && size <= inlineMaxSize;
+    }
+
+    public long inlineMaxSize() {
+        return inlineMaxSize;
+    }
+
+    /**
+     * Content kept inline for {@code hash}, or null when there is none.
+     */
+    @Nullable
+    public byte[] inlineData(String hash) {
+        Query query = Query.query(Criteria.where("_id").is(hash).and("data").exists(true));
+        query.fields().include("data");
+        Blob blob = mongo.findOne(query, Blob.class);
+        return blob == null ? null : blob.getData();
+    }
+
+    /**
+     * Drops one reference on {@code hash} and removes the object once nothing references it.
+     */
+    public void release(String hash) {
+        Blob blob = mongo.findAndModify(
+                Query.query(Criteria.where("_id").is(hash)),
+                new Update().inc("refCount", -1).set("updatedTs", Instant.now()),
+                FindAndModifyOptions.options().returnNew(true),
+                Blob.class
+        );
+        if (blob == null) {
+            releaseUntracked(hash);
+            return;
+        }
+        if (blob.getRefCount() <= 0) {
+            reclaim(hash);
+        }
+    }
+
+    /**
+     * Drops {@code refs} references per hash with one bulk write. Unlike {@link #release} objects that lost
+     * their last reference are not removed but returned, so the caller can {@link #reclaim} them in the
+     * background.
+     *
+     * @return hashes nothing references anymore
+     */
+    public List<String> releaseAll(Map<String, Integer> refs) {
+        if (refs.isEmpty()) {
+            return List.of();
+        }
+        Instant now = Instant.now();
+        BulkOperations bulk = mongo.bulkOps(BulkOperations.BulkMode.UNORDERED, Blob.class);
+        refs.forEach((hash, count) -> bulk.updateOne(
+                Query.query(Criteria.where("_id").is(hash)),
+                new Update().inc("refCount", -count).set("updatedTs", now)
+        ));
+        bulk.execute();
+
+        Query query = Query.query(Criteria.where("_id").in(refs.keySet()));
+        query.fields().include("refCount");
+        Set<String> untracked = new HashSet<>(refs.keySet());
+        List<String> unreferenced = new ArrayList<>();
+        for (Blob blob : mongo.find(query, Blob.class)) {
+            untracked.remove(blob.getHash());
+            if (blob.getRefCount() <= 0) {
+                unreferenced.add(blob.getHash());
+            }
+        }
+        untracked.forEach(this::releaseUntracked);
+        return unreferenced;
+    }
+
+    public void releaseQuietly(String hash) {
+        try {
+            release(hash);
+        } catch (Exception e) {
+            log.warn("Failed to release content {}", hash, e);
+        }
+    }
+
+    /**
+     * Physically removes an unreferenced object. Only one caller wins the {@code deleting} flag; if the file
+     * cannot be removed the flag is cleared again and the blob stays unreferenced until the next attempt.
+     *
+     * @return true when this call removed the object
+     */
+    public boolean reclaim(String hash) {
+        Blob claimed = mongo.findAndModify(
+                Query.query(Criteria.where("_id").is(hash).and("refCount").lte(0).and("deleting").is(false)),
+                new Update().set("deleting", true).set("updatedTs", Instant.now()),
+                FindAndModifyOptions.options().returnNew(true),
+                Blob.class
+        );
+        if (claimed == null) {
+            // referenced again in between, or somebody else is already deleting it
+            return false;
+        }
+        try {
+            contentStorageService.deleteIfExists(hash);
+        } catch (Exception e) {
+            log.warn("Failed to remove content {}", hash, e);
+            mongo.updateFirst(
+                    Query.query(Criteria.where("_id").is(hash).and("deleting").is(true)),
+                    new Update().set("deleting", false),
+                    Blob.class
+            );
+            return false;
+        }
+        mongo.remove(Query.query(Criteria.where("_id").is(hash).and("deleting").is(true)), Blob.class);
+        return true;
+    }
+
+    /**
+     * Removes an object no blob and no file points at (left behind by a crash or a failed delete).
+     * A blob in {@code deleting} state is inserted first, so a concurrent upload of the same content waits
+     * in {@link #acquire} instead of losing its file.
+     *
+     * @return true when this call removed the object
+     */
+    public boolean reclaimOrphan(String hash) {
+        Instant now = Instant.now();
+        try {
+            mongo.insert(Blob.builder()
+                    .hash(hash)
+                    .refCount(0)
+                    .location(location(hash))
+                    .deleting(true)
+                    .createdTs(now)
+                    .updatedTs(now)
+                    .build());
+        } catch (DuplicateKeyException e) {
+            return false;
+        }
+        try {
+            if (metadataService.countByHash(hash) > 0) {
+                return false;
+            }
+            contentStorageService.deleteIfExists(hash);
+            return true;
+        } catch (Exception e) {
+            log.warn("Failed to remove orphaned content {}", hash, e);
+            return false;
+        } finally {
+            mongo.remove(Query.query(Criteria.where("_id").is(hash).and("deleting").is(true)), Blob.class);
+        }
+    }
+
+    /**
+     * Removes an object whose blob still counts references although no file points at it, e.g. after a crash
+     * between removing files and releasing their references. The count is reset only if the blob has not
+     * changed since {@code seen} was read, so a reference taken in between wins.
+     *
+     * @return true when this call removed the object
+     */
+    public boolean reclaimOverCounted(Blob seen) {
+        Blob reset = mongo.findAndModify(
+                Query.query(Criteria.where("_id").is(seen.getHash())
+                        .and("refCount").is(seen.getRefCount())
+                        .and("updatedTs").is(seen.getUpdatedTs())
+                        .and("deleting").is(false)),
+                new Update().set("refCount", 0).set("updatedTs", Instant.now()),
+                Blob.class
+        );
+        if (reset == null) {
+            return false;
+        }
+        log.warn("Content {} had {} references but no file points at it; count reset", seen.getHash(),
+                seen.getRefCount());
+        return reclaim(seen.getHash());
+    }
+
+    /**
+     * Content without a blob (backfill disabled or not yet run): fall back to counting references.
+     */
+    private void releaseUntracked(String hash) {
+        if (metadataService.countByHash(hash) == 0) {
+            try {
+                contentStorageService.deleteIfExists(hash);
+            } catch (Exception e) {
+                log.warn("Failed to remove content {}", hash, e);
+            }
+        }
+    }
+
+    private void finishInterruptedDeletes() {
+        try (Stream<Blob> stuck = mongo.stream(Query.query(Criteria.where("deleting").is(true)), Blob.class)) {
+            stuck.forEach(blob -> {
+                try {
+                    contentStorageService.deleteIfExists(blob.getHash());
+                    mongo.remove(Query.query(Criteria.where("_id").is(blob.getHash()).and("deleting").is(true)),
+                            Blob.class);
+                    log.info("Finished interrupted delete of content {}", blob.getHash());
+                } catch (Exception e) {
+                    log.warn("Failed to finish delete of content {}", blob.getHash(), e);
+                }
+            });
+        }
+    }
+
+    private void backfill() {
+        long started = System.currentTimeMillis();
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.group("hash").count().as("refs").first("size").as("size")
+        );
+        Instant now = Instant.now();
+        BulkOperations bulk = mongo.bulkOps(BulkOperations.BulkMode.UNORDERED, Blob.class);
+        int pending = 0;
+        long total = 0;
+        try (Stream<Document> groups = mongo.aggregateStream(aggregation, FileMetadata.class, Document.class)) {
+            for (Document group : (Iterable<Document>) groups::iterator) {
+                String hash = group.getString("_id");
+                if (hash == null) {
+                    continue;
+                }
+                long refs = ((Number) group.get("refs")).longValue();
+                long size = ((Number) group.get("size")).longValue();
+                bulk.upsert(
+                        Query.query(Criteria.where("_id").is(hash)),
+                        new Update()
+                                .max("refCount", refs)
+                                .setOnInsert("size", size)
+                                .setOnInsert("location", location(hash))
+                                .setOnInsert("deleting", false)
+                                .setOnInsert("createdTs", now)
+                                .setOnInsert("updatedTs", now)
+                );
+                total++;
+                if (++pending == BACKFILL_BATCH) {
+                    bulk.execute();
+                    bulk = mongo.bulkOps(BulkOperations.BulkMode.UNORDERED, Blob.class);
+                    pending = 0;
+                }
+            }
+        }
+        if (pending > 0) {
+            bulk.execute();
+        }
+        log.info("Blob reference counts backfilled for {} hashes in {} ms", total, System.currentTimeMillis() - started);
+    }
+
+    private String location(String hash) {
+        return contentStorageService.resolvePath(hash).toString();
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(ACQUIRE_BACKOFF_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnexpectedStorageException("Interrupted while waiting for content deletion", e);
+        }
+    }
+}
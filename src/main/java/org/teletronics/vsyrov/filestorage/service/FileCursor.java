@@ -0,0 +1,64 @@
+package org.teletronics.vsyrov.filestorage.service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+
+import org.springframework.data.domain.Sort;
+import org.teletronics.vsyrov.filestorage.common.exception.BadRequestException;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+
+/**
+ * Opaque continuation token of a keyset listing: the sort key and id of the last returned document,
+ * bound to the sort it was issued for.
+ *
+ * @author vsyrov
+ */
+record FileCursor(Sort.Order order, Object value, String id) {
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    static FileCursor after(Sort.Order order, FileMetadata last) {
+        Object value = switch (order.getProperty()) {
+            case "fileName" -> last.getFileName();
+            case "createdTs" -> last.getCreatedTs();
+            case "size" -> last.getSize();
+            default -> throw new IllegalArgumentException("Unsupported cursor sort " + order.getProperty());
+        };
+        return new FileCursor(order, value, last.getId());
+    }
+
+    String encode() {
+        String encodedValue = switch (value) {
+            case Instant i -> "t" + i.toEpochMilli();
+            case Long l -> "n" + l;
+            default -> "s" + value;
+        };
+        String raw = order.getProperty() + "\n" + order.getDirection() + "\n" + id + "\n" + encodedValue;
+        return ENCODER.encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @throws BadRequestException when the token is malformed or was issued for another sort
+     */
+    static FileCursor decode(String token, Sort.Order order) {
+        try {
+            String[] parts = new String(DECODER.decode(token), StandardCharsets.UTF_8).split("\n", 4);
+            if (!parts[0].equals(order.getProperty()) || Sort.Direction.fromString(parts[1]) != order.getDirection()) {
+                throw new BadRequestException("Cursor was issued for another sort order");
+            }
+            String encodedValue = parts[3];
+            Object value = switch (encodedValue.charAt(0)) {
+                case 't' -> Instant.ofEpochMilli(Long.parseLong(encodedValue.substring(1)));
+                case 'n' -> Long.parseLong(encodedValue.substring(1));
+                case 's' -> encodedValue.substring(1);
+                default -> throw new IllegalArgumentException("Unknown cursor value type");
+            };
+            return new FileCursor(order, value, parts[2]);
+        } catch (BadRequestException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new BadRequestException("Malformed cursor");
+        }
+    }
+}
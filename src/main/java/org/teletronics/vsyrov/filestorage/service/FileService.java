@@ -1,26 +1,45 @@
 package org.teletronics.vsyrov.filestorage.service;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.time.Instant;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.core.io.InputStreamResource;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
+import org.teletronics.vsyrov.filestorage.common.exception.BadRequestException;
 import org.teletronics.vsyrov.filestorage.common.exception.DuplicateFileException;
 import org.teletronics.vsyrov.filestorage.common.exception.ForbiddenException;
+import org.teletronics.vsyrov.filestorage.common.exception.NotFoundException;
+import org.teletronics.vsyrov.filestorage.common.exception.PossessionProofRequiredException;
 import org.teletronics.vsyrov.filestorage.common.exception.UnexpectedStorageException;
-import org.teletronics.vsyrov.filestorage.common.io.HashingInputStream;
+import org.teletronics.vsyrov.filestorage.common.model.Blob;
 import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.HashAlgorithm;
 import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.service.MetadataService.FileSlice;
+import org.teletronics.vsyrov.filestorage.service.upload.ContentReceiver;
+import org.teletronics.vsyrov.filestorage.service.upload.PossessionVerifier;
+import org.teletronics.vsyrov.filestorage.service.upload.ReceivedContent;
 import org.teletronics.vsyrov.filestorage.service.utility.FileProcessingUtility;
+import org.teletronics.vsyrov.filestorage.storage.CompressionPolicy;
 import org.teletronics.vsyrov.filestorage.storage.ContentStorageService;
+import org.teletronics.vsyrov.filestorage.storage.StoredContent;
 
 /**
  * @author vsyrov
@@ -29,8 +48,15 @@ import org.teletronics.vsyrov.filestorage.storage.ContentStorageService;
 @Service
 @RequiredArgsConstructor
 public class FileService {
+    private static final Pattern HEX_DIGEST = Pattern.compile("[0-9a-f]{64}");
+
     private final ContentStorageService contentStorageService;
     private final MetadataService metadataService;
+    private final ContentReceiver contentReceiver;
+    private final PossessionVerifier possessionVerifier;
+    private final BlobService blobService;
+    private final TagIndexService tagIndexService;
+    private final CompressionPolicy compressionPolicy;
 
     public FileMetadata upload(
             String ownerId,
@@ -40,59 +66,241 @@ public class FileService {
             @Nullable List<String> tags
     ) {
         String filename = FileProcessingUtility.defineFileName(multipart, filenameOverride);
+        return store(ownerId, filename, multipart, multipart.getSize(), multipart.getContentType(), visibility, tags);
+    }
+
+    /**
+     * Upload from a raw request body: the stream is hashed and written straight into the CAS temp area,
+     * without a servlet multipart spool in between.
+     */
+    public FileMetadata uploadStream(
+            String ownerId,
+            InputStream body,
+            long declaredSize,
+            @Nullable String contentType,
+            String filename,
+            VisibilityType visibility,
+            @Nullable List<String> tags
+    ) {
+        if (StringUtils.isBlank(filename)) {
+            throw new BadRequestException("Filename is required for streaming upload");
+        }
+        return store(ownerId, filename.trim(), () -> body, declaredSize, contentType, visibility, tags);
+    }
 
+    /**
+     * Creates a file from content the CAS already holds, without any body transfer. The client declares
+     * the hash and size it would upload; if nothing matches, 404 tells it to upload the body instead.
+     * Unless {@code filestorage.precheck.proof-required} is switched off, the first call is answered with a
+     * {@link PossessionProofRequiredException} challenge and the second one must carry the proof.
+     */
+    public FileMetadata uploadByHash(
+            String ownerId,
+            ContentClaim claim,
+            String filename,
+            VisibilityType visibility,
+            @Nullable List<String> tags,
+            @Nullable String clientContentType
+    ) {
+        if (StringUtils.isBlank(filename)) {
+            throw new BadRequestException("Filename is required");
+        }
+        if (visibility == null) {
+            throw new BadRequestException("Visibility is required");
+        }
+        if (claim.size() < 0) {
+            throw new BadRequestException("Size must not be negative");
+        }
+        String contentHash = contentKey(claim);
+        String trimmed = filename.trim();
         List<String> normTags = FileProcessingUtility.normalizeTags(tags);
-        if (metadataService.existsNameForUser(ownerId, filename)) {
+        if (metadataService.existsNameForUser(ownerId, trimmed)) {
             throw new DuplicateFileException("Filename already exists for this user");
         }
+        if (metadataService.existsContentForUser(ownerId, contentHash)) {
+            throw new DuplicateFileException("Same content already uploaded by this user");
+        }
 
-        Path temp;
-        String contentHash;
-        long size;
-        try (InputStream raw = multipart.getInputStream();
-             HashingInputStream his = FileProcessingUtility.hashingStream(raw)) {
+        StoredContent stored;
+        byte[] inlineData = null;
+        byte[] head;
+        try {
+            stored = contentStorageService.locate(contentHash);
+            if (stored == null) {
+                inlineData = blobService.inlineData(contentHash);
+            }
+            long storedSize = stored != null ? stored.length() : inlineData != null ? inlineData.length : -1;
+            if (storedSize != claim.size()) {
+                throw new NotFoundException("Content is not stored, upload the body");
+            }
+            if (stored != null) {
+                try (InputStream in = stored.openDecoded()) {
+                    head = in.readNBytes(FileProcessingUtility.CONTENT_HEAD_SIZE);
+                }
+            } else {
+                head = inlineData;
+            }
+        } catch (IOException e) {
+            throw new UnexpectedStorageException("Failed to read content " + contentHash, e);
+        }
 
-            temp = contentStorageService.writeTemp(his);
-            contentHash = his.digestHex();
-            size = (multipart.getSize() > 0) ? multipart.getSize() : his.getBytesRead();
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to receive upload", e);
+        if (possessionVerifier.isRequired()) {
+            if (claim.challenge() == null) {
+                throw new PossessionProofRequiredException(
+                        possessionVerifier.issue(ownerId, contentHash, claim.size()));
+            }
+            if (stored != null) {
+                possessionVerifier.verify(ownerId, contentHash, stored, claim.challenge(), claim.proof());
+            } else {
+                possessionVerifier.verify(ownerId, contentHash, inlineData, claim.challenge(), claim.proof());
+            }
         }
 
+        Blob blob = blobService.acquire(contentHash, claim.size());
+        boolean inline = blob.getData() != null;
+        boolean saved = false;
         try {
-            if (metadataService.existsContentForUser(ownerId, contentHash)) {
-                Files.deleteIfExists(temp);
-                throw new DuplicateFileException("Same content already uploaded by this user");
+            if (!inline && !stillStored(contentHash)) {
+                // the last other reference was deleted before ours was taken
+                throw new NotFoundException("Content is not stored, upload the body");
+            }
+            Path path = stored != null ? stored.path() : null;
+            String contentType = FileProcessingUtility.detectContentType(
+                    head, claim.size(), () -> path, clientContentType);
+            FileMetadata meta = metadataService.saveNew(
+                    ownerId, trimmed, contentType, claim.size(), contentHash, normTags, visibility, inline);
+            saved = true;
+            log.debug("File {} created by hash {} without body transfer", meta.getId(), contentHash);
+            return meta;
+        } finally {
+            if (!saved) {
+                blobService.releaseQuietly(contentHash);
             }
+        }
+    }
 
-            contentStorageService.moveToCas(temp, contentHash);
-            temp = null;
+    private FileMetadata store(
+            String ownerId,
+            String filename,
+            InputStreamSource source,
+            long declaredSize,
+            @Nullable String clientContentType,
+            VisibilityType visibility,
+            @Nullable List<String> tags
+    ) {
+        List<String> normTags = FileProcessingUtility.normalizeTags(tags);
+        if (metadataService.existsNameForUser(ownerId, filename)) {
+            throw new DuplicateFileException("Filename already exists for this user");
+        }
 
-            String contentType = FileProcessingUtility.detectContentType(
-                    contentStorageService.resolvePath(contentHash),
-                    multipart.getContentType()
-            );
+        ReceivedContent received;
+        try (InputStream raw = source.getInputStream()) {
+            // content that will live in its blob is never written to the temp area
+            received = declaredSize > 0 && blobService.canInline(declaredSize)
+                    ? contentReceiver.receiveSmall(raw, (int) blobService.inlineMaxSize())
+                    : contentReceiver.receive(raw);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to receive upload", e);
+        }
+        long size = (declaredSize > 0) ? declaredSize : received.size();
+
+        return commit(ownerId, filename, received.temp(), received.hash(), size, received.head(),
+                clientContentType, visibility, normTags);
+    }
 
-            return metadataService.saveNew(
+    /**
+     * Moves an already hashed temp file into the CAS and records its metadata.
+     * The temp file is consumed in every outcome.
+     *
+     * @see #stage
+     */
+    FileMetadata commit(
+            String ownerId,
+            String filename,
+            @Nullable Path temp,
+            String contentHash,
+            long size,
+            byte[] head,
+            @Nullable String clientContentType,
+            VisibilityType visibility,
+            List<String> normTags
+    ) {
+        if (metadataService.existsContentForUser(ownerId, contentHash)) {
+            deleteQuietly(temp);
+            throw new DuplicateFileException("Same content already uploaded by this user");
+        }
+        StagedContent staged = stage(temp, contentHash, size, head, clientContentType);
+        boolean saved = false;
+        try {
+            FileMetadata meta = metadataService.saveNew(
                     ownerId,
                     filename,
-                    contentType,
+                    staged.contentType(),
                     size,
                     contentHash,
                     normTags,
-                    visibility
+                    visibility,
+                    staged.inline()
             );
+            saved = true;
+            return meta;
+        } finally {
+            if (!saved) {
+                blobService.releaseQuietly(contentHash);
+            }
+        }
+    }
+
+    /**
+     * Places received content in the CAS and takes a blob reference on it, without any metadata; the caller
+     * saves the metadata or releases the reference.
+     * The content type is detected from {@code head}, the first bytes captured while receiving, and together
+     * with a sample of the temp file decides whether the object is stored compressed.
+     * Content up to {@code filestorage.inline.max-size} ({@code head} is all of it) goes into its blob
+     * document instead; {@code temp} may then be {@code null}.
+     * The temp file is consumed in every outcome.
+     */
+    StagedContent stage(
+            @Nullable Path temp,
+            String contentHash,
+            long size,
+            byte[] head,
+            @Nullable String clientContentType
+    ) {
+        try {
+            Path received = temp;
+            String contentType = FileProcessingUtility.detectContentType(head, size, () -> received, clientContentType);
+            byte[] inlineData = blobService.canInline(size) && head.length == size ? head : null;
+
+            // the reference is taken before the move, so a concurrent delete of the same content cannot
+            // remove the object under us
+            Blob blob = blobService.acquire(contentHash, size, inlineData);
+            // the same content may already be in the CAS (or inline) from before the threshold changed
+            boolean inline = blob.getData() != null;
+            boolean stored = false;
+            try {
+                if (!inline) {
+                    if (temp == null) {
+                        temp = contentStorageService.writeTemp(new ByteArrayInputStream(head));
+                    }
+                    boolean compress = !contentStorageService.exists(contentHash)
+                            && compressionPolicy.shouldCompress(contentType, size, temp);
+                    contentStorageService.moveToCas(temp, contentHash, compress);
+                    temp = null;
+                }
+                stored = true;
+                return new StagedContent(contentType, inline);
+            } finally {
+                if (!stored) {
+                    blobService.releaseQuietly(contentHash);
+                }
+            }
         } catch (RuntimeException ex) {
             throw ex;
         } catch (Exception ex) {
             throw new RuntimeException("Upload failed", ex);
         } finally {
-            try {
-                if (temp != null) {
-                    Files.deleteIfExists(temp);
-                }
-            } catch (Exception ignore) {
-            }
+            deleteQuietly(temp);
         }
     }
 
@@ -104,21 +312,30 @@ public class FileService {
         return metadataService.listOwned(ownerId, tag, pageable);
     }
 
+    public FileSlice listPublicAfter(String tag, Sort.Order order, int size, String cursor) {
+        return metadataService.listPublicAfter(tag, order, size, cursor);
+    }
+
+    public FileSlice listOwnedAfter(String ownerId, String tag, Sort.Order order, int size, String cursor) {
+        return metadataService.listOwnedAfter(ownerId, tag, order, size, cursor);
+    }
+
+    /**
+     * Every file of {@code ownerId}, or every public file when it is null, straight from a Mongo cursor.
+     * The caller must close the stream.
+     */
+    public Stream<FileMetadata> exportAll(@Nullable String ownerId) {
+        return metadataService.streamAll(ownerId);
+    }
+
     public void rename(String ownerId, String fileId, String newName) {
         metadataService.rename(ownerId, fileId, newName);
     }
 
     public void delete(String ownerId, String fileId) {
         FileMetadata meta = metadataService.getOwned(ownerId, fileId);
-        String hash = meta.getHash();
-        metadataService.deleteOwned(ownerId, fileId);
-        if (metadataService.countByHash(hash) == 0) {
-            try {
-                contentStorageService.deleteIfExists(hash);
-            } catch (Exception exc) {
-                log.warn("Failed to remove file {} for owner {}", fileId, ownerId, exc);
-                //todo throw exc
-            }
+        if (metadataService.deleteOwned(ownerId, fileId)) {
+            blobService.release(meta.getHash());
         }
     }
 
@@ -128,28 +345,171 @@ public class FileService {
             throw new ForbiddenException("Download file " + fileId + " unavailable for user " + userId);
         }
         try {
-            InputStream is = contentStorageService.open(meta.getHash());
-            return new DownloadResource(
-                    new InputStreamResource(is),
-                    meta.getFileName(),
-                    meta.getContentType()
-            );
+            if (meta.isInline()) {
+                byte[] data = blobService.inlineData(meta.getHash());
+                if (data == null) {
+                    throw new NoSuchFileException("inline:" + meta.getHash());
+                }
+                return DownloadResource.inline(data, meta);
+            }
+            StoredContent stored = contentStorageService.locateForRead(meta.getHash());
+            if (stored == null) {
+                throw new NoSuchFileException(contentStorageService.resolvePath(meta.getHash()).toString());
+            }
+            return DownloadResource.of(stored, meta);
         } catch (Exception e) {
             log.warn("Failed to download file: {}", fileId, e);
             throw new UnexpectedStorageException("Download failed for file " + fileId, e);
         }
     }
 
-    public List<String> getAccessibleTags(String userId) {
-        //todo use metadata service for tags
-        return List.of();
+    /**
+     * @return tags of the files visible to {@code userId}, sorted, with the number of files per tag
+     */
+    public Map<String, Long> getAccessibleTags(String userId) {
+        return tagIndexService.accessibleTags(userId);
     }
 
+    private boolean stillStored(String contentHash) {
+        try {
+            return contentStorageService.exists(contentHash);
+        } catch (IOException e) {
+            throw new UnexpectedStorageException("Failed to read content " + contentHash, e);
+        }
+    }
+
+    private static void deleteQuietly(@Nullable Path temp) {
+        try {
+            if (temp != null) {
+                Files.deleteIfExists(temp);
+            }
+        } catch (Exception ignore) {
+        }
+    }
+
+    private static String contentKey(ContentClaim claim) {
+        HashAlgorithm algorithm;
+        try {
+            algorithm = claim.algorithm() == null ? HashAlgorithm.SHA256 : HashAlgorithm.fromId(claim.algorithm());
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+        String hex = claim.hash() == null ? "" : claim.hash().trim().toLowerCase();
+        if (!HEX_DIGEST.matcher(hex).matches()) {
+            throw new BadRequestException("Hash must be 64 hex characters");
+        }
+        return algorithm.key(hex);
+    }
+
+    /**
+     * Content a client claims to hold: the hash (SHA-256 unless {@code algorithm} says otherwise), its size
+     * and, on the second round when proof is required, the challenge token and the proof.
+     */
+    public record ContentClaim(
+            String hash,
+            @Nullable String algorithm,
+            long size,
+            @Nullable String challenge,
+            @Nullable String proof
+    ) {
+    }
+
+    /**
+     * Content that {@link #stage} placed and referenced: its detected type and whether it lives in the blob.
+     */
+    record StagedContent(String contentType, boolean inline) {
+    }
+
+    /**
+     * File-backed download: {@code path} can be served with sendfile or positional reads and a known length.
+     * The content hash doubles as a strong ETag, the creation time as Last-Modified.
+     * When {@code contentEncoding} is set, {@code path} holds {@code storedLength} encoded bytes that decode
+     * to {@code length} bytes of content. The content starts at {@code offset} of {@code path} (non-zero
+     * for objects inside a pack segment). Inline content comes as {@code data} and has no {@code path}.
+     */
     public record DownloadResource(
-            InputStreamResource body,
+            @Nullable Path path,
+            long length,
             String filename,
-            String contentType
+            String contentType,
+            String hash,
+            Instant lastModified,
+            long storedLength,
+            @Nullable String contentEncoding,
+            long offset,
+            @Nullable byte[] data
     ) {
+        public static DownloadResource of(StoredContent stored, FileMetadata meta) {
+            return new DownloadResource(
+                    stored.path(),
+                    stored.length(),
+                    meta.getFileName(),
+                    meta.getContentType(),
+                    meta.getHash(),
+                    meta.getCreatedTs(),
+                    stored.storedLength(),
+                    stored.encoding(),
+                    stored.offset(),
+                    null
+            );
+        }
+
+        public static DownloadResource inline(byte[] data, FileMetadata meta) {
+            return new DownloadResource(
+                    null,
+                    data.length,
+                    meta.getFileName(),
+                    meta.getContentType(),
+                    meta.getHash(),
+                    meta.getCreatedTs(),
+                    data.length,
+                    null,
+                    0,
+                    data
+            );
+        }
+
+        /**
+         * Whether the stored bytes can go out as they are: the object is encoded and {@code acceptEncoding}
+         * lists its encoding without {@code q=0}, or does not list it and accepts {@code *}. An explicit entry
+         * wins over the wildcard, so {@code gzip;q=0, *} refuses gzip.
+         */
+        public boolean sendEncoded(@Nullable String acceptEncoding) {
+            if (contentEncoding == null || acceptEncoding == null) {
+                return false;
+            }
+            Boolean explicit = null;
+            Boolean wildcard = null;
+            for (String entry : acceptEncoding.split(",")) {
+                String[] parts = entry.split(";");
+                String coding = parts[0].trim();
+                boolean listed = coding.equalsIgnoreCase(contentEncoding)
+                        || coding.equalsIgnoreCase("x-" + contentEncoding);
+                if (!listed && !coding.equals("*")) {
+                    continue;
+                }
+                boolean accepted = true;
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            accepted = Double.parseDouble(param.substring(2)) > 0;
+                        } catch (NumberFormatException e) {
+                            accepted = false;
+                        }
+                    }
+                }
+                if (listed) {
+                    explicit = explicit == null ? accepted : explicit || accepted;
+                } else {
+                    wildcard = accepted;
+                }
+            }
+            if (explicit != null) {
+                return explicit;
+            }
+            return wildcard != null && wildcard;
+        }
     }
 }
 
@@ -0,0 +1,150 @@
+package org.teletronics.vsyrov.filestorage.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.teletronics.vsyrov.filestorage.common.model.Blob;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.HashAlgorithm;
+import org.teletronics.vsyrov.filestorage.service.upload.ContentReceiver;
+import org.teletronics.vsyrov.filestorage.storage.ContentStorageService;
+import org.teletronics.vsyrov.filestorage.storage.StoredContent;
+
+/**
+ * Background re-keying of stored content to the configured {@code filestorage.hash.algorithm}.
+ * <p>
+ * Reads always go through the key stored on the document, so objects under the old and the new algorithm are
+ * served side by side while the migration runs (dual read). For every old key the content is re-hashed, linked
+ * under the new key, the documents are switched over one by one and the old object is released like on a
+ * delete, so it goes away with its last reference. Documents whose owner already has the content under the
+ * new key keep their old key.
+ * Inline content is re-hashed from its blob and stays inline under the new key.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Service
+public class HashMigrationService {
+    private final MetadataService metadataService;
+    private final ContentStorageService contentStorageService;
+    private final ContentReceiver contentReceiver;
+    private final BlobService blobService;
+    private final boolean enabled;
+    private final int batchSize;
+    private String cursor = "";
+
+    public HashMigrationService(
+            MetadataService metadataService,
+            ContentStorageService contentStorageService,
+            ContentReceiver contentReceiver,
+            BlobService blobService,
+            @Value("${filestorage.hash.migration.enabled:false}") boolean enabled,
+            @Value("${filestorage.hash.migration.batch-size:100}") int batchSize
+    ) {
+        this.metadataService = metadataService;
+        this.contentStorageService = contentStorageService;
+        this.contentReceiver = contentReceiver;
+        this.blobService = blobService;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+    }
+
+    @Scheduled(
+            initialDelayString = "${filestorage.hash.migration.interval:PT1M}",
+            fixedDelayString = "${filestorage.hash.migration.interval:PT1M}"
+    )
+    public void migrateBatch() {
+        if (!enabled) {
+            return;
+        }
+        HashAlgorithm target = contentReceiver.getAlgorithm();
+        List<FileMetadata> batch = metadataService.findHashedOtherThan(target, cursor, batchSize);
+        if (batch.isEmpty()) {
+            if (!cursor.isEmpty()) {
+                log.info("Hash migration pass to {} finished", target.getId());
+            }
+            cursor = "";
+            return;
+        }
+        Map<String, String> rehashed = new HashMap<>();
+        for (FileMetadata meta : batch) {
+            cursor = meta.getId();
+            try {
+                migrate(meta, target, rehashed);
+            } catch (Exception e) {
+                log.warn("Failed to migrate hash of file {}", meta.getId(), e);
+            }
+        }
+    }
+
+    private void migrate(FileMetadata meta, HashAlgorithm target, Map<String, String> rehashed) throws Exception {
+        String oldHash = meta.getHash();
+        byte[] inlineData = meta.isInline() ? blobService.inlineData(oldHash) : null;
+        String newHash = rehashed.get(oldHash);
+        if (newHash == null) {
+            if (inlineData != null) {
+                newHash = ContentReceiver.hashBytes(inlineData, target);
+            } else {
+                StoredContent stored = contentStorageService.locate(oldHash);
+                if (stored == null) {
+                    log.warn("Content {} of file {} is missing, skipping hash migration", oldHash, meta.getId());
+                    return;
+                }
+                newHash = rehash(stored, target);
+            }
+            rehashed.put(oldHash, newHash);
+        }
+        // same order as an upload: reference first, then the object, then the document
+        Blob blob = blobService.acquire(newHash, meta.getSize(), inlineData);
+        boolean inline = blob.getData() != null;
+        boolean switched = false;
+        try {
+            if (!inline) {
+                if (inlineData != null) {
+                    // the new key is already stored in the CAS, nothing to copy from
+                    if (!contentStorageService.exists(newHash)) {
+                        contentStorageService.moveToCas(
+                                contentStorageService.writeTemp(new ByteArrayInputStream(inlineData)), newHash);
+                    }
+                } else {
+                    contentStorageService.copyToCas(oldHash, newHash);
+                }
+            }
+            switched = metadataService.rehash(meta.getId(), oldHash, newHash, inline);
+        } finally {
+            blobService.releaseQuietly(switched ? oldHash : newHash);
+        }
+        if (switched) {
+            log.debug("File {} migrated from {} to {}", meta.getId(), oldHash, newHash);
+        }
+    }
+
+    /**
+     * A compressed or packed object is copied out into a temp file first: the hash is always over the
+     * uncompressed content alone.
+     */
+    private String rehash(StoredContent stored, HashAlgorithm target) throws IOException {
+        if (stored.isWholeFile()) {
+            return contentReceiver.hashFile(stored.path(), target).hash();
+        }
+        Path temp;
+        try (InputStream in = stored.openDecoded()) {
+            temp = contentStorageService.writeTemp(in);
+        }
+        try {
+            return contentReceiver.hashFile(temp, target).hash();
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.teletronics.vsyrov.filestorage.service;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+
+/**
+ * Bounded in-process read-through cache of metadata by id, for the download and ownership-check hot path.
+ * Entries expire after {@code ttl}, which bounds staleness for changes made by other instances when the
+ * change-stream listener is off. Misses are not cached. Statistics are exported as {@code cache.*{cache=metadata}}.
+ *
+ * @author vsyrov
+ */
+@Component
+public class MetadataCache {
+    private final Cache<String, FileMetadata> cache;
+    private final AtomicLong invalidations = new AtomicLong();
+    private volatile boolean enabled;
+
+    public MetadataCache(
+            @Value("${filestorage.metadata-cache.enabled:true}") boolean enabled,
+            @Value("${filestorage.metadata-cache.max-size:100000}") long maxSize,
+            @Value("${filestorage.metadata-cache.ttl:PT5M}") Duration ttl,
+            MeterRegistry registry
+    ) {
+        this.enabled = enabled;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, cache, "metadata");
+    }
+
+    /**
+     * The loader runs outside the cache: {@code Cache.get(key, loader)} would hold a map bin lock during the
+     * Mongo round trip and pin the carrier of a virtual thread. Concurrent misses may load twice; a result
+     * loaded while anything was invalidated is returned but not cached, so it cannot outlive the change.
+     */
+    public Optional<FileMetadata> get(String id, Function<String, Optional<FileMetadata>> loader) {
+        if (!enabled) {
+            return loader.apply(id);
+        }
+        FileMetadata cached = cache.getIfPresent(id);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        long generation = invalidations.get();
+        Optional<FileMetadata> loaded = loader.apply(id);
+        if (loaded.isPresent() && invalidations.get() == generation) {
+            cache.put(id, loaded.get());
+        }
+        return loaded;
+    }
+
+    public void put(FileMetadata meta) {
+        if (enabled) {
+            cache.put(meta.getId(), meta);
+        }
+    }
+
+    public void invalidate(String id) {
+        invalidations.incrementAndGet();
+        cache.invalidate(id);
+    }
+
+    public void invalidateAll() {
+        invalidations.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            invalidateAll();
+        }
+    }
+}
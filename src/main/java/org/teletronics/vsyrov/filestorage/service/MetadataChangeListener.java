@@ -0,0 +1,68 @@
+package org.teletronics.vsyrov.filestorage.service;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.messaging.ChangeStreamRequest;
+import org.springframework.data.mongodb.core.messaging.DefaultMessageListenerContainer;
+import org.springframework.data.mongodb.core.messaging.Message;
+import org.springframework.data.mongodb.core.messaging.MessageListenerContainer;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.stereotype.Component;
+
+/**
+ * Evicts {@link MetadataCache} entries changed by any instance, by tailing the change stream of the
+ * {@code metadata} collection. Needs a replica set or sharded cluster; enabled with
+ * {@code filestorage.metadata-cache.change-stream.enabled}.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "filestorage.metadata-cache.change-stream.enabled", havingValue = "true")
+public class MetadataChangeListener {
+    private final MetadataCache cache;
+    private final MessageListenerContainer container;
+
+    public MetadataChangeListener(MongoTemplate mongo, MetadataCache cache) {
+        this.cache = cache;
+        this.container = new DefaultMessageListenerContainer(mongo);
+    }
+
+    @PostConstruct
+    void start() {
+        container.start();
+        container.register(ChangeStreamRequest.<Document>builder()
+                        .collection("metadata")
+                        .filter(Aggregation.newAggregation(Aggregation.match(
+                                Criteria.where("operationType").in("update", "replace", "delete"))))
+                        .publishTo(this::onChange)
+                        .build(),
+                Document.class);
+        log.info("Listening to metadata changes for cache invalidation");
+    }
+
+    @PreDestroy
+    void stop() {
+        container.stop();
+    }
+
+    private void onChange(Message<ChangeStreamDocument<Document>, Document> message) {
+        ChangeStreamDocument<Document> change = message.getRaw();
+        if (change == null || change.getDocumentKey() == null) {
+            // invalidate events and the like: nothing tells us what changed
+            cache.invalidateAll();
+            return;
+        }
+        BsonValue id = change.getDocumentKey().get("_id");
+        if (id != null && id.isString()) {
+            cache.invalidate(id.asString().getValue());
+        }
+    }
+}
@@ -1,15 +1,32 @@
 package org.teletronics.vsyrov.filestorage.service;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Stream;
 
 import com.mongodb.DuplicateKeyException;
+import com.mongodb.ErrorCategory;
+import com.mongodb.bulk.BulkWriteError;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 import org.teletronics.vsyrov.filestorage.common.exception.BadRequestException;
@@ -17,6 +34,7 @@ import org.teletronics.vsyrov.filestorage.common.exception.DuplicateFileExceptio
 import org.teletronics.vsyrov.filestorage.common.exception.ForbiddenException;
 import org.teletronics.vsyrov.filestorage.common.exception.NotFoundException;
 import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.HashAlgorithm;
 import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
 import org.teletronics.vsyrov.filestorage.dao.FileMetadataRepository;
 import org.teletronics.vsyrov.filestorage.service.utility.FileProcessingUtility;
@@ -28,8 +46,16 @@ import org.teletronics.vsyrov.filestorage.service.utility.FileProcessingUtility;
 @Service
 @RequiredArgsConstructor
 public class MetadataService {
+    /**
+     * Sort keys backed by the listing indexes of {@link FileMetadata}; anything else would sort in memory.
+     */
+    private static final List<String> SORT_FIELDS = List.of("fileName", "createdTs", "size");
+    private static final int MAX_SLICE_SIZE = 1000;
 
     private final FileMetadataRepository repo;
+    private final MongoTemplate mongo;
+    private final MetadataCache cache;
+    private final TagIndexService tagIndex;
 
     public boolean existsNameForUser(String ownerId, String filename) {
         return repo.existsByOwnerIdAndFileName(ownerId, filename);
@@ -39,6 +65,58 @@ public class MetadataService {
         return repo.existsByOwnerIdAndHash(ownerId, hash);
     }
 
+    /**
+     * Which of {@code filenames} {@code ownerId} already uses, in one query.
+     */
+    public Set<String> existingNamesForUser(String ownerId, Collection<String> filenames) {
+        return distinctForUser(ownerId, "fileName", filenames);
+    }
+
+    /**
+     * Which of the content {@code hashes} {@code ownerId} already has, in one query.
+     */
+    public Set<String> existingContentForUser(String ownerId, Collection<String> hashes) {
+        return distinctForUser(ownerId, "hash", hashes);
+    }
+
+    private Set<String> distinctForUser(String ownerId, String field, Collection<String> values) {
+        if (values.isEmpty()) {
+            return Set.of();
+        }
+        return new HashSet<>(mongo.findDistinct(
+                Query.query(Criteria.where("ownerId").is(ownerId).and(field).in(values)),
+                field, FileMetadata.class, String.class));
+    }
+
+    /**
+     * Inserts new documents with one unordered bulk write; a duplicate name or content does not stop the others.
+     *
+     * @return for each document, in order, {@code null} when it was inserted or the reason it was not
+     */
+    public List<InsertFailure> insertAll(List<FileMetadata> docs) {
+        List<InsertFailure> failures = new ArrayList<>(Collections.nCopies(docs.size(), null));
+        if (docs.isEmpty()) {
+            return failures;
+        }
+        try {
+            mongo.bulkOps(BulkOperations.BulkMode.UNORDERED, FileMetadata.class).insert(docs).execute();
+        } catch (BulkOperationException e) {
+            for (BulkWriteError error : e.getErrors()) {
+                boolean duplicate = ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY;
+                failures.set(error.getIndex(), duplicate ? InsertFailure.DUPLICATE : InsertFailure.ERROR);
+            }
+        }
+        List<FileMetadata> inserted = new ArrayList<>(docs.size());
+        for (int i = 0; i < docs.size(); i++) {
+            if (failures.get(i) == null) {
+                cache.put(docs.get(i));
+                inserted.add(docs.get(i));
+            }
+        }
+        tagIndex.addedAll(inserted);
+        return failures;
+    }
+
     public FileMetadata saveNew(
             String ownerId,
             String fileName,
@@ -46,9 +124,34 @@ public class MetadataService {
             long size,
             String hash,
             List<String> tags,
-            VisibilityType visibility
+            VisibilityType visibility,
+            boolean inline
     ) {
-        var meta = FileMetadata.builder()
+        var meta = newMetadata(ownerId, fileName, contentType, size, hash, tags, visibility, inline);
+        try {
+            FileMetadata saved = repo.save(meta);
+            cache.put(saved);
+            tagIndex.added(saved);
+            return saved;
+        } catch (DuplicateKeyException e) {
+            throw new DuplicateFileException("Duplicate by name or content", e);
+        }
+    }
+
+    /**
+     * A fresh document for a file that is not stored yet.
+     */
+    static FileMetadata newMetadata(
+            String ownerId,
+            String fileName,
+            String contentType,
+            long size,
+            String hash,
+            List<String> tags,
+            VisibilityType visibility,
+            boolean inline
+    ) {
+        return FileMetadata.builder()
                 .id(UUID.randomUUID().toString())
                 .ownerId(ownerId)
                 .fileName(fileName)
@@ -56,14 +159,11 @@ public class MetadataService {
                 .visibility(visibility)
                 .tags(tags)
                 .hash(hash)
+                .hashAlgorithm(HashAlgorithm.ofKey(hash))
                 .size(size)
                 .createdTs(Instant.now())
+                .inline(inline)
                 .build();
-        try {
-            return repo.save(meta);
-        } catch (DuplicateKeyException e) {
-            throw new DuplicateFileException("Duplicate by name or content", e);
-        }
     }
 
     public void rename(String userId, String fileId, String newName) {
@@ -80,17 +180,158 @@ public class MetadataService {
         if (repo.existsByOwnerIdAndFileName(userId, trimmedNewName)) {
             throw new DuplicateFileException("Filename already exists for this user");
         }
-        meta.toBuilder().fileName(trimmedNewName).build();
-        repo.save(meta);
+        // only the name: the cached copy may be stale, and a full save would write back old fields or
+        // resurrect a file deleted in the meantime
+        long matched;
+        try {
+            matched = mongo.updateFirst(
+                    Query.query(Criteria.where("_id").is(fileId).and("ownerId").is(userId)
+                            .and("deleteClaim").exists(false)),
+                    new Update().set("fileName", trimmedNewName),
+                    FileMetadata.class
+            ).getMatchedCount();
+        } catch (DataIntegrityViolationException e) {
+            throw new DuplicateFileException("Filename already exists for this user");
+        } finally {
+            cache.invalidate(fileId);
+        }
+        if (matched == 0) {
+            throw new NotFoundException("File not found");
+        }
     }
 
-    public void deleteOwned(String userId, String fileId) {
+    /**
+     * @return false when the document was already removed by a concurrent delete
+     */
+    public boolean deleteOwned(String userId, String fileId) {
         FileMetadata meta = getOwned(userId, fileId);
-        repo.delete(meta);
+        FileMetadata removed = mongo.findAndRemove(
+                Query.query(Criteria.where("_id").is(meta.getId()).and("deleteClaim").exists(false)),
+                FileMetadata.class);
+        cache.invalidate(fileId);
+        if (removed == null) {
+            return false;
+        }
+        tagIndex.removed(removed);
+        return true;
+    }
+
+    /**
+     * Next batch (by id) of the documents matching {@code criteria}.
+     */
+    public List<FileMetadata> findBatch(Criteria criteria, @Nullable String afterId, int limit) {
+        Query query = Query.query(criteria).with(Sort.by("_id")).limit(limit);
+        if (afterId != null) {
+            query.addCriteria(Criteria.where("_id").gt(afterId));
+        }
+        return mongo.find(query, FileMetadata.class);
+    }
+
+    public long count(Criteria criteria) {
+        return mongo.count(Query.query(criteria), FileMetadata.class);
+    }
+
+    /**
+     * Marks the unclaimed documents among {@code ids} with {@code claim}, so nothing else deletes them.
+     *
+     * @return the documents this claim owns
+     */
+    public List<FileMetadata> claimForDelete(Collection<String> ids, String claim) {
+        mongo.updateMulti(
+                Query.query(Criteria.where("_id").in(ids).and("deleteClaim").exists(false)),
+                new Update().set("deleteClaim", claim).set("deleteClaimTs", Instant.now()),
+                FileMetadata.class
+        );
+        return findClaimed(claim);
+    }
+
+    public List<FileMetadata> findClaimed(String claim) {
+        return mongo.find(Query.query(Criteria.where("deleteClaim").is(claim)), FileMetadata.class);
+    }
+
+    /**
+     * Deletes the documents of {@code claim} with one write. Tag counts are adjusted only when exactly the
+     * {@code claimed} documents went away; otherwise part of the claim was taken over in between and the
+     * counts are corrected by the next {@link TagIndexService#rebuild()}.
+     *
+     * @return the number of documents this call removed
+     */
+    public long removeClaimed(String claim, List<FileMetadata> claimed) {
+        long removed = mongo.remove(Query.query(Criteria.where("deleteClaim").is(claim)), FileMetadata.class)
+                .getDeletedCount();
+        claimed.forEach(meta -> cache.invalidate(meta.getId()));
+        if (removed == claimed.size()) {
+            tagIndex.removedAll(claimed);
+        }
+        return removed;
+    }
+
+    /**
+     * Gives up a claim whose delete failed; the documents are deletable again.
+     */
+    public void releaseClaim(String claim) {
+        mongo.updateMulti(Query.query(Criteria.where("deleteClaim").is(claim)),
+                new Update().unset("deleteClaim").unset("deleteClaimTs"), FileMetadata.class);
+    }
+
+    /**
+     * Claims taken before {@code staleBefore}: left behind by a bulk delete that did not finish.
+     */
+    public List<String> staleDeleteClaims(Instant staleBefore) {
+        return mongo.findDistinct(Query.query(Criteria.where("deleteClaimTs").lt(staleBefore)),
+                "deleteClaim", FileMetadata.class, String.class);
+    }
+
+    /**
+     * Moves the documents of a claim that is still stale over to {@code claim}. Each document moves
+     * atomically, so when several instances adopt the same claim every document ends up with one of them.
+     *
+     * @return the documents {@code claim} owns
+     */
+    public List<FileMetadata> adoptClaim(String stale, Instant staleBefore, String claim) {
+        mongo.updateMulti(
+                Query.query(Criteria.where("deleteClaim").is(stale).and("deleteClaimTs").lt(staleBefore)),
+                new Update().set("deleteClaim", claim).set("deleteClaimTs", Instant.now()),
+                FileMetadata.class
+        );
+        return findClaimed(claim);
+    }
+
+    /**
+     * Writes the tags and visibility of {@code after} with one unordered bulk write. Each update is conditional on
+     * the document still looking like its {@code before} counterpart, so a concurrent change is not overwritten.
+     *
+     * @return the number of documents changed
+     */
+    public int updateAll(List<FileMetadata> before, List<FileMetadata> after) {
+        if (after.isEmpty()) {
+            return 0;
+        }
+        BulkOperations bulk = mongo.bulkOps(BulkOperations.BulkMode.UNORDERED, FileMetadata.class);
+        for (int i = 0; i < after.size(); i++) {
+            FileMetadata old = before.get(i);
+            FileMetadata changed = after.get(i);
+            bulk.updateOne(
+                    Query.query(Criteria.where("_id").is(old.getId())
+                            .and("tags").is(old.getTags())
+                            .and("visibility").is(old.getVisibility())
+                            .and("deleteClaim").exists(false)),
+                    new Update().set("tags", changed.getTags()).set("visibility", changed.getVisibility())
+            );
+        }
+        int modified;
+        try {
+            modified = bulk.execute().getModifiedCount();
+        } finally {
+            after.forEach(meta -> cache.invalidate(meta.getId()));
+        }
+        // counts of documents that changed in between drift until the next rebuild, as with other races
+        tagIndex.changedAll(before, after);
+        return modified;
     }
 
     public FileMetadata getById(String fileId) {
-        return repo.findById(fileId).orElseThrow(() -> new NotFoundException("File not found"));
+        return cache.get(fileId, repo::findById).orElseThrow(() -> new NotFoundException("File not found"));
     }
 
     public FileMetadata getOwned(String userId, String fileId) {
@@ -102,7 +343,8 @@ public class MetadataService {
         return meta;
     }
 
-    public Page<FileMetadata> listPublic(@Nullable String tag, Pageable pageable) {
+    public Page<FileMetadata> listPublic(@Nullable String tag, Pageable requested) {
+        Pageable pageable = indexed(requested);
         return (tag == null || tag.isBlank())
                 ? repo.findByVisibility(VisibilityType.PUBLIC, pageable)
                 : repo.findByVisibilityAndTagsContains(
@@ -110,13 +352,137 @@ public class MetadataService {
                 FileProcessingUtility.normalizeTag(tag), pageable);
     }
 
-    public Page<FileMetadata> listOwned(String ownerId, @Nullable String tag, Pageable pageable) {
+    public Page<FileMetadata> listOwned(String ownerId, @Nullable String tag, Pageable requested) {
+        Pageable pageable = indexed(requested);
         return (tag == null || tag.isBlank())
                 ? repo.findByOwnerId(ownerId, pageable)
                 : repo.findByOwnerIdAndTagsContains(ownerId, tag.toLowerCase(), pageable);
     }
 
+    /**
+     * Keyset listing of public files: constant cost per page however deep, no total count.
+     */
+    public FileSlice listPublicAfter(@Nullable String tag, Sort.Order order, int size, @Nullable String cursor) {
+        Criteria filter = Criteria.where("visibility").is(VisibilityType.PUBLIC);
+        if (tag != null && !tag.isBlank()) {
+            filter = filter.and("tags").is(FileProcessingUtility.normalizeTag(tag));
+        }
+        return slice(filter, order, size, cursor);
+    }
+
+    public FileSlice listOwnedAfter(
+            String ownerId,
+            @Nullable String tag,
+            Sort.Order order,
+            int size,
+            @Nullable String cursor
+    ) {
+        Criteria filter = Criteria.where("ownerId").is(ownerId);
+        if (tag != null && !tag.isBlank()) {
+            filter = filter.and("tags").is(tag.toLowerCase());
+        }
+        return slice(filter, order, size, cursor);
+    }
+
+    /**
+     * Cursor over all files of an owner (or all public files when {@code ownerId} is null), in id order.
+     * The caller must close the stream.
+     */
+    public Stream<FileMetadata> streamAll(@Nullable String ownerId) {
+        return ownerId == null
+                ? repo.streamByVisibilityOrderByIdAsc(VisibilityType.PUBLIC)
+                : repo.streamByOwnerIdOrderByIdAsc(ownerId);
+    }
+
     public long countByHash(String hash) {
         return repo.countByHash(hash);
     }
-}
\ No newline at end of file
+
+    private FileSlice slice(Criteria filter, Sort.Order requested, int size, @Nullable String cursor) {
+        if (size < 1 || size > MAX_SLICE_SIZE) {
+            throw new BadRequestException("Size must be between 1 and " + MAX_SLICE_SIZE);
+        }
+        Sort.Order order = sortOrder(requested);
+        FileCursor after = (cursor == null || cursor.isBlank()) ? null : FileCursor.decode(cursor, order);
+
+        // one extra document tells whether there is a next page
+        List<FileMetadata> found = repo.findAfter(
+                filter,
+                order,
+                after == null ? null : after.value(),
+                after == null ? null : after.id(),
+                size + 1
+        );
+        if (found.size() <= size) {
+            return new FileSlice(found, null);
+        }
+        List<FileMetadata> items = found.subList(0, size);
+        return new FileSlice(items, FileCursor.after(order, items.getLast()).encode());
+    }
+
+    /**
+     * Same page with its sort checked against {@link #SORT_FIELDS} (default fileName ascending) and {@code _id}
+     * appended, so the query walks one of the listing indexes and pages are stable.
+     */
+    static Pageable indexed(Pageable pageable) {
+        Sort sort = pageable.getSort();
+        if (sort.stream().count() > 1) {
+            throw new BadRequestException("Listings can be sorted by one field only");
+        }
+        Sort.Order order = sort.isSorted() ? sortOrder(sort.iterator().next()) : Sort.Order.asc("fileName");
+        return PageRequest.of(pageable.getPageNumber(), pageable.getPageSize(),
+                Sort.by(order, new Sort.Order(order.getDirection(), "_id")));
+    }
+
+    private static Sort.Order sortOrder(Sort.Order requested) {
+        return SORT_FIELDS.stream()
+                .filter(f -> f.equalsIgnoreCase(requested.getProperty()))
+                .findFirst()
+                .map(f -> new Sort.Order(requested.getDirection(), f))
+                .orElseThrow(() -> new BadRequestException("Listings can be sorted by " + SORT_FIELDS));
+    }
+
+    /**
+     * Next batch (by id) of documents whose hash was computed with another algorithm.
+     */
+    public List<FileMetadata> findHashedOtherThan(HashAlgorithm algorithm, String afterId, int limit) {
+        return repo.findByIdGreaterThanAndHashAlgorithmNot(
+                afterId, algorithm, PageRequest.of(0, limit, Sort.by("id")));
+    }
+
+    /**
+     * Switches a document from {@code oldHash} to {@code newHash}. Compare-and-set on the old hash,
+     * so a concurrently deleted or already migrated document is left alone.
+     *
+     * @return false when nothing was updated or the owner already has {@code newHash} under another document
+     */
+    public boolean rehash(String fileId, String oldHash, String newHash, boolean inline) {
+        try {
+            return mongo.updateFirst(
+                    Query.query(Criteria.where("_id").is(fileId).and("hash").is(oldHash)
+                            .and("deleteClaim").exists(false)),
+                    new Update()
+                            .set("hash", newHash)
+                            .set("hashAlgorithm", HashAlgorithm.ofKey(newHash))
+                            .set("inline", inline),
+                    FileMetadata.class
+            ).getModifiedCount() > 0;
+        } catch (DataIntegrityViolationException e) {
+            log.info("File {} keeps hash {}: owner already has content {}", fileId, oldHash, newHash);
+            return false;
+        } finally {
+            cache.invalidate(fileId);
+        }
+    }
+
+    public enum InsertFailure {
+        DUPLICATE,
+        ERROR
+    }
+
+    /**
+     * One page of a keyset listing; {@code nextCursor} is null on the last page.
+     */
+    public record FileSlice(List<FileMetadata> items, @Nullable String nextCursor) {
+    }
+}
@@ -0,0 +1,152 @@
+package org.teletronics.vsyrov.filestorage.service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.data.domain.Pageable;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Service;
+import org.teletronics.vsyrov.filestorage.common.exception.BadRequestException;
+import org.teletronics.vsyrov.filestorage.common.exception.DuplicateFileException;
+import org.teletronics.vsyrov.filestorage.common.exception.ForbiddenException;
+import org.teletronics.vsyrov.filestorage.common.exception.NotFoundException;
+import org.teletronics.vsyrov.filestorage.common.exception.UnexpectedStorageException;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.dao.ReactiveFileMetadataRepository;
+import org.teletronics.vsyrov.filestorage.service.upload.ReactiveContentReceiver;
+import org.teletronics.vsyrov.filestorage.service.utility.FileProcessingUtility;
+import org.teletronics.vsyrov.filestorage.storage.ContentStorageService;
+import org.teletronics.vsyrov.filestorage.storage.StoredContent;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * {@link FileService} for the reactive API. Reads go through the reactive Mongo driver and bodies stream
+ * between socket and disk without blocking. The short commit steps that maintain blob reference counts
+ * and tag counts (move into the CAS, save or delete metadata) reuse {@link FileService} on the bounded
+ * elastic scheduler, so both editions share one consistency protocol.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveFileService {
+    private final ReactiveFileMetadataRepository repo;
+    private final ReactiveContentReceiver contentReceiver;
+    private final ContentStorageService contentStorageService;
+    private final FileService fileService;
+    private final BlobService blobService;
+    private final TagIndexService tagIndexService;
+
+    public Mono<FileMetadata> uploadStream(
+            String ownerId,
+            Flux<DataBuffer> body,
+            long declaredSize,
+            @Nullable String contentType,
+            String filename,
+            VisibilityType visibility,
+            @Nullable List<String> tags
+    ) {
+        if (StringUtils.isBlank(filename)) {
+            return Mono.error(new BadRequestException("Filename is required for streaming upload"));
+        }
+        String trimmed = filename.trim();
+        List<String> normTags = FileProcessingUtility.normalizeTags(tags);
+        return repo.existsByOwnerIdAndFileName(ownerId, trimmed)
+                .flatMap(exists -> exists
+                        ? Mono.error(new DuplicateFileException("Filename already exists for this user"))
+                        : contentReceiver.receive(body))
+                .flatMap(received -> blocking(() -> fileService.commit(
+                        ownerId,
+                        trimmed,
+                        received.temp(),
+                        received.hash(),
+                        declaredSize > 0 ? declaredSize : received.size(),
+                        received.head(),
+                        contentType,
+                        visibility,
+                        normTags
+                )));
+    }
+
+    public Mono<FileService.DownloadResource> download(String fileId, String userId) {
+        return repo.findById(fileId)
+                .switchIfEmpty(Mono.error(new NotFoundException("File not found")))
+                .flatMap(meta -> {
+                    if (!meta.getOwnerId().equals(userId) && meta.getVisibility() != VisibilityType.PUBLIC) {
+                        return Mono.error(new ForbiddenException(
+                                "Download file " + fileId + " unavailable for user " + userId));
+                    }
+                    return blocking(() -> {
+                        if (meta.isInline()) {
+                            byte[] data = blobService.inlineData(meta.getHash());
+                            if (data == null) {
+                                throw new UnexpectedStorageException("Download failed for file " + fileId, null);
+                            }
+                            return FileService.DownloadResource.inline(data, meta);
+                        }
+                        StoredContent stored = contentStorageService.locateForRead(meta.getHash());
+                        if (stored == null) {
+                            throw new UnexpectedStorageException("Download failed for file " + fileId, null);
+                        }
+                        return FileService.DownloadResource.of(stored, meta);
+                    });
+                });
+    }
+
+    public Flux<FileMetadata> listPublic(@Nullable String tag, Pageable requested) {
+        Pageable pageable = MetadataService.indexed(requested);
+        return (tag == null || tag.isBlank())
+                ? repo.findByVisibility(VisibilityType.PUBLIC, pageable)
+                : repo.findByVisibilityAndTagsContains(
+                VisibilityType.PUBLIC, FileProcessingUtility.normalizeTag(tag), pageable);
+    }
+
+    public Flux<FileMetadata> listOwned(String ownerId, @Nullable String tag, Pageable requested) {
+        Pageable pageable = MetadataService.indexed(requested);
+        return (tag == null || tag.isBlank())
+                ? repo.findByOwnerId(ownerId, pageable)
+                : repo.findByOwnerIdAndTagsContains(ownerId, tag.toLowerCase(), pageable);
+    }
+
+    /**
+     * Catalogue export; demand from the response drives the Mongo cursor.
+     */
+    public Flux<FileMetadata> exportAll(@Nullable String ownerId) {
+        return ownerId == null
+                ? repo.findByVisibilityOrderByIdAsc(VisibilityType.PUBLIC)
+                : repo.findByOwnerIdOrderByIdAsc(ownerId);
+    }
+
+    public Mono<Map<String, Long>> getAccessibleTags(String userId) {
+        return blocking(() -> tagIndexService.accessibleTags(userId));
+    }
+
+    public Mono<Void> rename(String ownerId, String fileId, String newName) {
+        return blocking(() -> {
+            fileService.rename(ownerId, fileId, newName);
+            return true;
+        }).then();
+    }
+
+    public Mono<Void> delete(String ownerId, String fileId) {
+        return blocking(() -> {
+            fileService.delete(ownerId, fileId);
+            return true;
+        }).then();
+    }
+
+    private static <T> Mono<T> blocking(Callable<T> call) {
+        return Mono.fromCallable(call).subscribeOn(Schedulers.boundedElastic());
+    }
+}
@@ -0,0 +1,228 @@
+package org.teletronics.vsyrov.filestorage.service;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.ComparisonOperators;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
+import org.springframework.data.mongodb.core.aggregation.StringOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.TagCount;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+
+/**
+ * Materialised tag counts in the {@code tag_counts} collection, kept up to date with {@code $inc} as files
+ * are added and removed, so listing the tags a user can see never scans {@code metadata}.
+ * <p>
+ * A user sees the {@code public} scope plus their own {@code private:<ownerId>} scope; both are cached per
+ * scope for {@code ttl}, which bounds staleness for changes made by other instances. Local changes drop the
+ * touched scopes right away. The counts are rebuilt from the metadata on startup when the collection is
+ * empty or {@code filestorage.tags.rebuild-on-startup} is set.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Service
+public class TagIndexService implements InitializingBean {
+    static final String PUBLIC_SCOPE = "public";
+    private static final String PRIVATE_SCOPE_PREFIX = "private:";
+    private static final int REBUILD_BATCH = 1000;
+
+    private final MongoTemplate mongo;
+    private final boolean rebuildOnStartup;
+    private final Cache<String, Map<String, Long>> cache;
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public TagIndexService(
+            MongoTemplate mongo,
+            @Value("${filestorage.tags.rebuild-on-startup:false}") boolean rebuildOnStartup,
+            @Value("${filestorage.tags.cache-max-size:10000}") long cacheMaxSize,
+            @Value("${filestorage.tags.cache-ttl:PT10S}") Duration cacheTtl,
+            MeterRegistry registry
+    ) {
+        this.mongo = mongo;
+        this.rebuildOnStartup = rebuildOnStartup;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(cacheMaxSize)
+                .expireAfterWrite(cacheTtl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(registry, cache, "tags");
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (rebuildOnStartup || mongo.estimatedCount(TagCount.class) == 0) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Tags of every file {@code userId} can see (public ones and their own), with the number of such files.
+     */
+    public Map<String, Long> accessibleTags(String userId) {
+        Map<String, Long> merged = new TreeMap<>(scope(PUBLIC_SCOPE));
+        scope(privateScope(userId)).forEach((tag, count) -> merged.merge(tag, count, Long::sum));
+        return merged;
+    }
+
+    public void added(FileMetadata meta) {
+        apply(List.of(meta), 1);
+    }
+
+    /**
+     * Same as {@link #added} for many files, with one bulk write for all their tags.
+     */
+    public void addedAll(List<FileMetadata> metas) {
+        apply(metas, 1);
+    }
+
+    public void removed(FileMetadata meta) {
+        apply(List.of(meta), -1);
+    }
+
+    public void removedAll(List<FileMetadata> metas) {
+        apply(metas, -1);
+    }
+
+    /**
+     * Tags or visibility of files changed: the old state is removed from the counts and the new one added.
+     */
+    public void changedAll(List<FileMetadata> before, List<FileMetadata> after) {
+        apply(before, -1);
+        apply(after, 1);
+    }
+
+    /**
+     * Recomputes all counts from the metadata. Runs before the web server starts, so it does not race
+     * with local uploads.
+     */
+    public void rebuild() {
+        long started = System.currentTimeMillis();
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("tags.0").exists(true)),
+                Aggregation.unwind("tags"),
+                Aggregation.project("tags")
+                        .and(ConditionalOperators.when(ComparisonOperators.valueOf("visibility")
+                                        .equalToValue(VisibilityType.PUBLIC.name()))
+                                .then(PUBLIC_SCOPE)
+                                .otherwiseValueOf(StringOperators.Concat.stringValue(PRIVATE_SCOPE_PREFIX)
+                                        .concatValueOf("ownerId")))
+                        .as("scope"),
+                Aggregation.group("scope", "tags").count().as("count")
+        );
+        mongo.remove(new Query(), TagCount.class);
+        BulkOperations bulk = mongo.bulkOps(BulkOperations.BulkMode.UNORDERED, TagCount.class);
+        int pending = 0;
+        long total = 0;
+        try (Stream<Document> groups = mongo.aggregateStream(aggregation, FileMetadata.class, Document.class)) {
+            for (Document group : (Iterable<Document>) groups::iterator) {
+                Document key = group.get("_id", Document.class);
+                bulk.insert(TagCount.builder()
+                        .scope(key.getString("scope"))
+                        .tag(key.getString("tags"))
+                        .count(((Number) group.get("count")).longValue())
+                        .build());
+                total++;
+                if (++pending == REBUILD_BATCH) {
+                    bulk.execute();
+                    bulk = mongo.bulkOps(BulkOperations.BulkMode.UNORDERED, TagCount.class);
+                    pending = 0;
+                }
+            }
+        }
+        if (pending > 0) {
+            bulk.execute();
+        }
+        invalidations.incrementAndGet();
+        cache.invalidateAll();
+        log.info("Rebuilt {} tag counts in {} ms", total, System.currentTimeMillis() - started);
+    }
+
+    private void apply(List<FileMetadata> metas, int delta) {
+        // scope -> tag -> delta, so a batch costs one bulk write however many files share a tag
+        Map<String, Map<String, Integer>> deltas = new HashMap<>();
+        for (FileMetadata meta : metas) {
+            if (meta.getTags() == null) {
+                continue;
+            }
+            Map<String, Integer> scoped = deltas.computeIfAbsent(scopeOf(meta), k -> new HashMap<>());
+            meta.getTags().forEach(tag -> scoped.merge(tag, delta, Integer::sum));
+        }
+        deltas.values().removeIf(Map::isEmpty);
+        if (deltas.isEmpty()) {
+            return;
+        }
+        try {
+            BulkOperations bulk = mongo.bulkOps(BulkOperations.BulkMode.UNORDERED, TagCount.class);
+            deltas.forEach((scope, tags) -> tags.forEach((tag, d) ->
+                    bulk.upsert(Query.query(Criteria.where("scope").is(scope).and("tag").is(tag)),
+                            new Update().inc("count", d))));
+            bulk.execute();
+            if (delta < 0) {
+                for (var entry : deltas.entrySet()) {
+                    mongo.remove(Query.query(Criteria.where("scope").is(entry.getKey())
+                                    .and("tag").in(entry.getValue().keySet()).and("count").lte(0)),
+                            TagCount.class);
+                }
+            }
+        } catch (Exception e) {
+            // the file change itself is done; a rebuild brings the counts back in line
+            log.warn("Failed to update tag counts of {} files", metas.size(), e);
+        } finally {
+            invalidations.incrementAndGet();
+            deltas.keySet().forEach(cache::invalidate);
+        }
+    }
+
+    private Map<String, Long> scope(String scope) {
+        // loaded outside the cache so no map lock is held during the query (see MetadataCache#get)
+        Map<String, Long> counts = cache.getIfPresent(scope);
+        if (counts == null) {
+            long generation = invalidations.get();
+            counts = load(scope);
+            if (invalidations.get() == generation) {
+                cache.put(scope, counts);
+            }
+        }
+        return counts;
+    }
+
+    private Map<String, Long> load(String scope) {
+        Query query = Query.query(Criteria.where("scope").is(scope).and("count").gt(0));
+        query.fields().include("tag", "count");
+        Map<String, Long> counts = new HashMap<>();
+        for (TagCount tc : mongo.find(query, TagCount.class)) {
+            counts.put(tc.getTag(), tc.getCount());
+        }
+        return Map.copyOf(counts);
+    }
+
+    private static String scopeOf(FileMetadata meta) {
+        return meta.getVisibility() == VisibilityType.PUBLIC ? PUBLIC_SCOPE : privateScope(meta.getOwnerId());
+    }
+
+    private static String privateScope(String ownerId) {
+        return PRIVATE_SCOPE_PREFIX + ownerId;
+    }
+}
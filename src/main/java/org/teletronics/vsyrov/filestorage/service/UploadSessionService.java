@@ -0,0 +1,289 @@
+package org.teletronics.vsyrov.filestorage.service;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.lang.Nullable;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.teletronics.vsyrov.filestorage.common.exception.BadRequestException;
+import org.teletronics.vsyrov.filestorage.common.exception.DuplicateFileException;
+import org.teletronics.vsyrov.filestorage.common.exception.ForbiddenException;
+import org.teletronics.vsyrov.filestorage.common.exception.NotFoundException;
+import org.teletronics.vsyrov.filestorage.common.exception.UnexpectedStorageException;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.UploadSession;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.dao.UploadSessionRepository;
+import org.teletronics.vsyrov.filestorage.service.upload.ContentReceiver;
+import org.teletronics.vsyrov.filestorage.service.upload.ReceivedContent;
+import org.teletronics.vsyrov.filestorage.service.upload.UploadAdmission;
+import org.teletronics.vsyrov.filestorage.service.utility.FileProcessingUtility;
+import org.teletronics.vsyrov.filestorage.storage.ContentStorageService;
+import org.teletronics.vsyrov.filestorage.storage.FileSystemPartStorage;
+import org.teletronics.vsyrov.filestorage.storage.FileSystemPartStorage.Part;
+
+/**
+ * Resumable uploads: parts are PUT independently (in parallel, retried one by one) and stitched together
+ * on completion, then committed through the same path as a single-request upload.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Service
+public class UploadSessionService {
+    public static final int MAX_PARTS = 10_000;
+
+    private final UploadSessionRepository repo;
+    private final MongoTemplate mongo;
+    private final FileSystemPartStorage partStorage;
+    private final ContentStorageService contentStorageService;
+    private final MetadataService metadataService;
+    private final FileService fileService;
+    private final ContentReceiver contentReceiver;
+    private final UploadAdmission admission;
+    private final Duration ttl;
+
+    public UploadSessionService(
+            UploadSessionRepository repo,
+            MongoTemplate mongo,
+            FileSystemPartStorage partStorage,
+            ContentStorageService contentStorageService,
+            MetadataService metadataService,
+            FileService fileService,
+            ContentReceiver contentReceiver,
+            UploadAdmission admission,
+            @Value("${filestorage.upload-session.ttl:PT24H}") Duration ttl
+    ) {
+        this.repo = repo;
+        this.mongo = mongo;
+        this.partStorage = partStorage;
+        this.contentStorageService = contentStorageService;
+        this.metadataService = metadataService;
+        this.fileService = fileService;
+        this.contentReceiver = contentReceiver;
+        this.admission = admission;
+        this.ttl = ttl;
+    }
+
+    public UploadSession create(
+            String ownerId,
+            String filename,
+            VisibilityType visibility,
+            @Nullable List<String> tags,
+            @Nullable String contentType
+    ) {
+        if (StringUtils.isBlank(filename)) {
+            throw new BadRequestException("Filename is required");
+        }
+        if (visibility == null) {
+            throw new BadRequestException("Visibility is required");
+        }
+        String trimmed = filename.trim();
+        if (metadataService.existsNameForUser(ownerId, trimmed)) {
+            throw new DuplicateFileException("Filename already exists for this user");
+        }
+        Instant now = Instant.now();
+        return repo.save(UploadSession.builder()
+                .id(UUID.randomUUID().toString())
+                .ownerId(ownerId)
+                .fileName(trimmed)
+                .contentType(contentType)
+                .visibility(visibility)
+                .tags(FileProcessingUtility.normalizeTags(tags))
+                .createdTs(now)
+                .expiresAt(now.plus(ttl))
+                .build());
+    }
+
+    public Part uploadPart(String ownerId, String sessionId, int partNumber, InputStream body) {
+        if (partNumber < 1 || partNumber > MAX_PARTS) {
+            throw new BadRequestException("Part number must be between 1 and " + MAX_PARTS);
+        }
+        UploadSession session = getOwned(ownerId, sessionId);
+        if (session.isCompleting()) {
+            throw new BadRequestException("Upload session is being completed");
+        }
+        try {
+            Part part = partStorage.writePart(sessionId, partNumber, admission.throttle(body));
+            touch(sessionId);
+            return part;
+        } catch (Exception e) {
+            throw new UnexpectedStorageException("Failed to store part " + partNumber + " of session " + sessionId, e);
+        }
+    }
+
+    public List<Part> listParts(String ownerId, String sessionId) {
+        getOwned(ownerId, sessionId);
+        try {
+            return partStorage.listParts(sessionId);
+        } catch (Exception e) {
+            throw new UnexpectedStorageException("Failed to list parts of session " + sessionId, e);
+        }
+    }
+
+    /**
+     * Stitches parts {@code 1..partCount} into the CAS temp area, hashes the result and commits it.
+     * The session is removed on success and on a definitive conflict; on storage errors it stays
+     * so the client can retry.
+     */
+    public FileMetadata complete(String ownerId, String sessionId, int partCount) {
+        if (partCount < 1 || partCount > MAX_PARTS) {
+            throw new BadRequestException("Part count must be between 1 and " + MAX_PARTS);
+        }
+        UploadSession session = acquireForCompletion(ownerId, sessionId);
+
+        Path temp = null;
+        try {
+            List<Path> parts = orderedParts(sessionId, partCount);
+            temp = contentStorageService.concatTemp(parts);
+
+            ReceivedContent received = contentReceiver.hashFile(temp);
+
+            Path committed = temp;
+            temp = null;
+            FileMetadata meta = fileService.commit(
+                    ownerId,
+                    session.getFileName(),
+                    committed,
+                    received.hash(),
+                    received.size(),
+                    received.head(),
+                    session.getContentType(),
+                    session.getVisibility(),
+                    session.getTags()
+            );
+            discard(sessionId);
+            return meta;
+        } catch (DuplicateFileException e) {
+            discard(sessionId);
+            throw e;
+        } catch (BadRequestException e) {
+            release(sessionId);
+            throw e;
+        } catch (Exception e) {
+            release(sessionId);
+            throw new UnexpectedStorageException("Failed to complete upload session " + sessionId, e);
+        } finally {
+            deleteQuietly(temp);
+        }
+    }
+
+    public void abort(String ownerId, String sessionId) {
+        getOwned(ownerId, sessionId);
+        discard(sessionId);
+    }
+
+    public UploadSession getOwned(String ownerId, String sessionId) {
+        UploadSession session = repo.findById(sessionId)
+                .filter(s -> s.getExpiresAt() == null || s.getExpiresAt().isAfter(Instant.now()))
+                .orElseThrow(() -> new NotFoundException("Upload session not found"));
+        if (!session.getOwnerId().equals(ownerId)) {
+            log.info("Forbidden access on upload session {} for user {}", sessionId, ownerId);
+            throw new ForbiddenException("You do not have permission to this upload session");
+        }
+        return session;
+    }
+
+    /**
+     * Removes part directories whose session is gone: expired (dropped by the TTL index) or finished
+     * on another instance.
+     */
+    @Scheduled(
+            initialDelayString = "${filestorage.upload-session.cleanup-interval:PT10M}",
+            fixedDelayString = "${filestorage.upload-session.cleanup-interval:PT10M}"
+    )
+    public void reapAbandoned() {
+        try {
+            Instant now = Instant.now();
+            Set<String> onDisk = new HashSet<>(partStorage.sessionIds());
+            for (String sessionId : onDisk) {
+                boolean alive = repo.findById(sessionId)
+                        .map(s -> s.getExpiresAt() == null || s.getExpiresAt().isAfter(now))
+                        .orElse(false);
+                if (!alive) {
+                    log.info("Reaping abandoned upload session {}", sessionId);
+                    discard(sessionId);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Failed to reap abandoned upload sessions", e);
+        }
+    }
+
+    private UploadSession acquireForCompletion(String ownerId, String sessionId) {
+        getOwned(ownerId, sessionId);
+        UploadSession session = mongo.findAndModify(
+                Query.query(Criteria.where("_id").is(sessionId).and("completing").is(false)),
+                new Update().set("completing", true),
+                FindAndModifyOptions.options().returnNew(true),
+                UploadSession.class
+        );
+        if (session == null) {
+            throw new BadRequestException("Upload session is already being completed");
+        }
+        return session;
+    }
+
+    private List<Path> orderedParts(String sessionId, int partCount) throws Exception {
+        List<Part> parts = partStorage.listParts(sessionId);
+        if (parts.size() < partCount) {
+            throw new BadRequestException("Expected " + partCount + " parts, got " + parts.size());
+        }
+        for (int i = 0; i < partCount; i++) {
+            if (parts.get(i).number() != i + 1) {
+                throw new BadRequestException("Part " + (i + 1) + " is missing");
+            }
+        }
+        return parts.subList(0, partCount).stream().map(Part::path).toList();
+    }
+
+    private void touch(String sessionId) {
+        mongo.updateFirst(
+                Query.query(Criteria.where("_id").is(sessionId)),
+                new Update().set("expiresAt", Instant.now().plus(ttl)),
+                UploadSession.class
+        );
+    }
+
+    private void release(String sessionId) {
+        mongo.updateFirst(
+                Query.query(Criteria.where("_id").is(sessionId)),
+                new Update().set("completing", false),
+                UploadSession.class
+        );
+    }
+
+    private void discard(String sessionId) {
+        repo.deleteById(sessionId);
+        try {
+            partStorage.deleteSession(sessionId);
+        } catch (Exception e) {
+            log.warn("Failed to remove parts of upload session {}", sessionId, e);
+        }
+    }
+
+    private static void deleteQuietly(@Nullable Path path) {
+        try {
+            if (path != null) {
+                Files.deleteIfExists(path);
+            }
+        } catch (Exception ignore) {
+        }
+    }
+}
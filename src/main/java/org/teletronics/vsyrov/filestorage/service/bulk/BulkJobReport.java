@@ -0,0 +1,29 @@
+package org.teletronics.vsyrov.filestorage.service.bulk;
+
+import java.time.Instant;
+
+/**
+ * Progress of a bulk job, or its result once {@code running} is false.
+ *
+ * @param total     files selected when the job started (for a filter an estimate, files may come and go)
+ * @param processed files deleted or changed
+ * @param skipped   selected ids that are not the caller's, files already in the requested state or changed
+ *                  concurrently
+ * @param failed    files of batches that failed
+ * @param reclaimed stored objects removed because a deleted file held their last reference
+ * @author vsyrov
+ */
+public record BulkJobReport(
+        String id,
+        BulkOperation operation,
+        boolean running,
+        Instant startedAt,
+        Instant finishedAt,
+        long total,
+        long processed,
+        long skipped,
+        long failed,
+        long reclaimed,
+        String error
+) {
+}
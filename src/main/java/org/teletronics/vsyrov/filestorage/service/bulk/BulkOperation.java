@@ -0,0 +1,10 @@
+package org.teletronics.vsyrov.filestorage.service.bulk;
+
+/**
+ * @author vsyrov
+ */
+public enum BulkOperation {
+    DELETE,
+    RETAG,
+    SET_VISIBILITY,
+}
@@ -0,0 +1,353 @@
+package org.teletronics.vsyrov.filestorage.service.bulk;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.lang.Nullable;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.teletronics.vsyrov.filestorage.common.exception.BadRequestException;
+import org.teletronics.vsyrov.filestorage.common.exception.NotFoundException;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.service.BlobService;
+import org.teletronics.vsyrov.filestorage.service.MetadataService;
+import org.teletronics.vsyrov.filestorage.service.utility.FileProcessingUtility;
+
+/**
+ * Delete, retag or change the visibility of many files of one owner, selected by ids or by a filter.
+ * <p>
+ * A job runs in the background on one of {@code filestorage.bulk.parallelism} workers and walks its
+ * selection in batches of {@code filestorage.bulk.batch-size}: one query reads a batch, one bulk write
+ * changes it, and tag counts are adjusted with one bulk write as well. Deleted files drop their blob
+ * references with one bulk write per batch; objects left without references are removed from the CAS
+ * by a separate pool while the job goes on with the next batch.
+ * <p>
+ * A delete claims each batch (instance, job and batch in the claim, plus its time) before removing it, so
+ * every blob reference is released once. A claim older than {@code filestorage.bulk.claim-lease} belongs to
+ * a delete that died and is finished by whichever instance takes it over first.
+ * <p>
+ * Progress is kept in memory on the instance that runs the job and is readable for
+ * {@code filestorage.bulk.job-ttl} after it finished.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Service
+public class BulkOperationService {
+    private final MetadataService metadataService;
+    private final BlobService blobService;
+    private final int batchSize;
+    private final Duration jobTtl;
+    private final Duration claimLease;
+    private final String instanceId = UUID.randomUUID().toString();
+    private final AtomicInteger recoveries = new AtomicInteger();
+    private final ExecutorService workers;
+    private final ExecutorService reclaimers;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    public BulkOperationService(
+            MetadataService metadataService,
+            BlobService blobService,
+            @Value("${filestorage.bulk.parallelism:2}") int parallelism,
+            @Value("${filestorage.bulk.batch-size:500}") int batchSize,
+            @Value("${filestorage.bulk.job-ttl:PT1H}") Duration jobTtl,
+            @Value("${filestorage.bulk.claim-lease:PT10M}") Duration claimLease
+    ) {
+        this.metadataService = metadataService;
+        this.blobService = blobService;
+        this.batchSize = Math.max(batchSize, 1);
+        this.jobTtl = jobTtl;
+        this.claimLease = claimLease;
+        var workerFactory = new CustomizableThreadFactory("bulk-ops-");
+        workerFactory.setDaemon(true);
+        this.workers = Executors.newFixedThreadPool(Math.max(parallelism, 1), workerFactory);
+        var reclaimFactory = new CustomizableThreadFactory("bulk-reclaim-");
+        reclaimFactory.setDaemon(true);
+        this.reclaimers = Executors.newFixedThreadPool(Math.max(parallelism, 1), reclaimFactory);
+    }
+
+    /**
+     * Finishes bulk deletes some instance left half done: their documents are still claimed and their blob
+     * references not yet released. Only claims older than the lease are taken over, so a delete that is still
+     * running elsewhere is left alone.
+     */
+    @Scheduled(fixedDelayString = "${filestorage.bulk.claim-lease:PT10M}")
+    public void finishInterruptedDeletes() {
+        workers.submit(() -> {
+            Instant staleBefore = Instant.now().minus(claimLease);
+            for (String stale : metadataService.staleDeleteClaims(staleBefore)) {
+                String claim = instanceId + ":recovery:" + recoveries.getAndIncrement();
+                try {
+                    Job job = new Job("recovery", "", BulkOperation.DELETE, new BulkSelector(null, null, null, null));
+                    deleteClaimed(job, claim, metadataService.adoptClaim(stale, staleBefore, claim));
+                    job.awaitReclaims();
+                    log.info("Finished interrupted bulk delete {}: {} files", stale, job.processed.sum());
+                } catch (Exception e) {
+                    log.warn("Failed to finish interrupted bulk delete {}", stale, e);
+                }
+            }
+        });
+    }
+
+    public BulkJobReport delete(String ownerId, BulkSelector selector) {
+        return submit(ownerId, BulkOperation.DELETE, selector, this::deleteBatch);
+    }
+
+    /**
+     * Replaces the tags with {@code tags} when given, otherwise removes {@code removeTags} and adds
+     * {@code addTags}; the result is normalized like the tags of an upload.
+     */
+    public BulkJobReport retag(
+            String ownerId,
+            BulkSelector selector,
+            @Nullable List<String> tags,
+            @Nullable List<String> addTags,
+            @Nullable List<String> removeTags
+    ) {
+        if (tags == null && (addTags == null || addTags.isEmpty()) && (removeTags == null || removeTags.isEmpty())) {
+            throw new BadRequestException("Tags, addTags or removeTags are required");
+        }
+        List<String> removed = FileProcessingUtility.normalizeTags(removeTags);
+        UnaryOperator<FileMetadata> change = meta -> {
+            List<String> next;
+            if (tags != null) {
+                next = tags;
+            } else {
+                next = new ArrayList<>(meta.getTags() != null ? meta.getTags() : List.of());
+                next.removeAll(removed);
+                if (addTags != null) {
+                    next.addAll(addTags);
+                }
+            }
+            return meta.toBuilder().tags(FileProcessingUtility.normalizeTags(next)).build();
+        };
+        return submit(ownerId, BulkOperation.RETAG, selector, (job, batch) -> updateBatch(job, batch, change));
+    }
+
+    public BulkJobReport changeVisibility(String ownerId, BulkSelector selector, VisibilityType visibility) {
+        if (visibility == null) {
+            throw new BadRequestException("Visibility is required");
+        }
+        return submit(ownerId, BulkOperation.SET_VISIBILITY, selector,
+                (job, batch) -> updateBatch(job, batch, meta -> meta.toBuilder().visibility(visibility).build()));
+    }
+
+    public BulkJobReport status(String ownerId, String jobId) {
+        Job job = jobs.get(jobId);
+        if (job == null || !job.ownerId.equals(ownerId)) {
+            throw new NotFoundException("Bulk job not found");
+        }
+        return job.report();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        workers.shutdownNow();
+        reclaimers.shutdownNow();
+    }
+
+    private BulkJobReport submit(String ownerId, BulkOperation operation, BulkSelector selector, BatchHandler handler) {
+        if (selector.byIds() == selector.byFilter()) {
+            throw new BadRequestException("Select files either by ids or by tag, visibility and createdBefore");
+        }
+        Instant expired = Instant.now().minus(jobTtl);
+        jobs.values().removeIf(j -> j.finishedAt != null && j.finishedAt.isBefore(expired));
+
+        Job job = new Job(UUID.randomUUID().toString(), ownerId, operation, selector);
+        jobs.put(job.id, job);
+        workers.submit(() -> run(job, handler));
+        log.info("Bulk {} {} started for {}", operation, job.id, ownerId);
+        return job.report();
+    }
+
+    private void run(Job job, BatchHandler handler) {
+        try {
+            if (job.selector.byIds()) {
+                List<String> ids = List.copyOf(new LinkedHashSet<>(job.selector.ids()));
+                job.total = ids.size();
+                for (int from = 0; from < ids.size() && !Thread.currentThread().isInterrupted(); from += batchSize) {
+                    List<String> chunk = ids.subList(from, Math.min(ids.size(), from + batchSize));
+                    List<FileMetadata> batch = metadataService.findBatch(
+                            Criteria.where("ownerId").is(job.ownerId).and("_id").in(chunk), null, chunk.size());
+                    job.skipped.add(chunk.size() - batch.size());
+                    handle(job, handler, batch);
+                }
+            } else {
+                job.total = metadataService.count(filter(job));
+                String lastId = null;
+                while (!Thread.currentThread().isInterrupted()) {
+                    List<FileMetadata> batch = metadataService.findBatch(filter(job), lastId, batchSize);
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    lastId = batch.getLast().getId();
+                    handle(job, handler, batch);
+                }
+            }
+            job.awaitReclaims();
+        } catch (Exception e) {
+            job.error = e.getMessage() != null ? e.getMessage() : e.toString();
+            log.warn("Bulk {} {} failed", job.operation, job.id, e);
+        } finally {
+            job.finishedAt = Instant.now();
+        }
+        log.info("Bulk {} {} finished: {} of {} files processed, {} skipped, {} failed, {} objects reclaimed",
+                job.operation, job.id, job.processed.sum(), job.total, job.skipped.sum(), job.failed.sum(),
+                job.reclaimed.sum());
+    }
+
+    private void handle(Job job, BatchHandler handler, List<FileMetadata> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            handler.handle(job, batch);
+        } catch (Exception e) {
+            job.failed.add(batch.size());
+            log.warn("Bulk {} {}: a batch of {} files failed", job.operation, job.id, batch.size(), e);
+        }
+    }
+
+    private static Criteria filter(Job job) {
+        BulkSelector selector = job.selector;
+        Criteria criteria = Criteria.where("ownerId").is(job.ownerId);
+        if (selector.tag() != null && !selector.tag().isBlank()) {
+            criteria.and("tags").is(FileProcessingUtility.normalizeTag(selector.tag()));
+        }
+        if (selector.visibility() != null) {
+            criteria.and("visibility").is(selector.visibility());
+        }
+        if (selector.createdBefore() != null) {
+            criteria.and("createdTs").lt(selector.createdBefore());
+        }
+        return criteria;
+    }
+
+    private void deleteBatch(Job job, List<FileMetadata> batch) {
+        String claim = instanceId + ":" + job.id + ":" + job.batches.getAndIncrement();
+        List<FileMetadata> claimed = metadataService.claimForDelete(batch.stream().map(FileMetadata::getId).toList(),
+                claim);
+        // the rest went away or is being deleted by someone else in the meantime
+        job.skipped.add(batch.size() - claimed.size());
+        deleteClaimed(job, claim, claimed);
+    }
+
+    private void deleteClaimed(Job job, String claim, List<FileMetadata> claimed) {
+        if (claimed.isEmpty()) {
+            return;
+        }
+        long removed;
+        try {
+            removed = metadataService.removeClaimed(claim, claimed);
+        } catch (RuntimeException e) {
+            metadataService.releaseClaim(claim);
+            throw e;
+        }
+        job.processed.add(removed);
+        if (removed != claimed.size()) {
+            // the lease ran out and part of the claim was taken over: which documents this call removed is
+            // unknown, so no reference is released and the garbage collector corrects the counts
+            log.warn("Bulk delete {}: removed {} of {} claimed files, references left to the garbage collector",
+                    claim, removed, claimed.size());
+            return;
+        }
+
+        Map<String, Integer> refs = new HashMap<>();
+        claimed.forEach(meta -> refs.merge(meta.getHash(), 1, Integer::sum));
+        List<String> unreferenced;
+        try {
+            unreferenced = blobService.releaseAll(refs);
+        } catch (RuntimeException e) {
+            // the files are gone; the garbage collector corrects the counts of their blobs
+            log.warn("Bulk delete {}: failed to release {} blobs", claim, refs.size(), e);
+            return;
+        }
+        if (!unreferenced.isEmpty()) {
+            job.reclaims.add(CompletableFuture.runAsync(() -> unreferenced.forEach(hash -> {
+                try {
+                    if (blobService.reclaim(hash)) {
+                        job.reclaimed.increment();
+                    }
+                } catch (Exception e) {
+                    // the blob stays unreferenced, the garbage collector retries
+                    log.warn("Failed to reclaim content {}", hash, e);
+                }
+            }), reclaimers));
+        }
+    }
+
+    private void updateBatch(Job job, List<FileMetadata> batch, UnaryOperator<FileMetadata> change) {
+        List<FileMetadata> before = new ArrayList<>(batch.size());
+        List<FileMetadata> after = new ArrayList<>(batch.size());
+        for (FileMetadata meta : batch) {
+            FileMetadata changed = change.apply(meta);
+            if (Objects.equals(changed.getTags(), meta.getTags()) && changed.getVisibility() == meta.getVisibility()) {
+                job.skipped.increment();
+                continue;
+            }
+            before.add(meta);
+            after.add(changed);
+        }
+        int modified = metadataService.updateAll(before, after);
+        job.processed.add(modified);
+        job.skipped.add(after.size() - modified);
+    }
+
+    @FunctionalInterface
+    private interface BatchHandler {
+        void handle(Job job, List<FileMetadata> batch);
+    }
+
+    private static final class Job {
+        final String id;
+        final String ownerId;
+        final BulkOperation operation;
+        final BulkSelector selector;
+        final Instant startedAt = Instant.now();
+        final AtomicInteger batches = new AtomicInteger();
+        final LongAdder processed = new LongAdder();
+        final LongAdder skipped = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder reclaimed = new LongAdder();
+        final List<CompletableFuture<Void>> reclaims = new ArrayList<>();
+        volatile long total;
+        volatile Instant finishedAt;
+        volatile String error;
+
+        Job(String id, String ownerId, BulkOperation operation, BulkSelector selector) {
+            this.id = id;
+            this.ownerId = ownerId;
+            this.operation = operation;
+            this.selector = selector;
+        }
+
+        void awaitReclaims() {
+            CompletableFuture.allOf(reclaims.toArray(CompletableFuture[]::new)).join();
+        }
+
+        BulkJobReport report() {
+            return new BulkJobReport(id, operation, finishedAt == null, startedAt, finishedAt, total,
+                    processed.sum(), skipped.sum(), failed.sum(), reclaimed.sum(), error);
+        }
+    }
+}
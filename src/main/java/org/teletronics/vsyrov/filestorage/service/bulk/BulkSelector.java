@@ -0,0 +1,28 @@
+package org.teletronics.vsyrov.filestorage.service.bulk;
+
+import java.time.Instant;
+import java.util.List;
+
+import org.springframework.lang.Nullable;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+
+/**
+ * Files of the caller a bulk job applies to: either an explicit id list, or every file matching all of the
+ * given filter fields.
+ *
+ * @author vsyrov
+ */
+public record BulkSelector(
+        @Nullable List<String> ids,
+        @Nullable String tag,
+        @Nullable VisibilityType visibility,
+        @Nullable Instant createdBefore
+) {
+    public boolean byIds() {
+        return ids != null && !ids.isEmpty();
+    }
+
+    public boolean byFilter() {
+        return (tag != null && !tag.isBlank()) || visibility != null || createdBefore != null;
+    }
+}
@@ -0,0 +1,281 @@
+package org.teletronics.vsyrov.filestorage.service.gc;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.teletronics.vsyrov.filestorage.common.io.TokenBucket;
+import org.teletronics.vsyrov.filestorage.common.model.Blob;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.service.BlobService;
+import org.teletronics.vsyrov.filestorage.storage.ContentStorageService;
+import org.teletronics.vsyrov.filestorage.storage.StoredObject;
+
+/**
+ * Mark-and-sweep over the CAS: shards of the tree are walked in parallel, hashes are checked in batches
+ * against {@code blobs} and {@code metadata} with {@code $in} lookups, and objects nobody references that
+ * are older than the grace period are removed through {@link BlobService}, so a sweep cannot race an upload
+ * of the same content. Blobs that still count references although no file points at them and that were not
+ * touched for the grace period (a crash between removing files and releasing their references) are
+ * corrected and removed the same way.
+ * <p>
+ * Removal is throttled (files/s and bytes/s over all workers); a dry run only reports what would be removed.
+ * Progress and totals are available through {@link #status()} and the {@code filestorage.gc.*} metrics.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Service
+public class CasGarbageCollector {
+    private final ContentStorageService storage;
+    private final BlobService blobService;
+    private final MongoTemplate mongo;
+    private final boolean enabled;
+    private final boolean scheduledDryRun;
+    private final Duration grace;
+    private final int parallelism;
+    private final int batchSize;
+    private final double filesPerSecond;
+    private final double bytesPerSecond;
+    private final Counter scannedFiles;
+    private final Counter reclaimedFiles;
+    private final Counter reclaimedBytes;
+    private final ExecutorService launcher;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile Run current;
+    private volatile GcReport last = GcReport.NEVER_RUN;
+
+    public CasGarbageCollector(
+            ContentStorageService storage,
+            BlobService blobService,
+            MongoTemplate mongo,
+            MeterRegistry registry,
+            @Value("${filestorage.gc.enabled:true}") boolean enabled,
+            @Value("${filestorage.gc.dry-run:false}") boolean scheduledDryRun,
+            @Value("${filestorage.gc.grace-period:PT24H}") Duration grace,
+            @Value("${filestorage.gc.parallelism:4}") int parallelism,
+            @Value("${filestorage.gc.batch-size:500}") int batchSize,
+            @Value("${filestorage.gc.max-files-per-second:0}") double filesPerSecond,
+            @Value("${filestorage.gc.max-bytes-per-second:0B}") DataSize bytesPerSecond
+    ) {
+        this.storage = storage;
+        this.blobService = blobService;
+        this.mongo = mongo;
+        this.enabled = enabled;
+        this.scheduledDryRun = scheduledDryRun;
+        this.grace = grace;
+        this.parallelism = Math.max(parallelism, 1);
+        this.batchSize = Math.max(batchSize, 1);
+        this.filesPerSecond = filesPerSecond;
+        this.bytesPerSecond = bytesPerSecond.toBytes();
+        this.scannedFiles = Counter.builder("filestorage.gc.scanned.files").register(registry);
+        this.reclaimedFiles = Counter.builder("filestorage.gc.reclaimed.files").register(registry);
+        this.reclaimedBytes = Counter.builder("filestorage.gc.reclaimed.bytes").baseUnit("bytes").register(registry);
+        var threadFactory = new CustomizableThreadFactory("cas-gc-");
+        threadFactory.setDaemon(true);
+        this.launcher = Executors.newSingleThreadExecutor(threadFactory);
+    }
+
+    @Scheduled(
+            initialDelayString = "${filestorage.gc.interval:PT6H}",
+            fixedDelayString = "${filestorage.gc.interval:PT6H}"
+    )
+    public void scheduledRun() {
+        // a sweep takes long; the shared scheduler thread only hands it over
+        if (enabled) {
+            start(scheduledDryRun);
+        }
+    }
+
+    /**
+     * Starts a run in the background.
+     *
+     * @return false when a run is already in progress
+     */
+    public boolean start(boolean dryRun) {
+        if (running.get()) {
+            return false;
+        }
+        launcher.submit(() -> run(dryRun));
+        return true;
+    }
+
+    /**
+     * Runs a full sweep in the calling thread; returns the current report if another run is in progress.
+     */
+    public GcReport run(boolean dryRun) {
+        if (!running.compareAndSet(false, true)) {
+            return status();
+        }
+        Run run = new Run(dryRun, Instant.now().minus(grace));
+        current = run;
+        try {
+            List<String> shards = storage.shards();
+            run.shardsTotal = shards.size();
+            TokenBucket files = new TokenBucket(filesPerSecond);
+            TokenBucket bytes = new TokenBucket(bytesPerSecond);
+            var threadFactory = new CustomizableThreadFactory("cas-gc-worker-");
+            threadFactory.setDaemon(true);
+            ExecutorService workers = Executors.newFixedThreadPool(parallelism, threadFactory);
+            try {
+                List<Future<?>> futures = new ArrayList<>(shards.size());
+                for (String shard : shards) {
+                    futures.add(workers.submit(() -> {
+                        sweepShard(shard, run, files, bytes);
+                        return null;
+                    }));
+                }
+                for (Future<?> f : futures) {
+                    try {
+                        f.get();
+                    } catch (ExecutionException e) {
+                        run.errors.increment();
+                        log.warn("CAS garbage collection of a shard failed", e.getCause());
+                    }
+                }
+            } finally {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            run.errors.increment();
+        } catch (Exception e) {
+            run.errors.increment();
+            log.warn("CAS garbage collection failed", e);
+        } finally {
+            run.finishedAt = Instant.now();
+            last = run.report(false);
+            current = null;
+            running.set(false);
+        }
+        log.info("CAS garbage collection{} finished: scanned {} files, {} unreferenced ({} bytes), reclaimed {} files ({} bytes), {} errors",
+                dryRun ? " (dry run)" : "", last.scannedFiles(), last.candidateFiles(), last.candidateBytes(),
+                last.reclaimedFiles(), last.reclaimedBytes(), last.errors());
+        return last;
+    }
+
+    public GcReport status() {
+        Run run = current;
+        return run == null ? last : run.report(true);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        launcher.shutdownNow();
+    }
+
+    private void sweepShard(String shard, Run run, TokenBucket files, TokenBucket bytes) throws Exception {
+        List<StoredObject> objects = new ArrayList<>();
+        storage.walkShard(shard, o -> {
+            run.scannedFiles.increment();
+            run.scannedBytes.add(o.size());
+            scannedFiles.increment();
+            if (o.lastModified().isBefore(run.cutoff)) {
+                objects.add(o);
+            }
+        });
+        for (int from = 0; from < objects.size(); from += batchSize) {
+            sweepBatch(objects.subList(from, Math.min(objects.size(), from + batchSize)), run, files, bytes);
+        }
+        run.shardsDone.incrementAndGet();
+    }
+
+    private void sweepBatch(List<StoredObject> batch, Run run, TokenBucket files, TokenBucket bytes)
+            throws InterruptedException {
+        List<String> hashes = batch.stream().map(StoredObject::contentHash).toList();
+        Map<String, Blob> blobs = mongo.find(Query.query(Criteria.where("_id").in(hashes)), Blob.class).stream()
+                .collect(Collectors.toMap(Blob::getHash, Function.identity()));
+        Set<String> referenced = new HashSet<>(mongo.findDistinct(
+                Query.query(Criteria.where("hash").in(hashes)), "hash", FileMetadata.class, String.class));
+
+        for (StoredObject o : batch) {
+            Blob blob = blobs.get(o.contentHash());
+            // a blob that counts references nobody holds and was not touched for the grace period is over-counted
+            boolean overCounted = blob != null && blob.getRefCount() > 0 && blob.getUpdatedTs() != null
+                    && blob.getUpdatedTs().isBefore(run.cutoff);
+            boolean garbage = !referenced.contains(o.contentHash())
+                    && (blob == null || (!blob.isDeleting() && (blob.getRefCount() <= 0 || overCounted)));
+            if (!garbage) {
+                continue;
+            }
+            run.candidateFiles.increment();
+            run.candidateBytes.add(o.size());
+            if (run.dryRun) {
+                continue;
+            }
+            files.acquire(1);
+            bytes.acquire(o.size());
+            try {
+                boolean removed;
+                if (blob == null) {
+                    removed = blobService.reclaimOrphan(o.contentHash());
+                } else if (overCounted) {
+                    removed = blobService.reclaimOverCounted(blob);
+                } else {
+                    removed = blobService.reclaim(o.contentHash());
+                }
+                if (removed) {
+                    run.reclaimedFiles.increment();
+                    run.reclaimedBytes.add(o.size());
+                    reclaimedFiles.increment();
+                    reclaimedBytes.increment(o.size());
+                }
+            } catch (Exception e) {
+                run.errors.increment();
+                log.warn("Failed to reclaim content {}", o.contentHash(), e);
+            }
+        }
+    }
+
+    private static final class Run {
+        final boolean dryRun;
+        final Instant cutoff;
+        final Instant startedAt = Instant.now();
+        volatile Instant finishedAt;
+        volatile int shardsTotal;
+        final AtomicInteger shardsDone = new AtomicInteger();
+        final LongAdder scannedFiles = new LongAdder();
+        final LongAdder scannedBytes = new LongAdder();
+        final LongAdder candidateFiles = new LongAdder();
+        final LongAdder candidateBytes = new LongAdder();
+        final LongAdder reclaimedFiles = new LongAdder();
+        final LongAdder reclaimedBytes = new LongAdder();
+        final LongAdder errors = new LongAdder();
+
+        Run(boolean dryRun, Instant cutoff) {
+            this.dryRun = dryRun;
+            this.cutoff = cutoff;
+        }
+
+        GcReport report(boolean running) {
+            return new GcReport(running, dryRun, startedAt, finishedAt, shardsTotal, shardsDone.get(),
+                    scannedFiles.sum(), scannedBytes.sum(), candidateFiles.sum(), candidateBytes.sum(),
+                    reclaimedFiles.sum(), reclaimedBytes.sum(), errors.sum());
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.teletronics.vsyrov.filestorage.service.gc;
+
+import java.time.Instant;
+
+/**
+ * Progress of the running garbage collection, or the result of the last one.
+ *
+ * @author vsyrov
+ */
+public record GcReport(
+        boolean running,
+        boolean dryRun,
+        Instant startedAt,
+        Instant finishedAt,
+        int shardsTotal,
+        int shardsDone,
+        long scannedFiles,
+        long scannedBytes,
+        long candidateFiles,
+        long candidateBytes,
+        long reclaimedFiles,
+        long reclaimedBytes,
+        long errors
+) {
+    static final GcReport NEVER_RUN = new GcReport(false, false, null, null, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+}
@@ -0,0 +1,113 @@
+package org.teletronics.vsyrov.filestorage.service.upload;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HexFormat;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.teletronics.vsyrov.filestorage.common.io.ContentHasher;
+import org.teletronics.vsyrov.filestorage.common.io.HashingInputStream;
+import org.teletronics.vsyrov.filestorage.common.io.HeadCapturingInputStream;
+import org.teletronics.vsyrov.filestorage.common.io.TreeHasher;
+import org.teletronics.vsyrov.filestorage.common.model.HashAlgorithm;
+import org.teletronics.vsyrov.filestorage.service.utility.FileProcessingUtility;
+import org.teletronics.vsyrov.filestorage.storage.ContentStorageService;
+
+/**
+ * Receives an upload body into the CAS temp area: hashes it, captures its head and writes it.
+ * Uses the {@link UploadPipeline} when enabled and buffers are available, the serial path otherwise.
+ * New content is hashed with {@code filestorage.hash.algorithm}.
+ *
+ * @author vsyrov
+ */
+@Component
+public class ContentReceiver {
+    private final ContentStorageService contentStorageService;
+    private final UploadPipeline pipeline;
+    private final UploadAdmission admission;
+    @Getter
+    private final HashAlgorithm algorithm;
+
+    public ContentReceiver(
+            ContentStorageService contentStorageService,
+            UploadPipeline pipeline,
+            UploadAdmission admission,
+            @Value("${filestorage.hash.algorithm:sha256}") String algorithm
+    ) {
+        this.contentStorageService = contentStorageService;
+        this.pipeline = pipeline;
+        this.admission = admission;
+        this.algorithm = HashAlgorithm.fromId(algorithm);
+    }
+
+    public ReceivedContent receive(InputStream body) throws IOException {
+        InputStream in = admission.throttle(body);
+        if (pipeline.isEnabled()) {
+            ReceivedContent received = pipeline.transfer(in, algorithm);
+            if (received != null) {
+                return received;
+            }
+        }
+        return receiveSerial(in);
+    }
+
+    /**
+     * Receives a body expected to fit in {@code limit} bytes entirely in memory: the result has no temp file
+     * and its {@code head} is the whole content. A body that turns out to be larger continues on
+     * {@link #receive} with the bytes already read put back in front.
+     */
+    public ReceivedContent receiveSmall(InputStream body, int limit) throws IOException {
+        InputStream in = admission.throttle(body);
+        byte[] content = in.readNBytes(limit + 1);
+        if (content.length > limit) {
+            return receive(new SequenceInputStream(new ByteArrayInputStream(content), in));
+        }
+        return new ReceivedContent(null, hashBytes(content, algorithm), content.length, content);
+    }
+
+    /**
+     * Content key of {@code content} under {@code algorithm}.
+     */
+    public static String hashBytes(byte[] content, HashAlgorithm algorithm) {
+        ContentHasher hasher = algorithm.newHasher();
+        hasher.update(content, 0, content.length);
+        return algorithm.key(HexFormat.of().formatHex(hasher.digest()));
+    }
+
+    /**
+     * Hashes content that is already on disk. Tree hashes read the file with all cores.
+     */
+    public ReceivedContent hashFile(Path file, HashAlgorithm algorithm) throws IOException {
+        byte[] head;
+        try (InputStream in = Files.newInputStream(file)) {
+            head = in.readNBytes(FileProcessingUtility.CONTENT_HEAD_SIZE);
+        }
+        if (algorithm.isTree()) {
+            String hex = HexFormat.of().formatHex(TreeHasher.hashFile(file, algorithm.getDigestName()));
+            return new ReceivedContent(file, algorithm.key(hex), Files.size(file), head);
+        }
+        try (HashingInputStream his = FileProcessingUtility.hashingStream(Files.newInputStream(file), algorithm)) {
+            his.transferTo(OutputStream.nullOutputStream());
+            return new ReceivedContent(file, algorithm.key(his.digestHex()), his.getBytesRead(), head);
+        }
+    }
+
+    public ReceivedContent hashFile(Path file) throws IOException {
+        return hashFile(file, algorithm);
+    }
+
+    private ReceivedContent receiveSerial(InputStream in) throws IOException {
+        try (HeadCapturingInputStream hcs = FileProcessingUtility.headStream(in);
+             HashingInputStream his = FileProcessingUtility.hashingStream(hcs, algorithm)) {
+            Path temp = contentStorageService.writeTemp(his);
+            return new ReceivedContent(temp, algorithm.key(his.digestHex()), his.getBytesRead(), hcs.head());
+        }
+    }
+}
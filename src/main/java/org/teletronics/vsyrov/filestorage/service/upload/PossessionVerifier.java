@@ -0,0 +1,220 @@
+package org.teletronics.vsyrov.filestorage.service.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.teletronics.vsyrov.filestorage.common.exception.ForbiddenException;
+import org.teletronics.vsyrov.filestorage.common.model.PossessionChallenge;
+import org.teletronics.vsyrov.filestorage.common.model.PossessionChallenge.ByteRange;
+import org.teletronics.vsyrov.filestorage.storage.StoredContent;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Proof of possession for uploads by hash: knowing a hash alone must not be enough to obtain a copy of the content.
+ * <p>
+ * Challenges are stateless: the random ranges, owner, content key and expiry are signed with an HMAC into the
+ * challenge token, so any instance sharing {@code filestorage.precheck.proof-secret} can verify the answer.
+ * Without a configured secret a random per-process key is used.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Component
+public class PossessionVerifier {
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder B64 = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder B64D = Base64.getUrlDecoder();
+
+    @Getter
+    private final boolean required;
+    private final int rangeCount;
+    private final int rangeSize;
+    private final Duration ttl;
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+
+    public PossessionVerifier(
+            @Value("${filestorage.precheck.proof-required:true}") boolean required,
+            @Value("${filestorage.precheck.proof-ranges:3}") int rangeCount,
+            @Value("${filestorage.precheck.proof-range-size:1KB}") DataSize rangeSize,
+            @Value("${filestorage.precheck.challenge-ttl:PT5M}") Duration ttl,
+            @Value("${filestorage.precheck.proof-secret:}") String secret
+    ) {
+        this.required = required;
+        this.rangeCount = Math.max(rangeCount, 1);
+        this.rangeSize = (int) Math.max(rangeSize.toBytes(), 1);
+        this.ttl = ttl;
+        byte[] secretBytes;
+        if (StringUtils.isBlank(secret)) {
+            secretBytes = new byte[32];
+            random.nextBytes(secretBytes);
+        } else {
+            secretBytes = secret.getBytes(StandardCharsets.UTF_8);
+        }
+        this.key = new SecretKeySpec(secretBytes, MAC_ALGORITHM);
+    }
+
+    public PossessionChallenge issue(String ownerId, String contentKey, long size) {
+        List<ByteRange> ranges = new ArrayList<>(rangeCount);
+        long length = Math.min(rangeSize, size);
+        for (int i = 0; i < rangeCount; i++) {
+            long offset = size > length ? (long) (random.nextDouble() * (size - length + 1)) : 0;
+            ranges.add(new ByteRange(offset, length));
+        }
+        Instant expiresAt = Instant.now().plus(ttl);
+        String payload = payload(ownerId, contentKey, expiresAt, ranges);
+        String token = B64.encodeToString(payload.getBytes(StandardCharsets.UTF_8)) + "." + B64.encodeToString(mac(payload));
+        return new PossessionChallenge(token, ranges, expiresAt);
+    }
+
+    /**
+     * @throws ForbiddenException when the token is forged, expired, issued for another owner or content,
+     *                            or the proof does not match the stored bytes
+     */
+    public void verify(String ownerId, String contentKey, StoredContent content, String challenge, String proof) {
+        List<ByteRange> ranges = ranges(ownerId, contentKey, challenge);
+        byte[] expected;
+        try {
+            expected = content.isEncoded()
+                    ? digestDecoded(content, ranges)
+                    : digest(content.path(), content.offset(), ranges);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read content " + contentKey, e);
+        }
+        check(ownerId, contentKey, expected, proof);
+    }
+
+    /**
+     * Same as {@link #verify(String, String, StoredContent, String, String)} for content kept inline.
+     */
+    public void verify(String ownerId, String contentKey, byte[] content, String challenge, String proof) {
+        MessageDigest md = sha256();
+        for (ByteRange range : ranges(ownerId, contentKey, challenge)) {
+            int from = (int) Math.min(range.offset(), content.length);
+            md.update(content, from, (int) Math.min(range.length(), content.length - from));
+        }
+        check(ownerId, contentKey, md.digest(), proof);
+    }
+
+    private static void check(String ownerId, String contentKey, byte[] digest, String proof) {
+        String expected = HexFormat.of().formatHex(digest);
+        if (proof == null || !MessageDigest.isEqual(
+                expected.getBytes(StandardCharsets.US_ASCII),
+                proof.toLowerCase().getBytes(StandardCharsets.US_ASCII))) {
+            log.info("Proof of possession for {} failed for user {}", contentKey, ownerId);
+            throw new ForbiddenException("Proof of possession failed");
+        }
+    }
+
+    private List<ByteRange> ranges(String ownerId, String contentKey, String challenge) {
+        try {
+            int dot = challenge.indexOf('.');
+            String payload = new String(B64D.decode(challenge.substring(0, dot)), StandardCharsets.UTF_8);
+            if (!MessageDigest.isEqual(mac(payload), B64D.decode(challenge.substring(dot + 1)))) {
+                throw new ForbiddenException("Invalid proof challenge");
+            }
+            String[] fields = payload.split("\n");
+            if (!fields[0].equals(ownerId) || !fields[1].equals(contentKey)) {
+                throw new ForbiddenException("Proof challenge was issued for another file");
+            }
+            if (Instant.parse(fields[2]).isBefore(Instant.now())) {
+                throw new ForbiddenException("Proof challenge expired");
+            }
+            List<ByteRange> ranges = new ArrayList<>();
+            for (int i = 3; i < fields.length; i++) {
+                String[] range = fields[i].split(":");
+                ranges.add(new ByteRange(Long.parseLong(range[0]), Long.parseLong(range[1])));
+            }
+            return ranges;
+        } catch (ForbiddenException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new ForbiddenException("Invalid proof challenge");
+        }
+    }
+
+    private static byte[] digest(Path file, long base, List<ByteRange> ranges) throws IOException {
+        MessageDigest md = sha256();
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            for (ByteRange range : ranges) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) range.length());
+                long pos = base + range.offset();
+                while (buffer.hasRemaining()) {
+                    int n = channel.read(buffer, pos);
+                    if (n < 0) {
+                        break;
+                    }
+                    pos += n;
+                }
+                md.update(buffer.array(), 0, buffer.position());
+            }
+        }
+        return md.digest();
+    }
+
+    /**
+     * Ranges address the uncompressed content, so an encoded object is decoded up to each range; the few
+     * small ranges of a challenge keep that affordable.
+     */
+    private static byte[] digestDecoded(StoredContent content, List<ByteRange> ranges) throws IOException {
+        MessageDigest md = sha256();
+        for (ByteRange range : ranges) {
+            try (InputStream in = content.openDecoded()) {
+                in.skipNBytes(Math.min(range.offset(), content.length()));
+                md.update(in.readNBytes((int) range.length()));
+            }
+        }
+        return md.digest();
+    }
+
+    private static String payload(String ownerId, String contentKey, Instant expiresAt, List<ByteRange> ranges) {
+        StringBuilder sb = new StringBuilder()
+                .append(ownerId).append('\n')
+                .append(contentKey).append('\n')
+                .append(expiresAt);
+        ranges.forEach(r -> sb.append('\n').append(r.offset()).append(':').append(r.length()));
+        return sb.toString();
+    }
+
+    private byte[] mac(String payload) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new IllegalStateException("HMAC is not available", e);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.teletronics.vsyrov.filestorage.service.upload;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Component;
+import org.teletronics.vsyrov.filestorage.common.io.ContentHasher;
+import org.teletronics.vsyrov.filestorage.common.model.HashAlgorithm;
+import org.teletronics.vsyrov.filestorage.service.utility.FileProcessingUtility;
+import org.teletronics.vsyrov.filestorage.storage.ContentStorageService;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Non-blocking counterpart of {@link ContentReceiver}: the body is hashed buffer by buffer and written to the
+ * CAS temp area through an {@link AsynchronousFileChannel}. The next buffer is requested from the socket only
+ * after the previous one reached the file, so a slow disk slows the client down instead of filling the heap,
+ * and no thread waits on either side.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveContentReceiver {
+    private final ContentStorageService contentStorageService;
+    private final HashAlgorithm algorithm;
+
+    public ReactiveContentReceiver(ContentStorageService contentStorageService, ContentReceiver contentReceiver) {
+        this.contentStorageService = contentStorageService;
+        this.algorithm = contentReceiver.getAlgorithm();
+    }
+
+    /**
+     * @return the received content; the temp file is removed when the body fails or the request is cancelled
+     */
+    public Mono<ReceivedContent> receive(Flux<DataBuffer> body) {
+        return Mono.fromCallable(contentStorageService::createTemp)
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(temp -> write(body, temp)
+                        .onErrorResume(e -> Mono.fromRunnable(() -> deleteQuietly(temp))
+                                .subscribeOn(Schedulers.boundedElastic())
+                                .then(Mono.error(e)))
+                        .doOnCancel(() -> deleteQuietly(temp)));
+    }
+
+    private Mono<ReceivedContent> write(Flux<DataBuffer> body, Path temp) {
+        ContentHasher hasher = algorithm.newHasher();
+        byte[] head = new byte[FileProcessingUtility.CONTENT_HEAD_SIZE];
+        int[] headLength = {0};
+        long[] size = {0};
+
+        // one subscriber, signals are serialised: plain state is enough
+        Flux<DataBuffer> hashed = body.doOnNext(buffer -> {
+            try (DataBuffer.ByteBufferIterator it = buffer.readableByteBuffers()) {
+                while (it.hasNext()) {
+                    ByteBuffer bb = it.next();
+                    int n = Math.min(bb.remaining(), head.length - headLength[0]);
+                    if (n > 0) {
+                        bb.duplicate().get(head, headLength[0], n);
+                        headLength[0] += n;
+                    }
+                    size[0] += bb.remaining();
+                    hasher.update(bb);
+                }
+            }
+        });
+
+        return Flux.using(
+                        () -> AsynchronousFileChannel.open(temp, WRITE),
+                        channel -> DataBufferUtils.write(hashed, channel),
+                        this::closeQuietly
+                )
+                .doOnNext(DataBufferUtils::release)
+                .then(Mono.fromSupplier(() -> new ReceivedContent(
+                        temp,
+                        algorithm.key(HexFormat.of().formatHex(hasher.digest())),
+                        size[0],
+                        Arrays.copyOf(head, headLength[0])
+                )));
+    }
+
+    private void closeQuietly(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Failed to close temp channel", e);
+        }
+    }
+
+    private static void deleteQuietly(Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            log.warn("Failed to remove temp file {}", temp, e);
+        }
+    }
+}
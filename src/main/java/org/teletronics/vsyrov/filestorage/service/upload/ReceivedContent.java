@@ -0,0 +1,23 @@
+package org.teletronics.vsyrov.filestorage.service.upload;
+
+import java.nio.file.Path;
+
+import org.springframework.lang.Nullable;
+
+/**
+ * An upload body that has been hashed and, unless it is tiny, written into the CAS temp area.
+ *
+ * @param temp temp file holding the content, not yet moved into the CAS; {@code null} when the content was
+ *             small enough to be received in memory, {@code head} then holds all of it
+ * @param hash content hash (hex)
+ * @param size number of bytes received
+ * @param head first bytes of the content, for content type detection
+ * @author vsyrov
+ */
+public record ReceivedContent(
+        @Nullable Path temp,
+        String hash,
+        long size,
+        byte[] head
+) {
+}
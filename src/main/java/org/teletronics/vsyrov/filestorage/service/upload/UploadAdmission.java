@@ -0,0 +1,189 @@
+package org.teletronics.vsyrov.filestorage.service.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.teletronics.vsyrov.filestorage.common.exception.InsufficientStorageException;
+import org.teletronics.vsyrov.filestorage.common.exception.TooManyUploadsException;
+import org.teletronics.vsyrov.filestorage.common.exception.UnexpectedStorageException;
+import org.teletronics.vsyrov.filestorage.common.io.ThrottledInputStream;
+import org.teletronics.vsyrov.filestorage.common.io.TokenBucket;
+import org.teletronics.vsyrov.filestorage.storage.ContentStorageService;
+
+/**
+ * Decides whether an upload may start, before its body is read: at most {@code max-concurrent} uploads in
+ * total and {@code max-concurrent-per-owner} per owner, and only if the declared length (or
+ * {@code unknown-size-reservation} for chunked bodies) fits into the usable space of the storage minus what
+ * running uploads have reserved and minus {@code min-free-space}. The returned {@link Permit} holds the slot
+ * and the reservation until it is closed.
+ * <p>
+ * Independently, {@link #throttle} caps the rate at which all upload bodies together are written to disk
+ * ({@code max-bytes-per-second}, 0 = unlimited). Rejections are counted as
+ * {@code filestorage.upload.rejected{reason=concurrency|owner|space}}.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Component
+public class UploadAdmission {
+    private static final Permit NO_OP = new Permit(null, null, 0);
+
+    private final ContentStorageService contentStorageService;
+    private final boolean enabled;
+    private final int maxPerOwner;
+    private final long minFreeSpace;
+    private final long unknownSizeReservation;
+    private final Semaphore slots;
+    private final ConcurrentHashMap<String, Integer> perOwner = new ConcurrentHashMap<>();
+    private final AtomicLong reserved = new AtomicLong();
+    private final TokenBucket bandwidth;
+    private final Counter rejectedConcurrency;
+    private final Counter rejectedOwner;
+    private final Counter rejectedSpace;
+
+    public UploadAdmission(
+            ContentStorageService contentStorageService,
+            MeterRegistry registry,
+            @Value("${filestorage.upload.admission.enabled:true}") boolean enabled,
+            @Value("${filestorage.upload.admission.max-concurrent:64}") int maxConcurrent,
+            @Value("${filestorage.upload.admission.max-concurrent-per-owner:8}") int maxPerOwner,
+            @Value("${filestorage.upload.admission.min-free-space:1GB}") DataSize minFreeSpace,
+            @Value("${filestorage.upload.admission.unknown-size-reservation:64MB}") DataSize unknownSizeReservation,
+            @Value("${filestorage.upload.admission.max-bytes-per-second:0B}") DataSize maxBytesPerSecond
+    ) {
+        this.contentStorageService = contentStorageService;
+        this.enabled = enabled;
+        this.maxPerOwner = maxPerOwner;
+        this.minFreeSpace = minFreeSpace.toBytes();
+        this.unknownSizeReservation = unknownSizeReservation.toBytes();
+        this.slots = new Semaphore(maxConcurrent);
+        this.bandwidth = maxBytesPerSecond.toBytes() > 0 ? new TokenBucket(maxBytesPerSecond.toBytes()) : null;
+        this.rejectedConcurrency = rejected(registry, "concurrency");
+        this.rejectedOwner = rejected(registry, "owner");
+        this.rejectedSpace = rejected(registry, "space");
+        Gauge.builder("filestorage.upload.active", slots, s -> maxConcurrent - s.availablePermits())
+                .register(registry);
+        Gauge.builder("filestorage.upload.reserved", reserved, AtomicLong::get)
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    /**
+     * @param declaredLength body length from {@code Content-Length}, negative when unknown
+     * @throws TooManyUploadsException      when a concurrency limit is reached
+     * @throws InsufficientStorageException when the body would not fit
+     */
+    public Permit admit(String ownerId, long declaredLength) {
+        if (!enabled) {
+            return NO_OP;
+        }
+        if (!enterOwner(ownerId)) {
+            rejectedOwner.increment();
+            throw new TooManyUploadsException("Too many concurrent uploads for this user");
+        }
+        if (!slots.tryAcquire()) {
+            leaveOwner(ownerId);
+            rejectedConcurrency.increment();
+            throw new TooManyUploadsException("Too many concurrent uploads");
+        }
+        long size = declaredLength >= 0 ? declaredLength : unknownSizeReservation;
+        if (!reserve(size)) {
+            slots.release();
+            leaveOwner(ownerId);
+            rejectedSpace.increment();
+            throw new InsufficientStorageException("Not enough storage space for " + size + " bytes");
+        }
+        return new Permit(this, ownerId, size);
+    }
+
+    /**
+     * @return {@code in} limited to the shared upload write rate
+     */
+    public InputStream throttle(InputStream in) {
+        return bandwidth == null ? in : new ThrottledInputStream(in, bandwidth);
+    }
+
+    public long reservedBytes() {
+        return reserved.get();
+    }
+
+    private boolean reserve(long size) {
+        long usable;
+        try {
+            usable = contentStorageService.usableSpace();
+        } catch (IOException e) {
+            throw new UnexpectedStorageException("Failed to read usable storage space", e);
+        }
+        while (true) {
+            long current = reserved.get();
+            if (usable - current - size < minFreeSpace) {
+                log.info("Rejecting upload of {} bytes: {} usable, {} reserved", size, usable, current);
+                return false;
+            }
+            if (reserved.compareAndSet(current, current + size)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean enterOwner(String ownerId) {
+        boolean[] admitted = {false};
+        perOwner.compute(ownerId, (k, running) -> {
+            int n = running == null ? 0 : running;
+            if (n >= maxPerOwner) {
+                return running;
+            }
+            admitted[0] = true;
+            return n + 1;
+        });
+        return admitted[0];
+    }
+
+    private void leaveOwner(String ownerId) {
+        perOwner.computeIfPresent(ownerId, (k, running) -> running <= 1 ? null : running - 1);
+    }
+
+    private void release(String ownerId, long size) {
+        reserved.addAndGet(-size);
+        slots.release();
+        leaveOwner(ownerId);
+    }
+
+    private static Counter rejected(MeterRegistry registry, String reason) {
+        return Counter.builder("filestorage.upload.rejected").tag("reason", reason).register(registry);
+    }
+
+    /**
+     * An admitted upload; closing it frees the slot and the space reservation. Closing twice is harmless.
+     */
+    public static final class Permit implements AutoCloseable {
+        private final UploadAdmission admission;
+        private final String ownerId;
+        private final long reservedBytes;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Permit(UploadAdmission admission, String ownerId, long reservedBytes) {
+            this.admission = admission;
+            this.ownerId = ownerId;
+            this.reservedBytes = reservedBytes;
+        }
+
+        @Override
+        public void close() {
+            if (admission != null && closed.compareAndSet(false, true)) {
+                admission.release(ownerId, reservedBytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package org.teletronics.vsyrov.filestorage.service.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.Nullable;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.teletronics.vsyrov.filestorage.common.io.ContentHasher;
+import org.teletronics.vsyrov.filestorage.common.model.HashAlgorithm;
+import org.teletronics.vsyrov.filestorage.service.utility.FileProcessingUtility;
+import org.teletronics.vsyrov.filestorage.storage.ContentStorageService;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Pipelined receive of a single upload: the request thread reads from the network, a hasher stage and a
+ * writer stage consume the same buffers concurrently. Buffers circulate through a bounded per-upload ring
+ * and are borrowed from a shared pool, so a large upload uses up to three cores with bounded memory.
+ * <p>
+ * Per-stage throughput (bytes / busy time) is logged per upload and exported as
+ * {@code filestorage.upload.pipeline.bytes} / {@code filestorage.upload.pipeline.busy} tagged by stage;
+ * the stage whose busy time is closest to the wall time is the bottleneck.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Component
+public class UploadPipeline {
+    private static final Chunk EOF = new Chunk(new byte[0]);
+    private static final long POLL_MILLIS = 100;
+
+    private final ContentStorageService contentStorageService;
+    private final boolean enabled;
+    private final int buffersPerUpload;
+    private final BlockingQueue<byte[]> pool;
+    private final ExecutorService stages;
+    private final StageMeters readMeters;
+    private final StageMeters hashMeters;
+    private final StageMeters writeMeters;
+
+    public UploadPipeline(
+            ContentStorageService contentStorageService,
+            MeterRegistry registry,
+            @Value("${filestorage.upload.pipeline.enabled:false}") boolean enabled,
+            @Value("${filestorage.upload.pipeline.buffer-size:1MB}") DataSize bufferSize,
+            @Value("${filestorage.upload.pipeline.buffers-per-upload:4}") int buffersPerUpload,
+            @Value("${filestorage.upload.pipeline.pool-buffers:64}") int poolBuffers,
+            @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads
+    ) {
+        this.contentStorageService = contentStorageService;
+        this.enabled = enabled;
+        this.buffersPerUpload = buffersPerUpload;
+        this.pool = new ArrayBlockingQueue<>(Math.max(poolBuffers, 1));
+        if (enabled) {
+            for (int i = 0; i < poolBuffers; i++) {
+                pool.add(new byte[(int) bufferSize.toBytes()]);
+            }
+        }
+        if (virtualThreads) {
+            this.stages = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("upload-pipeline-", 0).factory());
+        } else {
+            var threadFactory = new CustomizableThreadFactory("upload-pipeline-");
+            threadFactory.setDaemon(true);
+            this.stages = Executors.newCachedThreadPool(threadFactory);
+        }
+        this.readMeters = new StageMeters(registry, "read");
+        this.hashMeters = new StageMeters(registry, "hash");
+        this.writeMeters = new StageMeters(registry, "write");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the received content, or {@code null} when the shared buffer pool is exhausted
+     * and the caller should fall back to the serial path
+     */
+    @Nullable
+    public ReceivedContent transfer(InputStream in, HashAlgorithm algorithm) throws IOException {
+        List<byte[]> borrowed = borrow();
+        if (borrowed == null) {
+            log.debug("Upload pipeline buffers exhausted, falling back to serial receive");
+            return null;
+        }
+
+        int ring = borrowed.size();
+        BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(ring);
+        borrowed.forEach(b -> free.add(new Chunk(b)));
+        // one extra slot for EOF: at most `ring` chunks are ever in flight, so put() never blocks
+        BlockingQueue<Chunk> toHash = new ArrayBlockingQueue<>(ring + 1);
+        BlockingQueue<Chunk> toWrite = new ArrayBlockingQueue<>(ring + 1);
+
+        Path temp = contentStorageService.createTemp();
+        ContentHasher hasher = algorithm.newHasher();
+        StageStats readStats = new StageStats();
+        StageStats hashStats = new StageStats();
+        StageStats writeStats = new StageStats();
+
+        Future<?> hashStage = stages.submit(() -> {
+            hashLoop(toHash, free, hasher, hashStats);
+            return null;
+        });
+        Future<?> writeStage = stages.submit(() -> {
+            writeLoop(toWrite, free, temp, writeStats);
+            return null;
+        });
+
+        byte[] head = new byte[FileProcessingUtility.CONTENT_HEAD_SIZE];
+        int headLength = 0;
+        long total = 0;
+        long started = System.nanoTime();
+        boolean eofSent = false;
+        boolean ok = false;
+        try {
+            while (true) {
+                Chunk chunk = takeFree(free, hashStage, writeStage);
+                long t0 = System.nanoTime();
+                int filled = fill(in, chunk.data);
+                readStats.add(filled, System.nanoTime() - t0);
+                if (filled == 0) {
+                    break;
+                }
+                if (headLength < head.length) {
+                    int n = Math.min(filled, head.length - headLength);
+                    System.arraycopy(chunk.data, 0, head, headLength, n);
+                    headLength += n;
+                }
+                chunk.length = filled;
+                chunk.pending.set(2);
+                toHash.put(chunk);
+                toWrite.put(chunk);
+                total += filled;
+                if (filled < chunk.data.length) {
+                    break;
+                }
+            }
+            sendEof(toHash, toWrite);
+            eofSent = true;
+            await(hashStage);
+            await(writeStage);
+            ok = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while receiving upload");
+        } finally {
+            if (!eofSent) {
+                sendEof(toHash, toWrite);
+            }
+            awaitQuietly(hashStage);
+            awaitQuietly(writeStage);
+            // both stages are stopped here, the buffers can be handed to other uploads
+            pool.addAll(borrowed);
+            if (!ok) {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        report(total, System.nanoTime() - started, readStats, hashStats, writeStats);
+        return new ReceivedContent(temp, algorithm.key(HexFormat.of().formatHex(hasher.digest())), total,
+                Arrays.copyOf(head, headLength));
+    }
+
+    @PreDestroy
+    void shutdown() {
+        stages.shutdownNow();
+    }
+
+    private static void hashLoop(BlockingQueue<Chunk> toHash, BlockingQueue<Chunk> free, ContentHasher hasher,
+                                 StageStats stats) throws InterruptedException {
+        while (true) {
+            Chunk chunk = toHash.take();
+            if (chunk == EOF) {
+                return;
+            }
+            long t0 = System.nanoTime();
+            hasher.update(chunk.data, 0, chunk.length);
+            stats.add(chunk.length, System.nanoTime() - t0);
+            release(chunk, free);
+        }
+    }
+
+    private static void writeLoop(BlockingQueue<Chunk> toWrite, BlockingQueue<Chunk> free, Path temp,
+                                  StageStats stats) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(temp, WRITE)) {
+            while (true) {
+                Chunk chunk = toWrite.take();
+                if (chunk == EOF) {
+                    return;
+                }
+                long t0 = System.nanoTime();
+                ByteBuffer buffer = ByteBuffer.wrap(chunk.data, 0, chunk.length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                stats.add(chunk.length, System.nanoTime() - t0);
+                release(chunk, free);
+            }
+        }
+    }
+
+    private static void release(Chunk chunk, BlockingQueue<Chunk> free) {
+        if (chunk.pending.decrementAndGet() == 0) {
+            free.add(chunk);
+        }
+    }
+
+    private static int fill(InputStream in, byte[] buffer) throws IOException {
+        int filled = 0;
+        while (filled < buffer.length) {
+            int n = in.read(buffer, filled, buffer.length - filled);
+            if (n < 0) {
+                break;
+            }
+            filled += n;
+        }
+        return filled;
+    }
+
+    private static Chunk takeFree(BlockingQueue<Chunk> free, Future<?> hasher, Future<?> writer)
+            throws IOException, InterruptedException {
+        while (true) {
+            Chunk chunk = free.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (chunk != null) {
+                return chunk;
+            }
+            // stages only finish on EOF, so a finished stage here has failed
+            if (hasher.isDone()) {
+                await(hasher);
+            }
+            if (writer.isDone()) {
+                await(writer);
+            }
+        }
+    }
+
+    private static void sendEof(BlockingQueue<Chunk> toHash, BlockingQueue<Chunk> toWrite) {
+        toHash.add(EOF);
+        toWrite.add(EOF);
+    }
+
+    private static void await(Future<?> stage) throws IOException, InterruptedException {
+        try {
+            stage.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Upload pipeline stage failed", e.getCause());
+        }
+    }
+
+    private static void awaitQuietly(Future<?> stage) {
+        try {
+            stage.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ignore) {
+        }
+    }
+
+    @Nullable
+    private List<byte[]> borrow() {
+        List<byte[]> borrowed = new ArrayList<>(buffersPerUpload);
+        for (int i = 0; i < buffersPerUpload; i++) {
+            byte[] buffer = pool.poll();
+            if (buffer == null) {
+                pool.addAll(borrowed);
+                return null;
+            }
+            borrowed.add(buffer);
+        }
+        return borrowed;
+    }
+
+    private void report(long total, long wallNanos, StageStats read, StageStats hash, StageStats write) {
+        readMeters.record(read);
+        hashMeters.record(hash);
+        writeMeters.record(write);
+        log.debug("Pipelined upload of {} bytes in {} ms: read {} MiB/s, hash {} MiB/s, write {} MiB/s",
+                total, TimeUnit.NANOSECONDS.toMillis(wallNanos),
+                read.mibPerSecond(), hash.mibPerSecond(), write.mibPerSecond());
+    }
+
+    private static final class Chunk {
+        final byte[] data;
+        final AtomicInteger pending = new AtomicInteger();
+        int length;
+
+        Chunk(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    /**
+     * Written by a single stage thread, read after the stage has been joined.
+     */
+    private static final class StageStats {
+        long bytes;
+        long busyNanos;
+
+        void add(long n, long nanos) {
+            bytes += n;
+            busyNanos += nanos;
+        }
+
+        String mibPerSecond() {
+            if (busyNanos == 0) {
+                return "-";
+            }
+            return String.format("%.1f", bytes / (1024.0 * 1024.0) / (busyNanos / 1e9));
+        }
+    }
+
+    private static final class StageMeters {
+        final Counter bytes;
+        final Timer busy;
+
+        StageMeters(MeterRegistry registry, String stage) {
+            this.bytes = Counter.builder("filestorage.upload.pipeline.bytes")
+                    .tag("stage", stage)
+                    .baseUnit("bytes")
+                    .register(registry);
+            this.busy = Timer.builder("filestorage.upload.pipeline.busy")
+                    .tag("stage", stage)
+                    .register(registry);
+        }
+
+        void record(StageStats stats) {
+            bytes.increment(stats.bytes);
+            busy.record(stats.busyNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+}
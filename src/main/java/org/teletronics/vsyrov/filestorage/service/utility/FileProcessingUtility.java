@@ -5,6 +5,8 @@ import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
 
 import lombok.experimental.UtilityClass;
 import lombok.extern.slf4j.Slf4j;
@@ -12,6 +14,8 @@ import org.apache.tika.Tika;
 import org.springframework.lang.Nullable;
 import org.springframework.web.multipart.MultipartFile;
 import org.teletronics.vsyrov.filestorage.common.io.HashingInputStream;
+import org.teletronics.vsyrov.filestorage.common.io.HeadCapturingInputStream;
+import org.teletronics.vsyrov.filestorage.common.model.HashAlgorithm;
 
 /**
  * @author vsyrov
@@ -20,9 +24,51 @@ import org.teletronics.vsyrov.filestorage.common.io.HashingInputStream;
 @UtilityClass
 public class FileProcessingUtility {
     private static final Tika TIKA = new Tika();
+    /**
+     * Enough for every magic signature Tika knows (the farthest ones sit around 32 KiB, e.g. ISO 9660).
+     */
+    public static final int CONTENT_HEAD_SIZE = 64 * 1024;
+    /**
+     * Types Tika reports when a container (zip / OLE2) cannot be fully inspected; the real subtype
+     * (docx, xls, jar, ...) needs more than the head.
+     */
+    private static final Set<String> CONTAINER_TYPES = Set.of(
+            "application/zip",
+            "application/x-tika-ooxml",
+            "application/x-tika-ooxml-protected",
+            "application/x-tika-msoffice"
+    );
 
     public static HashingInputStream hashingStream(InputStream in) {
-        return HashingInputStream.of(in, "SHA-256");
+        return hashingStream(in, HashAlgorithm.SHA256);
+    }
+
+    public static HashingInputStream hashingStream(InputStream in, HashAlgorithm algorithm) {
+        return HashingInputStream.of(in, algorithm.newHasher());
+    }
+
+    public static HeadCapturingInputStream headStream(InputStream in) {
+        return new HeadCapturingInputStream(in, CONTENT_HEAD_SIZE);
+    }
+
+    /**
+     * Detects the content type from the captured head of the stream.
+     * Only a truncated container falls back to {@link #detectContentType(Path, String)} on the stored file,
+     * everything else is decided without touching the disk.
+     */
+    public static String detectContentType(byte[] head, long size, Supplier<Path> storedFile, String fallback) {
+        try {
+            String t = TIKA.detect(head);
+            if (CONTAINER_TYPES.contains(t) && size > head.length) {
+                return detectContentType(storedFile.get(), fallback);
+            }
+            if (t != null && !t.isBlank() && !t.equals("application/octet-stream")) {
+                return t;
+            }
+        } catch (Exception exc) {
+            log.debug("Could not determine content type using tika for stream head", exc);
+        }
+        return (fallback == null || fallback.isBlank()) ? "application/octet-stream" : fallback;
     }
 
     public static String detectContentType(Path file, String fallback) {
@@ -0,0 +1,179 @@
+package org.teletronics.vsyrov.filestorage.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.teletronics.vsyrov.filestorage.common.model.HashAlgorithm;
+
+/**
+ * The mount points the CAS is spread over. Every volume has its own {@code tmp} and {@code cas} directories;
+ * the first one is {@code filestorage.base-path}, the others come from {@code filestorage.volumes}.
+ * <p>
+ * Objects are placed by consistent hashing: each volume owns {@value #VIRTUAL_NODES} points on a ring of
+ * 64-bit positions, and an object belongs to the first point at or after the leading 64 bits of its digest.
+ * Adding a volume therefore only moves the objects that now fall on its points, roughly {@code 1/n} of them.
+ * A volume is identified by its normalized path, so the ring survives restarts and reordering of the list.
+ * <p>
+ * Per volume, {@code filestorage.volume.read.bytes} / {@code filestorage.volume.written.bytes} count the
+ * traffic and {@code filestorage.volume.total.bytes} / {@code filestorage.volume.usable.bytes} report the
+ * capacity, all tagged with {@code volume}.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+public class CasVolumes {
+    private static final int VIRTUAL_NODES = 128;
+
+    private final List<Volume> volumes;
+    private final NavigableMap<Long, Volume> ring = new TreeMap<>();
+    private final AtomicInteger nextTemp = new AtomicInteger();
+
+    public CasVolumes(String baseDir, List<String> extraDirs, MeterRegistry registry) throws IOException {
+        Set<Path> bases = new LinkedHashSet<>();
+        bases.add(Paths.get(baseDir).toAbsolutePath().normalize());
+        for (String dir : extraDirs) {
+            if (dir != null && !dir.isBlank()) {
+                bases.add(Paths.get(dir.trim()).toAbsolutePath().normalize());
+            }
+        }
+        List<Volume> list = new ArrayList<>(bases.size());
+        for (Path base : bases) {
+            Volume volume = new Volume(list.size(), base.toString(), base.resolve("tmp"), base.resolve("cas"),
+                    Counter.builder("filestorage.volume.read.bytes").tag("volume", base.toString())
+                            .baseUnit("bytes").register(registry),
+                    Counter.builder("filestorage.volume.written.bytes").tag("volume", base.toString())
+                            .baseUnit("bytes").register(registry));
+            Files.createDirectories(volume.tmp());
+            Files.createDirectories(volume.cas().resolve(HashAlgorithm.SHA256.getId()));
+            Gauge.builder("filestorage.volume.total.bytes", volume, v -> v.space(false))
+                    .tag("volume", volume.id()).baseUnit("bytes").register(registry);
+            Gauge.builder("filestorage.volume.usable.bytes", volume, v -> v.space(true))
+                    .tag("volume", volume.id()).baseUnit("bytes").register(registry);
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(position(volume.id() + "#" + i), volume);
+            }
+            list.add(volume);
+        }
+        this.volumes = List.copyOf(list);
+        if (volumes.size() > 1) {
+            log.info("CAS spread over {} volumes: {}", volumes.size(), ids());
+        }
+    }
+
+    public List<Volume> all() {
+        return volumes;
+    }
+
+    public Volume primary() {
+        return volumes.getFirst();
+    }
+
+    public boolean isSingle() {
+        return volumes.size() == 1;
+    }
+
+    /**
+     * The volume {@code contentHash} is placed on.
+     */
+    public Volume owner(String contentHash) {
+        if (isSingle()) {
+            return primary();
+        }
+        String hex = HashAlgorithm.hexOf(contentHash);
+        long key = Long.parseUnsignedLong(hex.substring(0, 16), 16);
+        Map.Entry<Long, Volume> point = ring.ceilingEntry(key);
+        return point != null ? point.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Volume for a temp file whose content is not known yet; rotates so concurrent uploads spread their
+     * writes over all disks.
+     */
+    public Volume nextTempVolume() {
+        return volumes.get(Math.floorMod(nextTemp.getAndIncrement(), volumes.size()));
+    }
+
+    /**
+     * The volume {@code file} lies on, the primary one for paths outside every volume (pack segments).
+     */
+    public Volume of(Path file) {
+        for (int i = volumes.size() - 1; i > 0; i--) {
+            if (file.startsWith(volumes.get(i).base())) {
+                return volumes.get(i);
+            }
+        }
+        return primary();
+    }
+
+    /**
+     * Ids of all volumes, one per line, in configuration order.
+     */
+    public String ids() {
+        return String.join("\n", volumes.stream().map(Volume::id).toList());
+    }
+
+    /**
+     * Usable bytes of the fullest volume: an upload lands in the temp area of any volume and its object on the
+     * one its hash picks, so free space elsewhere does not help it.
+     */
+    public long usableSpace() throws IOException {
+        long min = Long.MAX_VALUE;
+        for (Volume volume : volumes) {
+            min = Math.min(min, Files.getFileStore(volume.tmp()).getUsableSpace());
+        }
+        return min;
+    }
+
+    private static long position(String node) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(node.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * One mount point: {@code tmp} and {@code cas} live under {@code base}, so moves between them are renames.
+     */
+    public record Volume(
+            int index,
+            String id,
+            Path tmp,
+            Path cas,
+            Counter readBytes,
+            Counter writtenBytes
+    ) {
+        public Path base() {
+            return tmp.getParent();
+        }
+
+        private double space(boolean usable) {
+            try {
+                FileStore store = Files.getFileStore(tmp);
+                return usable ? store.getUsableSpace() : store.getTotalSpace();
+            } catch (IOException e) {
+                return Double.NaN;
+            }
+        }
+    }
+}
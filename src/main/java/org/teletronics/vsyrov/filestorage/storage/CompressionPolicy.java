@@ -0,0 +1,132 @@
+package org.teletronics.vsyrov.filestorage.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Decides whether a new object is kept gzip-compressed in the CAS.
+ * <p>
+ * Only listed content types are considered ({@code text/*} style wildcards, plus any {@code +json} /
+ * {@code +xml} suffix). Those are then sampled: a few windows spread over the file are deflated at the
+ * fastest level and the object is compressed only if they shrink below {@code max-ratio}, so logs are
+ * compressed but random bytes uploaded as {@code text/plain} are not. Objects of 4 GiB and more are never compressed,
+ * which keeps the gzip trailer an exact length.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Component
+public class CompressionPolicy {
+    private static final long MAX_GZIP_LENGTH = (1L << 32) - 1;
+    private static final int SAMPLE_WINDOWS = 4;
+
+    private final boolean enabled;
+    private final List<String> contentTypes;
+    private final long minSize;
+    private final long maxSize;
+    private final int sampleSize;
+    private final double maxRatio;
+
+    public CompressionPolicy(
+            @Value("${filestorage.compression.enabled:false}") boolean enabled,
+            @Value("${filestorage.compression.content-types:text/*,application/json,application/x-ndjson,"
+                    + "application/xml,application/javascript,application/x-yaml,application/csv,image/svg+xml}")
+            List<String> contentTypes,
+            @Value("${filestorage.compression.min-size:4KB}") DataSize minSize,
+            @Value("${filestorage.compression.max-size:1GB}") DataSize maxSize,
+            @Value("${filestorage.compression.sample-size:64KB}") DataSize sampleSize,
+            @Value("${filestorage.compression.max-ratio:0.8}") double maxRatio
+    ) {
+        this.enabled = enabled;
+        this.contentTypes = contentTypes.stream().map(t -> t.trim().toLowerCase(Locale.ROOT)).toList();
+        this.minSize = minSize.toBytes();
+        this.maxSize = Math.min(maxSize.toBytes(), MAX_GZIP_LENGTH);
+        this.sampleSize = (int) Math.max(SAMPLE_WINDOWS, sampleSize.toBytes());
+        this.maxRatio = maxRatio;
+    }
+
+    public boolean shouldCompress(@Nullable String contentType, long size, Path file) {
+        if (!enabled || size < minSize || size > maxSize || !compressibleType(contentType)) {
+            return false;
+        }
+        try {
+            double ratio = sampledRatio(file, size);
+            log.debug("Sampled compression ratio {} for {} ({})", ratio, file, contentType);
+            return ratio <= maxRatio;
+        } catch (IOException e) {
+            log.debug("Could not sample {}, storing it raw", file, e);
+            return false;
+        }
+    }
+
+    boolean compressibleType(@Nullable String contentType) {
+        if (contentType == null || contentType.isBlank()) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        int params = type.indexOf(';');
+        if (params >= 0) {
+            type = type.substring(0, params);
+        }
+        type = type.trim();
+        if (type.endsWith("+json") || type.endsWith("+xml")) {
+            return true;
+        }
+        for (String candidate : contentTypes) {
+            if (candidate.endsWith("/*")
+                    ? type.startsWith(candidate.substring(0, candidate.length() - 1))
+                    : type.equals(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deflated size of the sampled windows over their raw size. Small files are sampled whole.
+     */
+    private double sampledRatio(Path file, long size) throws IOException {
+        int windows = size <= sampleSize ? 1 : SAMPLE_WINDOWS;
+        int windowSize = (int) Math.min(size, sampleSize / windows);
+        ByteBuffer buffer = ByteBuffer.allocate(windowSize);
+        byte[] out = new byte[windowSize + 64];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        long raw = 0;
+        long deflated = 0;
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            for (int w = 0; w < windows; w++) {
+                long pos = windows == 1 ? 0 : (size - windowSize) * w / (windows - 1);
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    int n = channel.read(buffer, pos + buffer.position());
+                    if (n < 0) {
+                        break;
+                    }
+                }
+                deflater.reset();
+                deflater.setInput(buffer.array(), 0, buffer.position());
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflated += deflater.deflate(out);
+                }
+                raw += buffer.position();
+            }
+        } finally {
+            deflater.end();
+        }
+        return raw == 0 ? 1.0 : (double) deflated / raw;
+    }
+}
@@ -3,6 +3,10 @@ package org.teletronics.vsyrov.filestorage.storage;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.springframework.lang.Nullable;
 
 /**
  * @author vsyrov
@@ -13,13 +17,37 @@ public interface ContentStorageService {
      */
     Path writeTemp(InputStream in) throws IOException;
 
+    /**
+     * Создать пустой временный файл в temp-области (для записи вне writeTemp) и вернуть путь.
+     */
+    Path createTemp() throws IOException;
+
+    /**
+     * Склеить части во временный файл (в той же temp-области, что и writeTemp) и вернуть путь.
+     */
+    Path concatTemp(List<Path> parts) throws IOException;
+
     /**
      * Переместить temp в CAS по contentHash и вернуть финальный Path (атомарно).
      */
-    Path moveToCas(Path temp, String contentHash) throws IOException;
+    default Path moveToCas(Path temp, String contentHash) throws IOException {
+        return moveToCas(temp, contentHash, false);
+    }
 
     /**
-     * Открыть поток для чтения по contentHash.
+     * Переместить temp в CAS по contentHash; при compress хранить сжатым (gzip).
+     * Если объект уже есть в любом виде, temp удаляется, а объект не меняется.
+     */
+    Path moveToCas(Path temp, String contentHash, boolean compress) throws IOException;
+
+    /**
+     * Разместить в CAS под targetHash то же содержимое, что лежит под sourceHash
+     * (hard link, если возможно, иначе копия). Источник не удаляется.
+     */
+    Path copyToCas(String sourceHash, String targetHash) throws IOException;
+
+    /**
+     * Открыть поток для чтения по contentHash (сжатые объекты распаковываются на лету).
      */
     InputStream open(String contentHash) throws IOException;
 
@@ -34,4 +62,33 @@ public interface ContentStorageService {
     boolean exists(String contentHash) throws IOException;
 
     Path resolvePath(String contentHash);
+
+    /**
+     * Где и в каком виде лежит объект, или null, если его нет.
+     */
+    @Nullable
+    StoredContent locate(String contentHash) throws IOException;
+
+    /**
+     * Как locate, но для отдачи клиенту: объект учитывается в метриках чтения своего тома.
+     */
+    @Nullable
+    default StoredContent locateForRead(String contentHash) throws IOException {
+        return locate(contentHash);
+    }
+
+    /**
+     * Место, доступное для записи в temp-область и CAS (байты): минимум по всем томам.
+     */
+    long usableSpace() throws IOException;
+
+    /**
+     * Независимые сегменты CAS, которые можно обходить параллельно.
+     */
+    List<String> shards() throws IOException;
+
+    /**
+     * Обойти все объекты сегмента.
+     */
+    void walkShard(String shard, Consumer<StoredObject> visitor) throws IOException;
 }
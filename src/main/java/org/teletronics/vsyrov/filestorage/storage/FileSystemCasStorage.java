@@ -3,15 +3,32 @@ package org.teletronics.vsyrov.filestorage.storage;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Component;
+import org.teletronics.vsyrov.filestorage.common.model.HashAlgorithm;
+import org.teletronics.vsyrov.filestorage.storage.CasVolumes.Volume;
 
 import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
@@ -20,29 +37,56 @@ import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 import static java.nio.file.StandardOpenOption.WRITE;
 
 /**
+ * Objects stored compressed sit next to the raw layout as {@code <hex>.gz} (a plain gzip member), so the
+ * hash still names the uncompressed content and either variant satisfies a lookup. Small objects go to the
+ * {@link PackStore} when it is enabled; loose files are looked up first, packed ones after them.
+ * <p>
+ * Loose objects are spread over the {@link CasVolumes} by their hash. A temp file is created before its hash
+ * is known, so it lands on the next volume in turn and is copied over to the target volume's {@code tmp}
+ * first when that differs; the final step into the CAS is always a rename within one volume. Those extra
+ * writes are counted by {@code filestorage.volume.temp.copied.bytes}. Lookups try the owning volume first and
+ * the others after it, which keeps objects readable while {@link VolumeRebalancer} moves them to their new
+ * owner.
+ *
  * @author vsyrov
  */
 @Slf4j
 @Component
 public class FileSystemCasStorage implements ContentStorageService {
-    private final Path tmp;
-    private final Path cas;
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final String PACK_SHARD_PREFIX = "pack/";
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+    private static final char VOLUME_SHARD_SEPARATOR = ':';
+    private static final String BALANCED_MARKER = "volumes";
+
+    private final CasVolumes volumes;
+    private final int compressionLevel;
+    @Nullable
+    private final PackStore packs;
+    private final Counter tempCopiedBytes;
 
-    @Autowired
     public FileSystemCasStorage(
-            @Value("${filestorage.base-path:${java.io.tmpdir}/filestorage}") String baseDir
+            @Value("${filestorage.base-path:${java.io.tmpdir}/filestorage}") String baseDir,
+            @Value("${filestorage.compression.level:6}") int compressionLevel,
+            @Nullable PackStore packs,
+            @Value("${filestorage.volumes:}") List<String> extraVolumes,
+            @Nullable MeterRegistry registry
     ) throws IOException {
-        Path base = Paths.get(baseDir).toAbsolutePath().normalize();
-        this.tmp = base.resolve("tmp");
-        this.cas = base.resolve("cas/sha256");
-        Files.createDirectories(tmp);
-        Files.createDirectories(cas);
+        MeterRegistry meters = registry != null ? registry : new SimpleMeterRegistry();
+        this.volumes = new CasVolumes(baseDir, extraVolumes, meters);
+        this.compressionLevel = compressionLevel;
+        this.packs = packs;
+        this.tempCopiedBytes = Counter.builder("filestorage.volume.temp.copied.bytes").baseUnit("bytes")
+                .register(meters);
+    }
+
+    public CasVolumes volumes() {
+        return volumes;
     }
 
     @Override
     public Path writeTemp(InputStream in) throws IOException {
-        Files.createDirectories(tmp);
-        Path tmpFile = Files.createTempFile(tmp, "up-", ".part");
+        Path tmpFile = createTemp();
         try (OutputStream out = Files.newOutputStream(tmpFile, WRITE, TRUNCATE_EXISTING)) {
             in.transferTo(out);
             out.flush();
@@ -51,44 +95,454 @@ public class FileSystemCasStorage implements ContentStorageService {
     }
 
     @Override
-    public Path moveToCas(Path temp, String contentHash) throws IOException {
-        Path target = resolvePath(contentHash);
-        Files.createDirectories(target.getParent());
+    public Path createTemp() throws IOException {
+        return createTemp(volumes.nextTempVolume());
+    }
+
+    @Override
+    public Path concatTemp(List<Path> parts) throws IOException {
+        Path tmpFile = createTemp();
+        try (FileChannel out = FileChannel.open(tmpFile, WRITE, TRUNCATE_EXISTING)) {
+            long position = 0;
+            for (Path part : parts) {
+                try (FileChannel in = FileChannel.open(part, READ)) {
+                    long size = in.size();
+                    long copied = 0;
+                    while (copied < size) {
+                        long n = out.transferFrom(in, position + copied, size - copied);
+                        if (n <= 0) {
+                            throw new IOException("Part truncated while concatenating: " + part);
+                        }
+                        copied += n;
+                    }
+                    position += size;
+                }
+            }
+            out.force(false);
+            return tmpFile;
+        } catch (IOException e) {
+            Files.deleteIfExists(tmpFile);
+            throw e;
+        }
+    }
 
-        if (Files.exists(target)) {
-            log.info("File already exists at {}", target);
+    /**
+     * Objects small enough for a pack are appended there raw; compressing a few kilobytes saves little.
+     */
+    @Override
+    public Path moveToCas(Path temp, String contentHash, boolean compress) throws IOException {
+        StoredContent existing = locate(contentHash);
+        if (existing != null) {
+            log.info("File already exists at {}", existing.path());
+            Files.deleteIfExists(temp);
+            return existing.path();
+        }
+        if (packs != null && packs.accepts(Files.size(temp))) {
+            Path segment = packs.append(contentHash, Files.readAllBytes(temp));
             Files.deleteIfExists(temp);
-            return target;
+            return segment;
+        }
+        Volume volume = volumes.owner(contentHash);
+        Path target = resolvePath(volume, contentHash);
+        Files.createDirectories(target.getParent());
+        if (!compress) {
+            return place(onVolume(temp, volume), target, volume);
         }
+        Path compressed = createTemp(volume);
         try {
-            return Files.move(temp, target, ATOMIC_MOVE);
-        } catch (AtomicMoveNotSupportedException e) {
-            log.debug("Atomic move operation not supported", e);
-            return Files.move(temp, target, REPLACE_EXISTING);
+            gzip(temp, compressed);
+            Path placed = place(compressed, gzipPath(target), volume);
+            Files.deleteIfExists(temp);
+            return placed;
+        } catch (IOException e) {
+            Files.deleteIfExists(compressed);
+            throw e;
         }
     }
 
     @Override
     public InputStream open(String contentHash) throws IOException {
-        Path p = resolvePath(contentHash);
-        return Files.newInputStream(p, READ);
+        StoredContent content = locate(contentHash);
+        if (content == null) {
+            throw new NoSuchFileException(resolvePath(contentHash).toString());
+        }
+        volumes.of(content.path()).readBytes().increment(content.storedLength());
+        return content.openDecoded();
     }
 
     @Override
     public boolean deleteIfExists(String contentHash) throws IOException {
-        Path p = resolvePath(contentHash);
-        return Files.deleteIfExists(p);
+        boolean deleted = false;
+        // every volume: a copy may still sit on its previous owner while it is being rebalanced
+        for (Volume volume : volumes.all()) {
+            Path p = resolvePath(volume, contentHash);
+            deleted |= Files.deleteIfExists(p);
+            deleted |= Files.deleteIfExists(gzipPath(p));
+        }
+        boolean packed = packs != null && packs.delete(contentHash);
+        return deleted || packed;
+    }
+
+    @Override
+    public long usableSpace() throws IOException {
+        return volumes.usableSpace();
     }
 
     @Override
     public boolean exists(String contentHash) throws IOException {
-        return Files.exists(resolvePath(contentHash));
+        for (Volume volume : lookupOrder(contentHash)) {
+            Path p = resolvePath(volume, contentHash);
+            if (Files.exists(p) || Files.exists(gzipPath(p))) {
+                return true;
+            }
+        }
+        return packs != null && packs.exists(contentHash);
+    }
+
+    /**
+     * The stored bytes are linked as they are, so a compressed source stays compressed under the new hash.
+     * A packed source is small and is simply stored again.
+     */
+    @Override
+    public Path copyToCas(String sourceHash, String targetHash) throws IOException {
+        StoredContent source = locate(sourceHash);
+        if (source == null) {
+            throw new NoSuchFileException(resolvePath(sourceHash).toString());
+        }
+        StoredContent existing = locate(targetHash);
+        if (existing != null) {
+            return existing.path();
+        }
+        if (source.offset() > 0) {
+            try (InputStream in = source.openDecoded()) {
+                return moveToCas(writeTemp(in), targetHash, false);
+            }
+        }
+        Volume volume = volumes.owner(targetHash);
+        Path target = resolvePath(volume, targetHash);
+        if (source.isEncoded()) {
+            target = gzipPath(target);
+        }
+        Files.createDirectories(target.getParent());
+        Path temp = createTemp(volume);
+        try {
+            Files.delete(temp);
+            Files.createLink(temp, source.path());
+        } catch (IOException | UnsupportedOperationException e) {
+            // also the case when source and target are on different volumes
+            log.debug("Hard link not possible for {}, copying", source.path(), e);
+            Files.copy(source.path(), temp, REPLACE_EXISTING);
+            volume.writtenBytes().increment(source.storedLength());
+        }
+        return place(temp, target, volume);
+    }
+
+    /**
+     * The decoded length of a gzip object is read from its trailer, which is exact because only objects
+     * below 4 GiB are ever compressed.
+     */
+    @Override
+    @Nullable
+    public StoredContent locate(String contentHash) throws IOException {
+        for (Volume volume : lookupOrder(contentHash)) {
+            StoredContent loose = locateLoose(resolvePath(volume, contentHash));
+            if (loose != null) {
+                return loose;
+            }
+        }
+        return packs == null ? null : packs.locate(contentHash);
+    }
+
+    @Override
+    @Nullable
+    public StoredContent locateForRead(String contentHash) throws IOException {
+        StoredContent content = locate(contentHash);
+        if (content != null) {
+            volumes.of(content.path()).readBytes().increment(content.storedLength());
+        }
+        return content;
+    }
+
+    /**
+     * One shard per first-level directory: {@code <algorithm>/xx} on the primary volume,
+     * {@code <volume index>:<algorithm>/xx} on the others, and one per pack segment: {@code pack/<name>}.
+     */
+    @Override
+    public List<String> shards() throws IOException {
+        List<String> shards = new ArrayList<>();
+        if (packs != null) {
+            packs.segments().forEach(segment -> shards.add(PACK_SHARD_PREFIX + segment));
+        }
+        for (Volume volume : volumes.all()) {
+            String prefix = volume.index() == 0 ? "" : volume.index() + String.valueOf(VOLUME_SHARD_SEPARATOR);
+            for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+                Path root = volume.cas().resolve(algorithm.getId());
+                if (!Files.isDirectory(root)) {
+                    continue;
+                }
+                try (Stream<Path> dirs = Files.list(root)) {
+                    dirs.filter(Files::isDirectory)
+                            .forEach(d -> shards.add(prefix + algorithm.getId() + "/" + d.getFileName()));
+                }
+            }
+        }
+        return shards;
+    }
+
+    @Override
+    public void walkShard(String shard, Consumer<StoredObject> visitor) throws IOException {
+        if (shard.startsWith(PACK_SHARD_PREFIX)) {
+            if (packs != null) {
+                packs.walkSegment(shard.substring(PACK_SHARD_PREFIX.length()), visitor);
+            }
+            return;
+        }
+        Volume volume = volumes.primary();
+        int separator = shard.indexOf(VOLUME_SHARD_SEPARATOR);
+        if (separator >= 0) {
+            volume = volumes.all().get(Integer.parseInt(shard.substring(0, separator)));
+            shard = shard.substring(separator + 1);
+        }
+        HashAlgorithm algorithm = HashAlgorithm.fromId(shard.substring(0, shard.indexOf('/')));
+        Path root = volume.cas().resolve(shard);
+        Files.walkFileTree(root, Set.of(), 2, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(GZIP_SUFFIX)) {
+                        name = name.substring(0, name.length() - GZIP_SUFFIX.length());
+                    }
+                    visitor.accept(new StoredObject(
+                            algorithm.key(name),
+                            attrs.size(),
+                            attrs.lastModifiedTime().toInstant()
+                    ));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // removed while walking
+                log.debug("Skipping {} while walking the CAS", file, e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
     }
 
+    /**
+     * {@code cas/<algorithm>/xx/yy/<hex>} on the owning volume; bare SHA-256 keys keep the original
+     * {@code cas/sha256} layout.
+     */
     @Override
     public Path resolvePath(String contentHash) {
-        return cas.resolve(contentHash.substring(0, 2))
-                .resolve(contentHash.substring(2, 4))
-                .resolve(contentHash);
+        return resolvePath(volumes.owner(contentHash), contentHash);
+    }
+
+    /**
+     * Whether the set of volumes differs from the one the CAS was last balanced for. A store that never
+     * recorded it counts as balanced while it has a single volume.
+     */
+    public boolean volumesChanged() throws IOException {
+        Path marker = volumes.primary().cas().resolve(BALANCED_MARKER);
+        if (!Files.exists(marker)) {
+            return !volumes.isSingle();
+        }
+        return !Files.readString(marker).equals(volumes.ids());
+    }
+
+    public void markBalanced() throws IOException {
+        Path marker = volumes.primary().cas().resolve(BALANCED_MARKER);
+        Path temp = createTemp(volumes.primary());
+        Files.writeString(temp, volumes.ids(), WRITE, TRUNCATE_EXISTING);
+        place(temp, marker, volumes.primary());
+    }
+
+    /**
+     * Moves every loose object on {@code source} that the ring assigns to another volume: it is copied into
+     * the owner's {@code tmp}, renamed into place unless the owner already has it, and then removed from
+     * {@code source}. A delete racing the copy can leave the new copy behind unreferenced; the GC reclaims
+     * it like any other orphan.
+     *
+     * @param moved called with the stored size of every moved object before it is copied
+     */
+    public void rebalance(Volume source, MoveListener moved) throws IOException {
+        Files.walkFileTree(source.cas(), Set.of(), 4, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!attrs.isRegularFile() || file.getNameCount() - source.cas().getNameCount() != 4) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String name = file.getFileName().toString();
+                boolean gzip = name.endsWith(GZIP_SUFFIX);
+                String hex = gzip ? name.substring(0, name.length() - GZIP_SUFFIX.length()) : name;
+                String key;
+                try {
+                    key = HashAlgorithm.fromId(file.getName(file.getNameCount() - 4).toString()).key(hex);
+                } catch (IllegalArgumentException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+                Volume owner = volumes.owner(key);
+                if (owner.equals(source)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                Path target = resolvePath(owner, key);
+                if (gzip) {
+                    target = gzipPath(target);
+                }
+                try {
+                    moved.moving(attrs.size());
+                    if (!Files.exists(target)) {
+                        Files.createDirectories(target.getParent());
+                        Path temp = createTemp(owner);
+                        try {
+                            Files.copy(file, temp, REPLACE_EXISTING);
+                            owner.writtenBytes().increment(attrs.size());
+                            place(temp, target, owner);
+                        } finally {
+                            Files.deleteIfExists(temp);
+                        }
+                    }
+                    Files.deleteIfExists(file);
+                } catch (NoSuchFileException e) {
+                    // deleted while moving
+                    log.debug("Object {} disappeared while rebalancing", file, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return FileVisitResult.TERMINATE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                log.debug("Skipping {} while rebalancing", file, e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private Path createTemp(Volume volume) throws IOException {
+        Files.createDirectories(volume.tmp());
+        return Files.createTempFile(volume.tmp(), "up-", ".part");
+    }
+
+    /**
+     * {@code temp} on {@code volume}: as it is when it already lies there, otherwise as a copy in the
+     * volume's {@code tmp} (the original is removed).
+     */
+    private Path onVolume(Path temp, Volume volume) throws IOException {
+        if (temp.startsWith(volume.tmp())) {
+            return temp;
+        }
+        Path local = createTemp(volume);
+        try {
+            Files.copy(temp, local, REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(local);
+            throw e;
+        }
+        tempCopiedBytes.increment(Files.size(local));
+        Files.deleteIfExists(temp);
+        return local;
+    }
+
+    /**
+     * The owning volume first, then the others: objects not yet moved by a rebalance stay readable.
+     */
+    private List<Volume> lookupOrder(String contentHash) {
+        Volume owner = volumes.owner(contentHash);
+        if (volumes.isSingle()) {
+            return List.of(owner);
+        }
+        List<Volume> order = new ArrayList<>(volumes.all().size());
+        order.add(owner);
+        volumes.all().stream().filter(v -> !v.equals(owner)).forEach(order::add);
+        return order;
+    }
+
+    /**
+     * The raw variant wins when both exist (two uploads of the same content raced with different choices).
+     */
+    @Nullable
+    private static StoredContent locateLoose(Path raw) throws IOException {
+        try {
+            long size = Files.size(raw);
+            return new StoredContent(raw, size, size, null);
+        } catch (NoSuchFileException e) {
+            // not stored raw, try the compressed variant
+        }
+        Path gz = gzipPath(raw);
+        try (FileChannel channel = FileChannel.open(gz, READ)) {
+            long stored = channel.size();
+            return new StoredContent(gz, gzipDecodedLength(channel, gz), stored, StoredContent.GZIP);
+        } catch (NoSuchFileException e) {
+            // not compressed either
+            return null;
+        }
+    }
+
+    private static Path resolvePath(Volume volume, String contentHash) {
+        String hex = HashAlgorithm.hexOf(contentHash);
+        return volume.cas().resolve(HashAlgorithm.ofKey(contentHash).getId())
+                .resolve(hex.substring(0, 2))
+                .resolve(hex.substring(2, 4))
+                .resolve(hex);
+    }
+
+    private static Path gzipPath(Path raw) {
+        return raw.resolveSibling(raw.getFileName() + GZIP_SUFFIX);
+    }
+
+    private static Path place(Path temp, Path target, Volume volume) throws IOException {
+        long size = Files.size(temp);
+        Path placed;
+        try {
+            placed = Files.move(temp, target, ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            log.debug("Atomic move operation not supported", e);
+            placed = Files.move(temp, target, REPLACE_EXISTING);
+        }
+        volume.writtenBytes().increment(size);
+        return placed;
+    }
+
+    /**
+     * Progress callback of {@link #rebalance}; may block to throttle the move.
+     */
+    @FunctionalInterface
+    public interface MoveListener {
+        void moving(long bytes) throws InterruptedException;
+    }
+
+    private void gzip(Path source, Path target) throws IOException {
+        try (InputStream in = Files.newInputStream(source, READ);
+             OutputStream out = new GZIPOutputStream(
+                     Files.newOutputStream(target, WRITE, TRUNCATE_EXISTING), GZIP_BUFFER_SIZE) {
+                 {
+                     def.setLevel(compressionLevel);
+                 }
+             }) {
+            in.transferTo(out);
+        }
+    }
+
+    /**
+     * ISIZE, the last four bytes of a gzip member: the uncompressed length modulo 2^32, little-endian.
+     */
+    private static long gzipDecodedLength(FileChannel channel, Path file) throws IOException {
+        ByteBuffer trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        long pos = channel.size() - 4;
+        if (pos < 0) {
+            throw new IOException("Truncated gzip object " + file);
+        }
+        while (trailer.hasRemaining()) {
+            int n = channel.read(trailer, pos + trailer.position());
+            if (n < 0) {
+                throw new IOException("Truncated gzip object " + file);
+            }
+        }
+        return Integer.toUnsignedLong(trailer.getInt(0));
     }
 }
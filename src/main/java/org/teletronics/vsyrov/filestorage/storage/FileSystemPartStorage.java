@@ -0,0 +1,118 @@
+package org.teletronics.vsyrov.filestorage.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Parts of resumable upload sessions: {@code sessions/<sessionId>/part-<n>}.
+ * A part is written to a side file first and then moved into place, so a retried part simply replaces
+ * the previous attempt and a half-written part is never visible.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Component
+public class FileSystemPartStorage {
+    private static final String PART_PREFIX = "part-";
+
+    private final Path sessions;
+
+    @Autowired
+    public FileSystemPartStorage(
+            @Value("${filestorage.base-path:${java.io.tmpdir}/filestorage}") String baseDir
+    ) throws IOException {
+        this.sessions = Paths.get(baseDir).toAbsolutePath().normalize().resolve("sessions");
+        Files.createDirectories(sessions);
+    }
+
+    public Part writePart(String sessionId, int partNumber, InputStream in) throws IOException {
+        Path dir = sessions.resolve(sessionId);
+        Files.createDirectories(dir);
+        Path side = Files.createTempFile(dir, "up-", ".part");
+        try {
+            try (OutputStream out = Files.newOutputStream(side, WRITE, TRUNCATE_EXISTING)) {
+                in.transferTo(out);
+            }
+            long size = Files.size(side);
+            Path target = partPath(sessionId, partNumber);
+            try {
+                Files.move(side, target, ATOMIC_MOVE, REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                log.debug("Atomic move operation not supported", e);
+                Files.move(side, target, REPLACE_EXISTING);
+            }
+            return new Part(partNumber, target, size);
+        } finally {
+            Files.deleteIfExists(side);
+        }
+    }
+
+    /**
+     * Completed parts of a session, ordered by part number.
+     */
+    public List<Part> listParts(String sessionId) throws IOException {
+        Path dir = sessions.resolve(sessionId);
+        if (!Files.isDirectory(dir)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            return files
+                    .filter(p -> p.getFileName().toString().startsWith(PART_PREFIX))
+                    .map(FileSystemPartStorage::toPart)
+                    .sorted(Comparator.comparingInt(Part::number))
+                    .toList();
+        }
+    }
+
+    public void deleteSession(String sessionId) throws IOException {
+        Path dir = sessions.resolve(sessionId);
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : s.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    public List<String> sessionIds() throws IOException {
+        try (Stream<Path> dirs = Files.list(sessions)) {
+            return dirs.filter(Files::isDirectory).map(p -> p.getFileName().toString()).toList();
+        }
+    }
+
+    private Path partPath(String sessionId, int partNumber) {
+        return sessions.resolve(sessionId).resolve(PART_PREFIX + partNumber);
+    }
+
+    private static Part toPart(Path path) {
+        try {
+            int number = Integer.parseInt(path.getFileName().toString().substring(PART_PREFIX.length()));
+            return new Part(number, path, Files.size(path));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot stat part " + path, e);
+        }
+    }
+
+    public record Part(int number, Path path, long size) {
+    }
+}
@@ -0,0 +1,382 @@
+package org.teletronics.vsyrov.filestorage.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.lang.Nullable;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.teletronics.vsyrov.filestorage.common.model.PackedObject;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Small CAS objects appended to large segment files ({@code packs/<id>.pack}) instead of one file each,
+ * which saves an inode, two directory levels and a rename per object.
+ * <p>
+ * A record is {@code magic, key length, key, content length, content}; the {@code packed_objects} collection
+ * maps the hash to (segment, offset, length) and is the only source of truth, so bytes appended by a losing
+ * concurrent writer, or left behind by a delete, are simply dead. Reads are positional and a packed
+ * download can still go out through sendfile. Appends are not fsync-ed one by one: the active segment is
+ * forced every {@code flush-interval} and when it is sealed at {@code segment-size}.
+ * <p>
+ * Compaction copies the live records of segments that fell below {@code compaction.min-live-ratio} into the
+ * active segment and re-points the index with a conditional update; a segment without live records is removed
+ * on the next run, so a reader that located an object just before it moved still finds the old copy.
+ * Only segments untouched for {@code compaction.min-age} are compacted, which keeps the active segments of
+ * other instances sharing the volume out of the way.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Component
+public class PackStore {
+    private static final int RECORD_MAGIC = 0x50414B31; // "PAK1"
+    private static final String SEGMENT_SUFFIX = ".pack";
+
+    private final MongoTemplate mongo;
+    private final Path packs;
+    @Getter
+    private final boolean enabled;
+    private final long maxObjectSize;
+    private final long segmentSize;
+    private final double minLiveRatio;
+    private final Duration minAge;
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final Counter compactedBytes;
+    private volatile boolean inUse;
+    private Segment active;
+
+    public PackStore(
+            MongoTemplate mongo,
+            @Value("${filestorage.base-path:${java.io.tmpdir}/filestorage}") String baseDir,
+            @Value("${filestorage.pack.enabled:false}") boolean enabled,
+            @Value("${filestorage.pack.max-object-size:64KB}") DataSize maxObjectSize,
+            @Value("${filestorage.pack.segment-size:1GB}") DataSize segmentSize,
+            @Value("${filestorage.pack.compaction.min-live-ratio:0.5}") double minLiveRatio,
+            @Value("${filestorage.pack.compaction.min-age:PT1H}") Duration minAge,
+            MeterRegistry registry
+    ) throws IOException {
+        this.mongo = mongo;
+        this.packs = Paths.get(baseDir).toAbsolutePath().normalize().resolve("packs");
+        this.enabled = enabled;
+        this.maxObjectSize = maxObjectSize.toBytes();
+        this.segmentSize = segmentSize.toBytes();
+        this.minLiveRatio = minLiveRatio;
+        this.minAge = minAge;
+        Files.createDirectories(packs);
+        this.inUse = enabled || !segments().isEmpty();
+        this.compactedBytes = Counter.builder("filestorage.pack.compacted.bytes").baseUnit("bytes").register(registry);
+        Gauge.builder("filestorage.pack.segments", this, PackStore::segmentCount).register(registry);
+    }
+
+    /**
+     * Whether a new object of {@code size} bytes goes into a pack.
+     */
+    public boolean accepts(long size) {
+        return enabled && size <= maxObjectSize;
+    }
+
+    /**
+     * Appends {@code content} under {@code hash}; if the hash is indexed meanwhile, the existing copy wins.
+     *
+     * @return the segment now holding the object
+     */
+    public Path append(String hash, byte[] content) throws IOException {
+        Location at = write(hash, content);
+        mongo.upsert(
+                Query.query(Criteria.where("_id").is(hash)),
+                new Update()
+                        .setOnInsert("segment", at.segment())
+                        .setOnInsert("offset", at.offset())
+                        .setOnInsert("length", (long) content.length)
+                        .setOnInsert("createdTs", Instant.now()),
+                PackedObject.class
+        );
+        return packs.resolve(at.segment());
+    }
+
+    /**
+     * Whether packed objects can exist: packing is enabled, or segments written while it was are still around.
+     * Otherwise lookups answer without querying {@code packed_objects}, so a loose-object miss costs no
+     * round trip.
+     */
+    public boolean isInUse() {
+        return inUse;
+    }
+
+    @Nullable
+    public StoredContent locate(String hash) {
+        if (!inUse) {
+            return null;
+        }
+        PackedObject o = mongo.findById(hash, PackedObject.class);
+        return o == null ? null : new StoredContent(packs.resolve(o.getSegment()), o.getLength(), o.getLength(),
+                null, o.getOffset());
+    }
+
+    public boolean exists(String hash) {
+        if (!inUse) {
+            return false;
+        }
+        return mongo.exists(Query.query(Criteria.where("_id").is(hash)), PackedObject.class);
+    }
+
+    /**
+     * Drops the index entry; the bytes stay in the segment until it is compacted.
+     */
+    public boolean delete(String hash) {
+        if (!inUse) {
+            return false;
+        }
+        return mongo.remove(Query.query(Criteria.where("_id").is(hash)), PackedObject.class).getDeletedCount() > 0;
+    }
+
+    public List<String> segments() throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(packs, "*" + SEGMENT_SUFFIX)) {
+            dir.forEach(p -> names.add(p.getFileName().toString()));
+        }
+        return names;
+    }
+
+    /**
+     * Every object indexed in {@code segment}, with its indexing time as the modification time.
+     */
+    public void walkSegment(String segment, Consumer<StoredObject> visitor) {
+        try (Stream<PackedObject> objects = mongo.stream(
+                Query.query(Criteria.where("segment").is(segment)), PackedObject.class)) {
+            objects.forEach(o -> visitor.accept(new StoredObject(o.getHash(), o.getLength(), o.getCreatedTs())));
+        }
+    }
+
+    @Scheduled(
+            initialDelayString = "${filestorage.pack.flush-interval:PT1S}",
+            fixedDelayString = "${filestorage.pack.flush-interval:PT1S}"
+    )
+    public void flush() {
+        Segment segment;
+        appendLock.lock();
+        try {
+            segment = active;
+        } finally {
+            appendLock.unlock();
+        }
+        if (segment == null) {
+            return;
+        }
+        // outside the lock: appends continue while the page cache is written back
+        try {
+            segment.channel().force(false);
+        } catch (ClosedChannelException e) {
+            // sealed meanwhile, which forces it anyway
+        } catch (IOException e) {
+            log.warn("Failed to flush pack segment {}", segment.name(), e);
+        }
+    }
+
+    @Scheduled(
+            initialDelayString = "${filestorage.pack.compaction.interval:PT1H}",
+            fixedDelayString = "${filestorage.pack.compaction.interval:PT1H}"
+    )
+    public void compactScheduled() {
+        compact();
+    }
+
+    /**
+     * @return number of segments removed or compacted
+     */
+    public int compact() {
+        int touched = 0;
+        try {
+            Instant cutoff = Instant.now().minus(minAge);
+            List<String> segments = segments();
+            if (!enabled) {
+                // the last segments of a switched-off pack store went away in the previous run
+                inUse = !segments.isEmpty();
+            }
+            for (String segment : segments) {
+                if (compactIfSparse(segment, cutoff)) {
+                    touched++;
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to list pack segments in {}", packs, e);
+        }
+        return touched;
+    }
+
+    /**
+     * Seals the active segment, making it a compaction candidate; the next append opens a new one.
+     */
+    public void roll() {
+        appendLock.lock();
+        try {
+            seal();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        roll();
+    }
+
+    private boolean compactIfSparse(String segment, Instant cutoff) {
+        Path file = packs.resolve(segment);
+        try {
+            if (isActive(segment) || !Files.getLastModifiedTime(file).toInstant().isBefore(cutoff)) {
+                return false;
+            }
+            long size = Files.size(file);
+            List<PackedObject> live = mongo.find(
+                    Query.query(Criteria.where("segment").is(segment)), PackedObject.class);
+            if (live.isEmpty()) {
+                Files.deleteIfExists(file);
+                log.info("Removed empty pack segment {} ({} bytes)", segment, size);
+                return true;
+            }
+            long liveBytes = live.stream().mapToLong(PackedObject::getLength).sum();
+            if (size == 0 || (double) liveBytes / size >= minLiveRatio) {
+                return false;
+            }
+            try (FileChannel in = FileChannel.open(file, READ)) {
+                for (PackedObject o : live) {
+                    ByteBuffer content = ByteBuffer.allocate((int) o.getLength());
+                    while (content.hasRemaining()) {
+                        if (in.read(content, o.getOffset() + content.position()) < 0) {
+                            throw new IOException("Pack segment " + segment + " truncated at " + o.getOffset());
+                        }
+                    }
+                    Location moved = write(o.getHash(), content.array());
+                    // deleted or moved by another instance meanwhile: the new copy is just dead bytes
+                    mongo.updateFirst(
+                            Query.query(Criteria.where("_id").is(o.getHash())
+                                    .and("segment").is(segment).and("offset").is(o.getOffset())),
+                            new Update().set("segment", moved.segment()).set("offset", moved.offset()),
+                            PackedObject.class
+                    );
+                }
+            }
+            compactedBytes.increment(size - liveBytes);
+            log.info("Compacted pack segment {}: {} live objects ({} of {} bytes) moved",
+                    segment, live.size(), liveBytes, size);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            log.warn("Failed to compact pack segment {}", segment, e);
+            return false;
+        }
+    }
+
+    /**
+     * Appends one record to the active segment, rolling over to a new segment when it is full.
+     */
+    private Location write(String hash, byte[] content) throws IOException {
+        byte[] key = hash.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(4 + 2 + key.length + 8 + content.length)
+                .putInt(RECORD_MAGIC)
+                .putShort((short) key.length)
+                .put(key)
+                .putLong(content.length)
+                .put(content)
+                .flip();
+        int header = record.remaining() - content.length;
+        appendLock.lock();
+        try {
+            if (active == null || (active.position() > 0 && active.position() + record.remaining() > segmentSize)) {
+                seal();
+                active = open();
+            }
+            long start = active.position();
+            long pos = start;
+            while (record.hasRemaining()) {
+                pos += active.channel().write(record, pos);
+            }
+            active = active.withPosition(pos);
+            return new Location(active.name(), start + header);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private Segment open() throws IOException {
+        String name = Long.toHexString(System.currentTimeMillis()) + "-"
+                + HexFormat.of().toHexDigits(ThreadLocalRandom.current().nextInt()) + SEGMENT_SUFFIX;
+        Files.createDirectories(packs);
+        FileChannel channel = FileChannel.open(packs.resolve(name), CREATE_NEW, WRITE);
+        log.debug("Opened pack segment {}", name);
+        return new Segment(name, channel, 0);
+    }
+
+    private void seal() {
+        if (active == null) {
+            return;
+        }
+        try (FileChannel channel = active.channel()) {
+            channel.force(false);
+        } catch (IOException e) {
+            log.warn("Failed to seal pack segment {}", active.name(), e);
+        }
+        active = null;
+    }
+
+    private boolean isActive(String segment) {
+        appendLock.lock();
+        try {
+            return active != null && active.name().equals(segment);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private double segmentCount() {
+        try {
+            return segments().size();
+        } catch (IOException e) {
+            return Double.NaN;
+        }
+    }
+
+    private record Segment(String name, FileChannel channel, long position) {
+        Segment withPosition(long newPosition) {
+            return new Segment(name, channel, newPosition);
+        }
+    }
+
+    private record Location(String segment, long offset) {
+    }
+}
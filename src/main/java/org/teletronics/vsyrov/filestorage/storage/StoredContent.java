@@ -0,0 +1,71 @@
+package org.teletronics.vsyrov.filestorage.storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+import org.springframework.lang.Nullable;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Where and how an object is kept in the CAS: {@code path} holds {@code storedLength} bytes, starting at
+ * {@code offset}, which decode to {@code length} bytes of content. {@code encoding} is {@code null} for raw
+ * objects, {@link #GZIP} otherwise. {@code offset} is non-zero only for objects inside a pack segment.
+ *
+ * @author vsyrov
+ */
+public record StoredContent(Path path, long length, long storedLength, @Nullable String encoding, long offset) {
+    public static final String GZIP = "gzip";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public StoredContent(Path path, long length, long storedLength, @Nullable String encoding) {
+        this(path, length, storedLength, encoding, 0);
+    }
+
+    public boolean isEncoded() {
+        return encoding != null;
+    }
+
+    /**
+     * {@code path} is exactly this object's content: a raw loose file, not a gzip member or a pack slice.
+     */
+    public boolean isWholeFile() {
+        return encoding == null && offset == 0;
+    }
+
+    /**
+     * The content as it was uploaded, decompressing on the fly when the object is encoded.
+     * A packed object is small and is read in one positional read.
+     */
+    public InputStream openDecoded() throws IOException {
+        if (offset > 0) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) storedLength);
+            try (FileChannel channel = FileChannel.open(path, READ)) {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new IOException("Pack segment " + path + " truncated at " + offset);
+                    }
+                }
+            }
+            return new ByteArrayInputStream(buffer.array());
+        }
+        InputStream in = Files.newInputStream(path, READ);
+        if (!isEncoded()) {
+            return in;
+        }
+        try {
+            return new GZIPInputStream(new BufferedInputStream(in, BUFFER_SIZE), BUFFER_SIZE);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+}
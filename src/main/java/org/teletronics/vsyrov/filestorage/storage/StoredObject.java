@@ -0,0 +1,11 @@
+package org.teletronics.vsyrov.filestorage.storage;
+
+import java.time.Instant;
+
+/**
+ * A file found in the CAS while walking it.
+ *
+ * @author vsyrov
+ */
+public record StoredObject(String contentHash, long size, Instant lastModified) {
+}
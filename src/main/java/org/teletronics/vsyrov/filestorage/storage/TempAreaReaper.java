@@ -0,0 +1,146 @@
+package org.teletronics.vsyrov.filestorage.storage;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Removes temp files ({@code tmp/up-*.part}, on every volume) left behind when the JVM died or a request was aborted between
+ * receiving an upload and moving it into the CAS.
+ * <p>
+ * A file counts as stale once it has not been written to for {@code max-age}; uploads in progress keep touching
+ * their file, so they are never hit. On startup nothing of this process can be in flight, so the shorter
+ * {@code startup-max-age} applies (it only has to cover other instances sharing the volume).
+ * The directory is stat-ed and cleaned in parallel; removed files and bytes are exported as
+ * {@code filestorage.tmp.reaped.files} / {@code filestorage.tmp.reaped.bytes}.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Component
+public class TempAreaReaper {
+    private static final String TEMP_GLOB = "up-*.part";
+
+    private final List<Path> tmpDirs;
+    private final Duration maxAge;
+    private final Duration startupMaxAge;
+    private final ForkJoinPool pool;
+    private final Counter reapedFiles;
+    private final Counter reapedBytes;
+
+    public TempAreaReaper(
+            @Value("${filestorage.base-path:${java.io.tmpdir}/filestorage}") String baseDir,
+            @Value("${filestorage.volumes:}") List<String> extraVolumes,
+            @Value("${filestorage.tmp-reaper.max-age:PT6H}") Duration maxAge,
+            @Value("${filestorage.tmp-reaper.startup-max-age:PT5M}") Duration startupMaxAge,
+            @Value("${filestorage.tmp-reaper.parallelism:4}") int parallelism,
+            MeterRegistry registry
+    ) {
+        List<Path> dirs = new ArrayList<>();
+        dirs.add(Paths.get(baseDir).toAbsolutePath().normalize().resolve("tmp"));
+        extraVolumes.stream()
+                .filter(v -> v != null && !v.isBlank())
+                .map(v -> Paths.get(v.trim()).toAbsolutePath().normalize().resolve("tmp"))
+                .filter(p -> !dirs.contains(p))
+                .forEach(dirs::add);
+        this.tmpDirs = List.copyOf(dirs);
+        this.maxAge = maxAge;
+        this.startupMaxAge = startupMaxAge;
+        this.pool = new ForkJoinPool(Math.max(parallelism, 1));
+        this.reapedFiles = Counter.builder("filestorage.tmp.reaped.files").register(registry);
+        this.reapedBytes = Counter.builder("filestorage.tmp.reaped.bytes").baseUnit("bytes").register(registry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void recoverOnStartup() {
+        reap(startupMaxAge);
+    }
+
+    @Scheduled(
+            initialDelayString = "${filestorage.tmp-reaper.interval:PT15M}",
+            fixedDelayString = "${filestorage.tmp-reaper.interval:PT15M}"
+    )
+    public void reapStale() {
+        reap(maxAge);
+    }
+
+    /**
+     * @return number of removed files
+     */
+    public long reap(Duration olderThan) {
+        long removed = 0;
+        for (Path tmp : tmpDirs) {
+            removed += reap(tmp, olderThan);
+        }
+        return removed;
+    }
+
+    private long reap(Path tmp, Duration olderThan) {
+        if (!Files.isDirectory(tmp)) {
+            return 0;
+        }
+        Instant cutoff = Instant.now().minus(olderThan);
+        LongAdder files = new LongAdder();
+        LongAdder bytes = new LongAdder();
+        try {
+            List<Path> candidates = new ArrayList<>();
+            try (DirectoryStream<Path> dir = Files.newDirectoryStream(tmp, TEMP_GLOB)) {
+                dir.forEach(candidates::add);
+            }
+            pool.submit(() -> candidates.parallelStream().forEach(p -> reapIfStale(p, cutoff, files, bytes))).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | ExecutionException e) {
+            log.warn("Failed to scan temp area {}", tmp, e);
+        }
+        reapedFiles.increment(files.sum());
+        reapedBytes.increment(bytes.sum());
+        if (files.sum() > 0) {
+            log.info("Removed {} stale temp files ({} bytes) from {}", files.sum(), bytes.sum(), tmp);
+        }
+        return files.sum();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private static void reapIfStale(Path file, Instant cutoff, LongAdder files, LongAdder bytes) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attrs.isRegularFile() || !attrs.lastModifiedTime().toInstant().isBefore(cutoff)) {
+                return;
+            }
+            if (Files.deleteIfExists(file)) {
+                files.increment();
+                bytes.add(attrs.size());
+            }
+        } catch (NoSuchFileException e) {
+            // moved into the CAS or removed in the meantime
+        } catch (IOException e) {
+            log.warn("Failed to remove stale temp file {}", file, e);
+        }
+    }
+}
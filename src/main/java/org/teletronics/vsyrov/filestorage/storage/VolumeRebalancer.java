@@ -0,0 +1,136 @@
+package org.teletronics.vsyrov.filestorage.storage;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.teletronics.vsyrov.filestorage.common.io.TokenBucket;
+import org.teletronics.vsyrov.filestorage.storage.CasVolumes.Volume;
+
+/**
+ * Moves objects to the volume the ring assigns them after {@code filestorage.volumes} changed.
+ * <p>
+ * On startup the configured set of volumes is compared with the one recorded after the last complete run;
+ * when they differ a run starts in the background while the service keeps serving (lookups fall back to
+ * the other volumes until an object has arrived at its owner). Moves are throttled to
+ * {@code filestorage.volumes-rebalance.max-bytes-per-second}; moved objects and bytes are exported as
+ * {@code filestorage.volume.rebalanced.files} / {@code filestorage.volume.rebalanced.bytes}.
+ * The new set is recorded only after every volume has been walked, so an interrupted run starts over.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@Service
+public class VolumeRebalancer {
+    private final FileSystemCasStorage storage;
+    private final boolean enabled;
+    private final double bytesPerSecond;
+    private final Counter rebalancedFiles;
+    private final Counter rebalancedBytes;
+    private final ExecutorService launcher;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    public VolumeRebalancer(
+            FileSystemCasStorage storage,
+            MeterRegistry registry,
+            @Value("${filestorage.volumes-rebalance.enabled:true}") boolean enabled,
+            @Value("${filestorage.volumes-rebalance.max-bytes-per-second:0B}") DataSize bytesPerSecond
+    ) {
+        this.storage = storage;
+        this.enabled = enabled;
+        this.bytesPerSecond = bytesPerSecond.toBytes();
+        this.rebalancedFiles = Counter.builder("filestorage.volume.rebalanced.files").register(registry);
+        this.rebalancedBytes = Counter.builder("filestorage.volume.rebalanced.bytes").baseUnit("bytes")
+                .register(registry);
+        var threadFactory = new CustomizableThreadFactory("cas-rebalance-");
+        threadFactory.setDaemon(true);
+        this.launcher = Executors.newSingleThreadExecutor(threadFactory);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebalanceIfChanged() {
+        try {
+            if (!storage.volumesChanged()) {
+                return;
+            }
+            if (!enabled) {
+                log.warn("CAS volumes changed but rebalancing is disabled; objects stay on their previous volume");
+                return;
+            }
+            start();
+        } catch (IOException e) {
+            log.warn("Failed to check the CAS volume set", e);
+        }
+    }
+
+    /**
+     * Starts a run in the background.
+     *
+     * @return false when a run is already in progress
+     */
+    public boolean start() {
+        if (running.get()) {
+            return false;
+        }
+        launcher.submit(this::run);
+        return true;
+    }
+
+    /**
+     * Runs a full rebalance in the calling thread.
+     *
+     * @return number of moved objects, or -1 when another run is in progress
+     */
+    public long run() {
+        if (!running.compareAndSet(false, true)) {
+            return -1;
+        }
+        long started = System.currentTimeMillis();
+        TokenBucket bytes = new TokenBucket(bytesPerSecond);
+        AtomicLong moved = new AtomicLong();
+        try {
+            for (Volume volume : storage.volumes().all()) {
+                storage.rebalance(volume, size -> {
+                    bytes.acquire(size);
+                    moved.incrementAndGet();
+                    rebalancedFiles.increment();
+                    rebalancedBytes.increment(size);
+                });
+                if (Thread.currentThread().isInterrupted()) {
+                    log.info("CAS rebalance interrupted after {} objects", moved.get());
+                    return moved.get();
+                }
+            }
+            storage.markBalanced();
+            log.info("CAS rebalanced over {} volumes: {} objects moved in {} ms",
+                    storage.volumes().all().size(), moved.get(), System.currentTimeMillis() - started);
+            return moved.get();
+        } catch (IOException e) {
+            log.warn("CAS rebalance failed, it is retried on the next start", e);
+            return moved.get();
+        } finally {
+            running.set(false);
+        }
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        launcher.shutdownNow();
+    }
+}
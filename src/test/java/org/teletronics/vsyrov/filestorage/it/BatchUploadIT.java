@@ -0,0 +1,137 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.jayway.jsonpath.JsonPath;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.web.servlet.MockMvc;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * @author vsyrov
+ */
+@AutoConfigureMockMvc
+public class BatchUploadIT extends MongoTestBase {
+
+    @Autowired
+    MockMvc mvc;
+    @Autowired
+    FileService fileService;
+
+    @Test
+    void multipartBatch_perItemStatuses() throws Exception {
+        fileService.upload("userB1", new MockMultipartFile("file", "old.txt", "text/plain", bytes("old")),
+                VisibilityType.USER_PRIVATE, null, null);
+
+        var result = mvc.perform(multipart("/file/v1/batch")
+                        .file(new MockMultipartFile("file", "a.txt", "text/plain", bytes("alpha")))
+                        .file(new MockMultipartFile("file", "b.txt", "text/plain", bytes("beta")))
+                        .file(new MockMultipartFile("file", "a.txt", "text/plain", bytes("gamma")))
+                        .file(new MockMultipartFile("file", "c.txt", "text/plain", bytes("beta")))
+                        .file(new MockMultipartFile("file", "old.txt", "text/plain", bytes("delta")))
+                        .file(new MockMultipartFile("file", "d.txt", "text/plain", bytes("old")))
+                        .header("X-User-Id", "userB1")
+                        .param("visibility", "PUBLIC")
+                        .param("tags", "Batch"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.created").value(2))
+                .andExpect(jsonPath("$.duplicates").value(4))
+                .andExpect(jsonPath("$.errors").value(0))
+                .andExpect(jsonPath("$.items[0].status").value("CREATED"))
+                .andExpect(jsonPath("$.items[0].file.fileName").value("a.txt"))
+                .andExpect(jsonPath("$.items[0].file.tags[0]").value("batch"))
+                .andExpect(jsonPath("$.items[1].status").value("CREATED"))
+                .andExpect(jsonPath("$.items[2].status").value("DUPLICATE"))
+                .andExpect(jsonPath("$.items[3].status").value("DUPLICATE"))
+                .andExpect(jsonPath("$.items[4].status").value("DUPLICATE"))
+                .andExpect(jsonPath("$.items[5].status").value("DUPLICATE"))
+                .andExpect(jsonPath("$.items[5].error").value("Same content already uploaded by this user"))
+                .andReturn();
+
+        String id = JsonPath.read(result.getResponse().getContentAsString(), "$.items[1].file.id");
+        mvc.perform(get("/file/v1/{id}", id).header("X-User-Id", "userB1"))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(bytes("beta")));
+    }
+
+    @Test
+    void tarBatch_filesNamedByPath() throws Exception {
+        var tar = new ByteArrayOutputStream();
+        tarEntry(tar, "./docs/readme.txt", '0', bytes("read me"));
+        tarEntry(tar, "docs/", '5', new byte[0]);
+        tarEntry(tar, "data.bin", '0', bytes("x".repeat(1500)));
+        tar.writeBytes(new byte[1024]);
+
+        var result = mvc.perform(post("/file/v1/batch")
+                        .header("X-User-Id", "userB2")
+                        .param("visibility", "USER_PRIVATE")
+                        .contentType("application/x-tar")
+                        .content(tar.toByteArray()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.created").value(2))
+                .andExpect(jsonPath("$.items.length()").value(2))
+                .andExpect(jsonPath("$.items[0].filename").value("docs/readme.txt"))
+                .andExpect(jsonPath("$.items[1].filename").value("data.bin"))
+                .andExpect(jsonPath("$.items[1].file.size").value(1500))
+                .andReturn();
+
+        String id = JsonPath.read(result.getResponse().getContentAsString(), "$.items[0].file.id");
+        mvc.perform(get("/file/v1/{id}", id).header("X-User-Id", "userB2"))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(bytes("read me")));
+    }
+
+    @Test
+    void corruptTar_badRequest() throws Exception {
+        mvc.perform(post("/file/v1/batch")
+                        .header("X-User-Id", "userB3")
+                        .param("visibility", "USER_PRIVATE")
+                        .contentType("application/x-tar")
+                        .content("this is not a tar archive".repeat(40)))
+                .andExpect(status().isBadRequest());
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void tarEntry(ByteArrayOutputStream out, String name, char type, byte[] data) {
+        byte[] header = new byte[512];
+        put(header, 0, name);
+        put(header, 100, "0000644");
+        put(header, 124, String.format("%011o", data.length));
+        put(header, 136, String.format("%011o", 0));
+        header[156] = (byte) type;
+        put(header, 257, "ustar");
+        put(header, 263, "00");
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        int sum = 0;
+        for (byte b : header) {
+            sum += b & 0xff;
+        }
+        put(header, 148, String.format("%06o", sum));
+        out.writeBytes(header);
+        out.writeBytes(data);
+        out.writeBytes(new byte[(512 - data.length % 512) % 512]);
+    }
+
+    private static void put(byte[] header, int offset, String value) {
+        byte[] b = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(b, 0, header, offset, b.length);
+    }
+}
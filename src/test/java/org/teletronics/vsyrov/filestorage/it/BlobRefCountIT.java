@@ -0,0 +1,107 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.mock.web.MockMultipartFile;
+import org.teletronics.vsyrov.filestorage.common.model.Blob;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+import org.teletronics.vsyrov.filestorage.storage.ContentStorageService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author vsyrov
+ */
+public class BlobRefCountIT extends MongoTestBase {
+
+    @Autowired
+    FileService fileService;
+    @Autowired
+    ContentStorageService storage;
+    @Autowired
+    MongoTemplate mongo;
+
+    @Test
+    void sharedContent_removedWithLastReference() throws Exception {
+        byte[] body = "shared by two owners".getBytes();
+        var first = fileService.upload("userR1", file("a.txt", body), VisibilityType.PUBLIC, null, null);
+        var second = fileService.upload("userR2", file("b.txt", body), VisibilityType.PUBLIC, null, null);
+        String hash = first.getHash();
+        assertEquals(hash, second.getHash());
+        assertEquals(2, blob(hash).getRefCount());
+
+        fileService.delete("userR1", first.getId());
+        assertEquals(1, blob(hash).getRefCount());
+        assertTrue(Files.exists(storage.resolvePath(hash)));
+
+        fileService.delete("userR2", second.getId());
+        assertNull(blob(hash));
+        assertFalse(Files.exists(storage.resolvePath(hash)));
+    }
+
+    @Test
+    void concurrentUploadsAndDeletes_neverLoseReferencedContent() throws Exception {
+        byte[] body = "raced between uploads and deletes".getBytes();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < 20; round++) {
+                List<Callable<Object>> tasks = new ArrayList<>();
+                for (int u = 0; u < 4; u++) {
+                    String owner = "userRace" + u;
+                    String name = "r" + round + ".txt";
+                    tasks.add(() -> {
+                        var meta = fileService.upload(owner, file(name, body), VisibilityType.PUBLIC, null, null);
+                        fileService.delete(owner, meta.getId());
+                        return null;
+                    });
+                    tasks.add(() -> fileService.upload(owner, file("keep-" + name, body), VisibilityType.PUBLIC,
+                            null, null));
+                }
+                for (Future<Object> f : pool.invokeAll(tasks)) {
+                    try {
+                        f.get(30, TimeUnit.SECONDS);
+                    } catch (Exception ignored) {
+                        // per-owner duplicates are expected: every owner uploads the same content twice
+                    }
+                }
+
+                List<FileMetadata> alive = mongo.find(
+                        Query.query(Criteria.where("ownerId").regex("^userRace")), FileMetadata.class);
+                for (FileMetadata meta : alive) {
+                    assertTrue(Files.exists(storage.resolvePath(meta.getHash())), "referenced content was removed");
+                    assertEquals(alive.size(), blob(meta.getHash()).getRefCount());
+                    fileService.delete(meta.getOwnerId(), meta.getId());
+                }
+                alive.stream().findFirst().ifPresent(m -> assertNull(blob(m.getHash())));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Blob blob(String hash) {
+        return mongo.findById(hash, Blob.class);
+    }
+
+    private static MockMultipartFile file(String name, byte[] body) {
+        return new MockMultipartFile("f", name, "text/plain", body);
+    }
+}
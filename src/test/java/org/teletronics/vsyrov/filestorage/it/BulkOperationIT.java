@@ -0,0 +1,164 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import com.jayway.jsonpath.JsonPath;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.web.servlet.MockMvc;
+import org.teletronics.vsyrov.filestorage.common.model.Blob;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+import org.teletronics.vsyrov.filestorage.service.bulk.BulkJobReport;
+import org.teletronics.vsyrov.filestorage.service.bulk.BulkOperationService;
+import org.teletronics.vsyrov.filestorage.service.bulk.BulkSelector;
+import org.teletronics.vsyrov.filestorage.storage.ContentStorageService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * @author vsyrov
+ */
+@AutoConfigureMockMvc
+public class BulkOperationIT extends MongoTestBase {
+
+    @Autowired
+    MockMvc mvc;
+    @Autowired
+    FileService fileService;
+    @Autowired
+    BulkOperationService bulk;
+    @Autowired
+    ContentStorageService storage;
+    @Autowired
+    MongoTemplate mongo;
+
+    @Test
+    void deleteByIds_releasesContent_skipsForeignFiles() throws Exception {
+        FileMetadata a = upload("userK1", "a.txt", "bulk a", List.of("k"));
+        FileMetadata b = upload("userK1", "b.txt", "bulk shared", List.of("k"));
+        FileMetadata foreign = upload("userK2", "c.txt", "bulk shared", List.of("k"));
+
+        var result = mvc.perform(post("/file/v1/bulk/delete")
+                        .header("X-User-Id", "userK1")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"ids\": [\"" + a.getId() + "\", \"" + b.getId() + "\", \""
+                                + foreign.getId() + "\", \"missing\"]}"))
+                .andExpect(status().isAccepted())
+                .andExpect(jsonPath("$.operation").value("DELETE"))
+                .andReturn();
+        String jobId = JsonPath.read(result.getResponse().getContentAsString(), "$.id");
+        BulkJobReport report = await("userK1", jobId);
+
+        assertEquals(4, report.total());
+        assertEquals(2, report.processed());
+        assertEquals(2, report.skipped());
+        assertEquals(1, report.reclaimed());
+        assertNull(report.error());
+        assertNull(mongo.findById(a.getId(), FileMetadata.class));
+        assertNull(mongo.findById(b.getId(), FileMetadata.class));
+        assertFalse(storage.exists(a.getHash()));
+        // still referenced by the other owner
+        assertTrue(storage.exists(b.getHash()));
+        assertEquals(1, mongo.findById(b.getHash(), Blob.class).getRefCount());
+        assertFalse(fileService.getAccessibleTags("userK1").containsKey("k"));
+
+        mvc.perform(get("/file/v1/bulk/{id}", jobId).header("X-User-Id", "userK2"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void retagAndVisibility_byFilter() {
+        Instant before = Instant.now();
+        FileMetadata old = upload("userK3", "old.txt", "bulk old", List.of("draft", "x"));
+        FileMetadata other = upload("userK3", "other.txt", "bulk other", List.of("bulkfinal"));
+
+        BulkJobReport retag = await("userK3", bulk.retag("userK3", new BulkSelector(null, "Draft", null, null),
+                null, List.of("Reviewed"), List.of("draft")).id());
+        assertEquals(1, retag.processed());
+        assertEquals(List.of("x", "reviewed"), mongo.findById(old.getId(), FileMetadata.class).getTags());
+        assertEquals(List.of("bulkfinal"), mongo.findById(other.getId(), FileMetadata.class).getTags());
+        var tags = fileService.getAccessibleTags("userK3");
+        assertFalse(tags.containsKey("draft"));
+        assertEquals(1L, tags.get("reviewed"));
+
+        BulkJobReport visibility = await("userK3", bulk.changeVisibility("userK3",
+                new BulkSelector(null, null, VisibilityType.USER_PRIVATE, null), VisibilityType.PUBLIC).id());
+        assertEquals(2, visibility.processed());
+        assertEquals(VisibilityType.PUBLIC, mongo.findById(old.getId(), FileMetadata.class).getVisibility());
+        assertEquals(VisibilityType.PUBLIC, mongo.findById(other.getId(), FileMetadata.class).getVisibility());
+        assertEquals(1L, fileService.getAccessibleTags("userK4").get("bulkfinal"));
+
+        BulkJobReport none = await("userK3", bulk.delete("userK3", new BulkSelector(null, null, null, before)).id());
+        assertEquals(0, none.total());
+        assertEquals(0, none.processed());
+    }
+
+    @Test
+    void interruptedDelete_onlyStaleClaimsTakenOver() throws Exception {
+        FileMetadata stale = upload("userK5", "stale.txt", "bulk stale", List.of());
+        FileMetadata live = upload("userK5", "live.txt", "bulk live", List.of());
+        claim(stale, "dead:job:0", Instant.now().minus(Duration.ofHours(1)));
+        claim(live, "alive:job:0", Instant.now());
+
+        bulk.finishInterruptedDeletes();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (mongo.findById(stale.getId(), FileMetadata.class) != null || storage.exists(stale.getHash())) {
+            assertTrue(System.currentTimeMillis() < deadline, "stale claim was not taken over in time");
+            sleep();
+        }
+        assertNull(mongo.findById(stale.getHash(), Blob.class));
+        assertEquals("alive:job:0", mongo.findById(live.getId(), FileMetadata.class).getDeleteClaim());
+        assertEquals(1, mongo.findById(live.getHash(), Blob.class).getRefCount());
+        assertTrue(storage.exists(live.getHash()));
+    }
+
+    private void claim(FileMetadata meta, String claim, Instant at) {
+        mongo.updateFirst(Query.query(Criteria.where("_id").is(meta.getId())),
+                new Update().set("deleteClaim", claim).set("deleteClaimTs", at), FileMetadata.class);
+    }
+
+    private FileMetadata upload(String owner, String name, String body, List<String> tags) {
+        return fileService.upload(owner, new MockMultipartFile("file", name, "text/plain",
+                body.getBytes(StandardCharsets.UTF_8)), VisibilityType.USER_PRIVATE, null, tags);
+    }
+
+    private BulkJobReport await(String owner, String jobId) {
+        long deadline = System.currentTimeMillis() + 10_000;
+        BulkJobReport report = bulk.status(owner, jobId);
+        while (report.running()) {
+            assertTrue(System.currentTimeMillis() < deadline, "bulk job did not finish in time");
+            sleep();
+            report = bulk.status(owner, jobId);
+        }
+        return report;
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(20);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AssertionError(e);
+        }
+    }
+}
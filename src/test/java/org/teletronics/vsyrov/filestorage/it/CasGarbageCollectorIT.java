@@ -0,0 +1,102 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.mock.web.MockMultipartFile;
+import org.teletronics.vsyrov.filestorage.common.model.Blob;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+import org.teletronics.vsyrov.filestorage.service.gc.CasGarbageCollector;
+import org.teletronics.vsyrov.filestorage.service.gc.GcReport;
+import org.teletronics.vsyrov.filestorage.storage.ContentStorageService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author vsyrov
+ */
+public class CasGarbageCollectorIT extends MongoTestBase {
+    private static final FileTime LONG_AGO = FileTime.from(Instant.now().minus(Duration.ofDays(7)));
+
+    @Autowired
+    CasGarbageCollector gc;
+    @Autowired
+    FileService fileService;
+    @Autowired
+    ContentStorageService storage;
+    @Autowired
+    MongoTemplate mongo;
+
+    @Test
+    void sweep_removesOnlyOldUnreferencedObjects() throws Exception {
+        var kept = fileService.upload("userGc",
+                new MockMultipartFile("f", "kept.txt", "text/plain", "referenced content".getBytes()),
+                VisibilityType.PUBLIC, null, null);
+        Path referenced = storage.resolvePath(kept.getHash());
+        Files.setLastModifiedTime(referenced, LONG_AGO);
+
+        Path orphan = put("aa".repeat(32), LONG_AGO);
+        Path young = put("bb".repeat(32), FileTime.from(Instant.now()));
+        String releasedHash = "cc".repeat(32);
+        Path released = put(releasedHash, LONG_AGO);
+        mongo.insert(Blob.builder().hash(releasedHash).refCount(0).size(4).deleting(false).build());
+
+        GcReport dry = gc.run(true);
+        assertTrue(dry.dryRun());
+        assertEquals(2, dry.candidateFiles());
+        assertEquals(0, dry.reclaimedFiles());
+        assertTrue(Files.exists(orphan));
+        assertTrue(Files.exists(released));
+
+        GcReport report = gc.run(false);
+        assertFalse(report.running());
+        assertEquals(4, report.scannedFiles());
+        assertEquals(2, report.reclaimedFiles());
+        assertEquals(8, report.reclaimedBytes());
+        assertEquals(report.shardsTotal(), report.shardsDone());
+        assertFalse(Files.exists(orphan));
+        assertFalse(Files.exists(released));
+        assertNull(mongo.findById(releasedHash, Blob.class));
+        assertTrue(Files.exists(referenced));
+        assertTrue(Files.exists(young));
+    }
+
+    @Test
+    void sweep_correctsOverCountedBlobs() throws Exception {
+        String leakedHash = "dd".repeat(32);
+        Path leaked = put(leakedHash, LONG_AGO);
+        mongo.insert(Blob.builder().hash(leakedHash).refCount(2).size(4).deleting(false)
+                .updatedTs(LONG_AGO.toInstant()).build());
+        String acquiredHash = "ee".repeat(32);
+        Path acquired = put(acquiredHash, LONG_AGO);
+        mongo.insert(Blob.builder().hash(acquiredHash).refCount(1).size(4).deleting(false)
+                .updatedTs(Instant.now()).build());
+
+        GcReport report = gc.run(false);
+        assertEquals(1, report.reclaimedFiles());
+        assertFalse(Files.exists(leaked));
+        assertNull(mongo.findById(leakedHash, Blob.class));
+        // referenced a moment ago, its file may not be saved yet
+        assertTrue(Files.exists(acquired));
+        assertEquals(1, mongo.findById(acquiredHash, Blob.class).getRefCount());
+    }
+
+    private Path put(String hash, FileTime modified) throws Exception {
+        Path path = storage.resolvePath(hash);
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, "junk");
+        Files.setLastModifiedTime(path, modified);
+        return path;
+    }
+}
@@ -0,0 +1,80 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.web.servlet.MockMvc;
+import org.teletronics.vsyrov.filestorage.api.controller.FileDto;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * @author vsyrov
+ */
+@AutoConfigureMockMvc
+public class CatalogueExportIT extends MongoTestBase {
+
+    @Autowired
+    MockMvc mvc;
+    @Autowired
+    FileService fileService;
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Test
+    void export_writesOneJsonLinePerFile() throws Exception {
+        for (int i = 0; i < 7; i++) {
+            fileService.upload("userE", new MockMultipartFile("f", "e" + i + ".txt", "text/plain",
+                    ("export-" + i).getBytes()), VisibilityType.USER_PRIVATE, null, List.of("x"));
+        }
+        fileService.upload("userE2", new MockMultipartFile("f", "pub.txt", "text/plain", "pub".getBytes()),
+                VisibilityType.PUBLIC, null, null);
+
+        String owned = mvc.perform(get("/files/v1/export").header("X-User-Id", "userE"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Type", "application/x-ndjson"))
+                .andReturn().getResponse().getContentAsString();
+        List<FileDto> files = parse(owned);
+        assertEquals(7, files.size());
+        assertTrue(files.stream().allMatch(f -> f.getOwnerId().equals("userE")));
+        assertEquals(7, files.stream().map(FileDto::getId).distinct().count());
+
+        String shared = mvc.perform(get("/files/v1/export").param("scope", "public"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        assertTrue(parse(shared).stream().anyMatch(f -> f.getFileName().equals("pub.txt")));
+        assertTrue(parse(shared).stream().noneMatch(f -> f.getOwnerId().equals("userE")));
+    }
+
+    @Test
+    void exportOwned_withoutUser_badRequest() throws Exception {
+        mvc.perform(get("/files/v1/export")).andExpect(status().isBadRequest());
+        mvc.perform(get("/files/v1/export").param("scope", "all").header("X-User-Id", "u"))
+                .andExpect(status().isBadRequest());
+    }
+
+    private List<FileDto> parse(String ndjson) {
+        return Arrays.stream(ndjson.split("\n"))
+                .filter(line -> !line.isBlank())
+                .map(line -> {
+                    try {
+                        return objectMapper.readValue(line, FileDto.class);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                })
+                .toList();
+    }
+}
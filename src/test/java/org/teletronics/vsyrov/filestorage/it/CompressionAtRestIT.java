@@ -0,0 +1,145 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.hamcrest.Matchers;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+import org.teletronics.vsyrov.filestorage.storage.ContentStorageService;
+import org.teletronics.vsyrov.filestorage.storage.StoredContent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.teletronics.vsyrov.filestorage.it.config.TestFiles.upload;
+
+/**
+ * @author vsyrov
+ */
+@AutoConfigureMockMvc
+@TestPropertySource(properties = "filestorage.compression.enabled=true")
+public class CompressionAtRestIT extends MongoTestBase {
+
+    @Autowired
+    MockMvc mvc;
+    @Autowired
+    FileService fileService;
+    @Autowired
+    ContentStorageService storage;
+
+    @Test
+    void compressibleText_storedGzip_hashOverUncompressed() throws Exception {
+        byte[] body = logLines(2000);
+        FileMetadata meta = upload(fileService, "userZ1", "app.log", "text/plain", body);
+
+        StoredContent stored = storage.locate(meta.getHash());
+        assertEquals(StoredContent.GZIP, stored.encoding());
+        assertEquals(body.length, stored.length());
+        assertTrue(stored.storedLength() * 3 < body.length, "log lines should shrink at least 3x");
+        try (var in = storage.open(meta.getHash())) {
+            assertArrayEquals(body, in.readAllBytes());
+        }
+
+        // dedupe: the same bytes from another owner land on the same object
+        FileMetadata copy = upload(fileService, "userZ2", "copy.log", "text/plain", body);
+        assertEquals(meta.getHash(), copy.getHash());
+    }
+
+    @Test
+    void download_passesGzipThroughOrDecodes() throws Exception {
+        byte[] body = logLines(1000);
+        FileMetadata meta = upload(fileService, "userZ3", "served.log", "text/plain", body);
+        long stored = storage.locate(meta.getHash()).storedLength();
+
+        byte[] encoded = mvc.perform(get("/file/v1/{id}", meta.getId())
+                        .header("X-User-Id", "userZ3").header("Accept-Encoding", "br, gzip;q=0.8"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Encoding", "gzip"))
+                .andExpect(header().stringValues("Vary", Matchers.hasItem("Accept-Encoding")))
+                .andExpect(header().string("ETag", "\"" + meta.getHash() + "-gzip\""))
+                .andExpect(header().longValue("Content-Length", stored))
+                .andReturn().getResponse().getContentAsByteArray();
+        try (var in = new GZIPInputStream(new ByteArrayInputStream(encoded))) {
+            assertArrayEquals(body, in.readAllBytes());
+        }
+
+        mvc.perform(get("/file/v1/{id}", meta.getId())
+                        .header("X-User-Id", "userZ3").header("Accept-Encoding", "gzip;q=0"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("Content-Encoding"))
+                .andExpect(header().string("ETag", "\"" + meta.getHash() + "\""))
+                .andExpect(header().longValue("Content-Length", body.length))
+                .andExpect(content().bytes(body));
+
+        // the explicit refusal wins over the wildcard
+        mvc.perform(get("/file/v1/{id}", meta.getId())
+                        .header("X-User-Id", "userZ3").header("Accept-Encoding", "gzip;q=0, *"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("Content-Encoding"))
+                .andExpect(content().bytes(body));
+        mvc.perform(get("/file/v1/{id}", meta.getId())
+                        .header("X-User-Id", "userZ3").header("Accept-Encoding", "br, *;q=0.5"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Encoding", "gzip"));
+    }
+
+    @Test
+    void rangeOnCompressedObject_servedWhole() throws Exception {
+        byte[] body = logLines(500);
+        FileMetadata meta = upload(fileService, "userZ4", "ranged.log", "text/plain", body);
+
+        mvc.perform(get("/file/v1/{id}", meta.getId()).header("X-User-Id", "userZ4").header("Range", "bytes=0-9"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Accept-Ranges", "none"))
+                .andExpect(content().bytes(body));
+    }
+
+    @Test
+    void incompressibleOrBinary_storedRaw() throws Exception {
+        byte[] noise = new byte[256 * 1024];
+        new Random(7).nextBytes(noise);
+        // declared as text, but the sample shows it does not shrink
+        FileMetadata text = upload(fileService, "userZ5", "noise.txt", "text/plain", noise);
+        assertNull(storage.locate(text.getHash()).encoding());
+
+        FileMetadata binary = fileService.upload("userZ5",
+                new MockMultipartFile("file", "zeros.bin", "application/octet-stream", new byte[64 * 1024]),
+                VisibilityType.USER_PRIVATE, null, null);
+        assertFalse(storage.locate(binary.getHash()).isEncoded());
+    }
+
+    @Test
+    void delete_removesCompressedObject() throws Exception {
+        FileMetadata meta = upload(fileService, "userZ6", "gone.log", "text/plain", logLines(300));
+        assertTrue(storage.locate(meta.getHash()).isEncoded());
+
+        fileService.delete("userZ6", meta.getId());
+        assertFalse(storage.exists(meta.getHash()));
+    }
+
+    private static byte[] logLines(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append("2026-01-01T00:00:").append(i % 60).append("Z INFO  [main] request ")
+                    .append(i).append(" handled in ").append(i % 17).append(" ms\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
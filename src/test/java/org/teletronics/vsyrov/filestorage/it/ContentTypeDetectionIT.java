@@ -0,0 +1,104 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.teletronics.vsyrov.filestorage.common.io.HashingInputStream;
+import org.teletronics.vsyrov.filestorage.common.io.HeadCapturingInputStream;
+import org.teletronics.vsyrov.filestorage.service.utility.FileProcessingUtility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Head-based detection must report the same types as the former detection on the stored CAS file.
+ *
+ * @author vsyrov
+ */
+public class ContentTypeDetectionIT {
+    private static final String PNG_1PX = "iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR42mNkYPhfDwAChwGA60e6kgAAAABJRU5ErkJggg==";
+
+    @TempDir
+    Path dir;
+
+    static Stream<Arguments> samples() throws IOException {
+        return Stream.of(
+                Arguments.of("text", "hello, plain text\n".getBytes(StandardCharsets.UTF_8), "text/plain"),
+                Arguments.of("html", "<!DOCTYPE html><html><body>x</body></html>".getBytes(StandardCharsets.UTF_8), null),
+                Arguments.of("xml", "<?xml version=\"1.0\"?><a/>".getBytes(StandardCharsets.UTF_8), null),
+                Arguments.of("json", "{\"a\": [1, 2, 3]}".getBytes(StandardCharsets.UTF_8), "application/json"),
+                Arguments.of("pdf", "%PDF-1.7\n%âã\n1 0 obj\n<<>>\nendobj\n".getBytes(StandardCharsets.ISO_8859_1), null),
+                Arguments.of("gif", "GIF89a\u0001\u0000\u0001\u0000".getBytes(StandardCharsets.ISO_8859_1), null),
+                Arguments.of("png", Base64.getDecoder().decode(PNG_1PX), "image/png"),
+                Arguments.of("small zip", zip(1024), "application/zip"),
+                Arguments.of("large zip", zip(512 * 1024), "application/zip"),
+                Arguments.of("random binary", random(256 * 1024), "application/x-custom"),
+                Arguments.of("empty", new byte[0], null),
+                Arguments.of("large text", "line of text\n".repeat(20_000).getBytes(StandardCharsets.UTF_8), null)
+        );
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("samples")
+    void headDetection_matchesStoredFileDetection(String name, byte[] content, String clientType) throws IOException {
+        // CAS files are named by hash, without extension
+        Path stored = dir.resolve("9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08");
+        Files.write(stored, content);
+
+        byte[] head;
+        long size;
+        try (InputStream raw = Files.newInputStream(stored);
+             HeadCapturingInputStream hcs = FileProcessingUtility.headStream(raw);
+             HashingInputStream his = FileProcessingUtility.hashingStream(hcs)) {
+            his.transferTo(OutputStream.nullOutputStream());
+            head = hcs.head();
+            size = his.getBytesRead();
+        }
+
+        String expected = FileProcessingUtility.detectContentType(stored, clientType);
+        String actual = FileProcessingUtility.detectContentType(head, size, () -> stored, clientType);
+
+        assertEquals(expected, actual, name);
+    }
+
+    private static byte[] zip(int payloadSize) throws IOException {
+        byte[] payload = random(payloadSize);
+        var bytes = new ByteArrayOutputStream();
+        try (var zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("readme.txt"));
+            zip.write("zip content".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+
+            var stored = new ZipEntry("payload.bin");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(payload.length);
+            var crc = new CRC32();
+            crc.update(payload);
+            stored.setCrc(crc.getValue());
+            zip.putNextEntry(stored);
+            zip.write(payload);
+            zip.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] random(int size) {
+        byte[] b = new byte[size];
+        new Random(7).nextBytes(b);
+        return b;
+    }
+}
@@ -0,0 +1,71 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.mock.web.MockMultipartFile;
+import org.teletronics.vsyrov.filestorage.common.exception.BadRequestException;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+import org.teletronics.vsyrov.filestorage.service.MetadataService.FileSlice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author vsyrov
+ */
+public class CursorPaginationIT extends MongoTestBase {
+
+    @Autowired
+    FileService fileService;
+
+    @Test
+    void cursorWalk_visitsEveryFileOnceInOrder() {
+        // equal sizes force the _id tie-breaker
+        for (int i = 0; i < 23; i++) {
+            fileService.upload("userK", new MockMultipartFile("f", "k" + i + ".txt", "text/plain",
+                    String.format("%04d", i).getBytes()), VisibilityType.USER_PRIVATE, null, List.of("keyset"));
+        }
+
+        for (Sort.Order order : List.of(Sort.Order.asc("fileName"), Sort.Order.desc("size"), Sort.Order.desc("createdTs"))) {
+            List<FileMetadata> seen = new ArrayList<>();
+            String cursor = "";
+            int pages = 0;
+            do {
+                FileSlice slice = fileService.listOwnedAfter("userK", "keyset", order, 5, cursor);
+                seen.addAll(slice.items());
+                cursor = slice.nextCursor();
+                pages++;
+            } while (cursor != null);
+
+            assertEquals(5, pages);
+            assertEquals(23, seen.size());
+            assertEquals(23, seen.stream().map(FileMetadata::getId).distinct().count());
+        }
+
+        FileSlice firstByName = fileService.listOwnedAfter("userK", null, Sort.Order.asc("filename"), 30, "");
+        assertEquals("k0.txt", firstByName.items().getFirst().getFileName());
+        assertNull(firstByName.nextCursor());
+    }
+
+    @Test
+    void cursorOfAnotherSort_rejected() {
+        for (int i = 0; i < 3; i++) {
+            fileService.upload("userK2", new MockMultipartFile("f", "c" + i + ".txt", "text/plain",
+                    ("c" + i).getBytes()), VisibilityType.USER_PRIVATE, null, null);
+        }
+        String cursor = fileService.listOwnedAfter("userK2", null, Sort.Order.asc("fileName"), 1, "").nextCursor();
+
+        assertThrows(BadRequestException.class,
+                () -> fileService.listOwnedAfter("userK2", null, Sort.Order.desc("createdTs"), 1, cursor));
+        assertThrows(BadRequestException.class,
+                () -> fileService.listOwnedAfter("userK2", null, Sort.Order.asc("fileName"), 1, "garbage!"));
+    }
+}
@@ -0,0 +1,87 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+
+import com.sun.management.OperatingSystemMXBean;
+import com.sun.management.ThreadMXBean;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.teletronics.vsyrov.filestorage.api.controller.DownloadResponder;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.it.config.RandomBlockInputStream;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the sendfile download path with the heap-copy path on a large file.
+ * Results are logged; the test only asserts that both paths serve the full length.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+public class DownloadBenchmarkIT extends MongoTestBase {
+    private static final long FILE_SIZE = 512L * 1024 * 1024;
+    private static final int ROUNDS = 5;
+
+    @LocalServerPort
+    int port;
+    @Autowired
+    FileService fileService;
+    @Autowired
+    DownloadResponder downloadResponder;
+
+    @Test
+    void sendfile_vs_heapCopy() throws Exception {
+        var meta = fileService.uploadStream("bench", new RandomBlockInputStream(FILE_SIZE, 42), FILE_SIZE,
+                "application/octet-stream", "bench.bin", VisibilityType.PUBLIC, List.of());
+        var client = HttpClient.newHttpClient();
+        var request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/file/v1/" + meta.getId()))
+                .header("X-User-Id", "bench")
+                .build();
+
+        try {
+            ReflectionTestUtils.setField(downloadResponder, "sendfileEnabled", false);
+            measure("heap-copy", client, request);
+            ReflectionTestUtils.setField(downloadResponder, "sendfileEnabled", true);
+            measure("sendfile", client, request);
+        } finally {
+            ReflectionTestUtils.setField(downloadResponder, "sendfileEnabled", true);
+        }
+    }
+
+    private void measure(String mode, HttpClient client, HttpRequest request) throws Exception {
+        // warm-up round
+        client.send(request, HttpResponse.BodyHandlers.discarding());
+
+        var threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getTotalThreadAllocatedBytes();
+        long cpuBefore = ManagementFactory.getPlatformMXBean(OperatingSystemMXBean.class)
+                .getProcessCpuTime();
+        long started = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            var response = client.send(request, HttpResponse.BodyHandlers.discarding());
+            assertEquals(200, response.statusCode());
+            assertEquals(FILE_SIZE, response.headers().firstValueAsLong("Content-Length").orElse(-1));
+        }
+        long elapsedNanos = System.nanoTime() - started;
+        long cpuNanos = ManagementFactory.getPlatformMXBean(OperatingSystemMXBean.class)
+                .getProcessCpuTime() - cpuBefore;
+        long allocated = threads.getTotalThreadAllocatedBytes() - allocatedBefore;
+
+        double mb = (double) FILE_SIZE * ROUNDS / (1024 * 1024);
+        log.info("[{}] {} MiB in {} ms: {} MiB/s, process cpu {} ms, heap allocated {} MiB",
+                mode, (long) mb, elapsedNanos / 1_000_000,
+                String.format("%.1f", mb / (elapsedNanos / 1e9)),
+                cpuNanos / 1_000_000, allocated / (1024 * 1024));
+    }
+}
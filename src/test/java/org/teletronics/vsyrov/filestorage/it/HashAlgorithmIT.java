@@ -0,0 +1,120 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.teletronics.vsyrov.filestorage.common.io.HashingInputStream;
+import org.teletronics.vsyrov.filestorage.common.io.TreeHasher;
+import org.teletronics.vsyrov.filestorage.common.model.HashAlgorithm;
+import org.teletronics.vsyrov.filestorage.it.config.RandomBlockInputStream;
+import org.teletronics.vsyrov.filestorage.service.utility.FileProcessingUtility;
+import org.teletronics.vsyrov.filestorage.storage.FileSystemCasStorage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.teletronics.vsyrov.filestorage.it.config.TestFiles.casStorage;
+
+/**
+ * Streaming and whole-file tree hashes must agree, and keys of every algorithm must map to their own CAS directory
+ * while bare SHA-256 keys keep the original layout.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+public class HashAlgorithmIT {
+    private static final int CHUNK = TreeHasher.CHUNK_SIZE;
+
+    @TempDir
+    Path dir;
+
+    static Stream<Arguments> sizes() {
+        return Stream.of(
+                Arguments.of(0L),
+                Arguments.of(1L),
+                Arguments.of((long) CHUNK - 1),
+                Arguments.of((long) CHUNK),
+                Arguments.of((long) CHUNK + 1),
+                Arguments.of(3L * CHUNK + 17)
+        );
+    }
+
+    @ParameterizedTest(name = "{0} bytes")
+    @MethodSource("sizes")
+    void treeHash_streamingMatchesFile(long size) throws IOException {
+        Path file = dir.resolve("content");
+        try (InputStream in = new RandomBlockInputStream(size, 5)) {
+            Files.copy(in, file);
+        }
+
+        String streamed;
+        try (HashingInputStream his = FileProcessingUtility.hashingStream(Files.newInputStream(file),
+                HashAlgorithm.TREE_SHA256)) {
+            his.transferTo(OutputStream.nullOutputStream());
+            streamed = his.digestHex();
+        }
+        String whole = HexFormat.of().formatHex(TreeHasher.hashFile(file, "SHA-256"));
+
+        assertEquals(whole, streamed);
+        assertNotEquals(sha256(file), streamed);
+    }
+
+    @Test
+    void keys_roundTripAndResolveToAlgorithmDirectories() throws IOException {
+        String hex = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+        FileSystemCasStorage storage = casStorage(dir);
+
+        for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+            String key = algorithm.key(hex);
+            assertEquals(algorithm, HashAlgorithm.ofKey(key));
+            assertEquals(hex, HashAlgorithm.hexOf(key));
+            assertEquals(dir.resolve("cas").resolve(algorithm.getId()).resolve("9f").resolve("86").resolve(hex),
+                    storage.resolvePath(key));
+        }
+        assertEquals(hex, HashAlgorithm.SHA256.key(hex));
+    }
+
+    @Test
+    void largeFile_treeHashUsesAllCores() throws IOException {
+        Path file = dir.resolve("large");
+        try (InputStream in = new RandomBlockInputStream(512L * 1024 * 1024, 9)) {
+            Files.copy(in, file);
+        }
+        // warm-up: page cache and JIT
+        sha256(file);
+        TreeHasher.hashFile(file, "SHA-256");
+
+        long t0 = System.nanoTime();
+        sha256(file);
+        long sequential = System.nanoTime() - t0;
+        t0 = System.nanoTime();
+        TreeHasher.hashFile(file, "SHA-256");
+        long tree = System.nanoTime() - t0;
+
+        log.info("512 MiB: sha256 {} ms, tree-sha256 {} ms on {} cores",
+                TimeUnit.NANOSECONDS.toMillis(sequential), TimeUnit.NANOSECONDS.toMillis(tree),
+                Runtime.getRuntime().availableProcessors());
+        if (Runtime.getRuntime().availableProcessors() >= 4) {
+            assertTrue(tree < sequential, "tree hash should beat the sequential hash on a multi-core machine");
+        }
+    }
+
+    private static String sha256(Path file) throws IOException {
+        try (HashingInputStream his = HashingInputStream.of(Files.newInputStream(file))) {
+            his.transferTo(OutputStream.nullOutputStream());
+            return his.digestHex();
+        }
+    }
+}
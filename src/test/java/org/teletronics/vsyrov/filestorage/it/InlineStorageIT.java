@@ -0,0 +1,88 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.teletronics.vsyrov.filestorage.common.model.Blob;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+import org.teletronics.vsyrov.filestorage.storage.ContentStorageService;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.teletronics.vsyrov.filestorage.it.config.TestFiles.bytes;
+import static org.teletronics.vsyrov.filestorage.it.config.TestFiles.upload;
+
+/**
+ * @author vsyrov
+ */
+@AutoConfigureMockMvc
+@TestPropertySource(properties = "filestorage.inline.max-size=4KB")
+public class InlineStorageIT extends MongoTestBase {
+
+    @Autowired
+    MockMvc mvc;
+    @Autowired
+    FileService fileService;
+    @Autowired
+    ContentStorageService storage;
+    @Autowired
+    MongoTemplate mongo;
+
+    @Test
+    void tinyFile_keptInBlob_neverInCas() throws Exception {
+        byte[] body = bytes(1, 300);
+        FileMetadata meta = upload(fileService, "userI1", "tiny.bin", body);
+
+        assertTrue(meta.isInline());
+        assertFalse(storage.exists(meta.getHash()));
+        assertArrayEquals(body, mongo.findById(meta.getHash(), Blob.class).getData());
+
+        mvc.perform(get("/file/v1/{id}", meta.getId()).header("X-User-Id", "userI1"))
+                .andExpect(status().isOk())
+                .andExpect(header().longValue("Content-Length", body.length))
+                .andExpect(header().string("ETag", "\"" + meta.getHash() + "\""))
+                .andExpect(content().bytes(body));
+        mvc.perform(get("/file/v1/{id}", meta.getId()).header("X-User-Id", "userI1").header("Range", "bytes=10-19"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Range", "bytes 10-19/" + body.length))
+                .andExpect(content().bytes(Arrays.copyOfRange(body, 10, 20)));
+    }
+
+    @Test
+    void sameContent_sharedAcrossOwners_removedWithLastReference() {
+        byte[] body = bytes(2, 1000);
+        FileMetadata first = upload(fileService, "userI2", "a.bin", body);
+        FileMetadata second = upload(fileService, "userI3", "b.bin", body);
+
+        assertEquals(first.getHash(), second.getHash());
+        assertEquals(2, mongo.findById(first.getHash(), Blob.class).getRefCount());
+
+        fileService.delete("userI2", first.getId());
+        assertEquals(1, mongo.findById(first.getHash(), Blob.class).getRefCount());
+        fileService.delete("userI3", second.getId());
+        assertNull(mongo.findById(first.getHash(), Blob.class));
+    }
+
+    @Test
+    void largerFile_goesToCas() throws Exception {
+        FileMetadata meta = upload(fileService, "userI4", "large.bin", bytes(3, 5000));
+
+        assertFalse(meta.isInline());
+        assertTrue(storage.exists(meta.getHash()));
+        assertNull(mongo.findById(meta.getHash(), Blob.class).getData());
+    }
+}
@@ -0,0 +1,111 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.teletronics.vsyrov.filestorage.common.exception.BadRequestException;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.dao.FileMetadataRepositoryCustom;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Listing query shapes must be answered from an index, without a collection scan or an in-memory sort.
+ *
+ * @author vsyrov
+ */
+public class ListingIndexIT extends MongoTestBase {
+    private static final Pattern BLOCKING_STAGE = Pattern.compile("\"stage\":\\s*\"(SORT|COLLSCAN)\"");
+
+    @Autowired
+    MongoTemplate mongo;
+    @Autowired
+    FileService fileService;
+
+    @BeforeEach
+    void seed() {
+        if (mongo.exists(Query.query(Criteria.where("ownerId").is("userIx0")), FileMetadata.class)) {
+            return;
+        }
+        List<FileMetadata> docs = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            docs.add(FileMetadata.builder()
+                    .id(UUID.randomUUID().toString())
+                    .ownerId("userIx" + (i % 4))
+                    .fileName("ix-" + i + ".txt")
+                    .contentType("text/plain")
+                    .visibility(i % 2 == 0 ? VisibilityType.PUBLIC : VisibilityType.USER_PRIVATE)
+                    .tags(List.of(i % 3 == 0 ? "ix-a" : "ix-b"))
+                    .hash(UUID.randomUUID().toString())
+                    .size(i)
+                    .createdTs(Instant.now().minusSeconds(i))
+                    .build());
+        }
+        mongo.insertAll(docs);
+    }
+
+    @Test
+    void listingShapes_useIndexes() {
+        List<Document> filters = List.of(
+                new Document("visibility", "PUBLIC"),
+                new Document("visibility", "PUBLIC").append("tags", "ix-a"),
+                new Document("ownerId", "userIx1"),
+                new Document("ownerId", "userIx1").append("tags", "ix-b")
+        );
+        for (Document filter : filters) {
+            for (String field : List.of("fileName", "createdTs", "size")) {
+                for (int direction : new int[]{1, -1}) {
+                    Document sort = new Document(field, direction).append("_id", direction);
+                    Document explain = mongo.getCollection("metadata")
+                            .find(filter)
+                            .sort(sort)
+                            .projection(Document.parse(FileMetadataRepositoryCustom.LISTING_FIELDS))
+                            .limit(20)
+                            .explain();
+                    String plan = explain.get("queryPlanner", Document.class).get("winningPlan", Document.class).toJson();
+                    assertFalse(BLOCKING_STAGE.matcher(plan).find(),
+                            "filter " + filter.toJson() + " sort " + sort.toJson() + " -> " + plan);
+                    assertTrue(plan.contains("IXSCAN"), plan);
+                }
+            }
+        }
+    }
+
+    @Test
+    void listing_projectsDtoFieldsOnly() {
+        var page = fileService.listOwned("userIx2", "ix-a", PageRequest.of(0, 5, Sort.by(Sort.Direction.DESC, "size")));
+
+        assertEquals(5, page.getContent().size());
+        FileMetadata first = page.getContent().getFirst();
+        assertNull(first.getHash());
+        assertEquals("userIx2", first.getOwnerId());
+        assertTrue(first.getSize() > page.getContent().get(1).getSize());
+    }
+
+    @Test
+    void unindexedSort_rejected() {
+        assertThrows(BadRequestException.class,
+                () -> fileService.listPublic(null, PageRequest.of(0, 10, Sort.by("hash"))));
+        assertThrows(BadRequestException.class,
+                () -> fileService.listPublic(null, PageRequest.of(0, 10, Sort.by("fileName", "size"))));
+    }
+}
@@ -0,0 +1,99 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.List;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.mock.web.MockMultipartFile;
+import org.teletronics.vsyrov.filestorage.common.exception.NotFoundException;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+import org.teletronics.vsyrov.filestorage.service.MetadataCache;
+import org.teletronics.vsyrov.filestorage.service.MetadataService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Cache invalidation on rename/delete, plus hit rate and download latency with the cache on and off (logged).
+ *
+ * @author vsyrov
+ */
+@Slf4j
+public class MetadataCacheIT extends MongoTestBase {
+    private static final int REQUESTS = 2_000;
+
+    @LocalServerPort
+    int port;
+    @Autowired
+    FileService fileService;
+    @Autowired
+    MetadataService metadataService;
+    @Autowired
+    MetadataCache cache;
+
+    @Test
+    void renameAndDelete_invalidate() {
+        var meta = fileService.upload("userC",
+                new MockMultipartFile("f", "before.txt", "text/plain", "cached".getBytes()),
+                VisibilityType.PUBLIC, null, null);
+        assertEquals("before.txt", metadataService.getById(meta.getId()).getFileName());
+
+        fileService.rename("userC", meta.getId(), "after.txt");
+        assertEquals("after.txt", metadataService.getById(meta.getId()).getFileName());
+
+        fileService.delete("userC", meta.getId());
+        assertThrows(NotFoundException.class, () -> metadataService.getById(meta.getId()));
+    }
+
+    @Test
+    void downloadLatency_cacheOnVsOff() throws Exception {
+        var meta = fileService.upload("userCB",
+                new MockMultipartFile("f", "hot.txt", "text/plain", "popular public file".getBytes()),
+                VisibilityType.PUBLIC, null, List.of());
+        var client = HttpClient.newHttpClient();
+        var request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/file/v1/" + meta.getId()))
+                .header("X-User-Id", "anyone")
+                .build();
+
+        try {
+            cache.setEnabled(false);
+            measure("cache off", client, request);
+            cache.setEnabled(true);
+            long hitsBefore = cache.stats().hitCount();
+            long requestsBefore = cache.stats().requestCount();
+            measure("cache on", client, request);
+            double hitRate = (double) (cache.stats().hitCount() - hitsBefore)
+                    / (cache.stats().requestCount() - requestsBefore);
+            log.info("[cache on] metadata hit rate {}", String.format("%.3f", hitRate));
+            assertTrue(hitRate > 0.9);
+        } finally {
+            cache.setEnabled(true);
+        }
+    }
+
+    private void measure(String mode, HttpClient client, HttpRequest request) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            client.send(request, HttpResponse.BodyHandlers.discarding());
+        }
+        long[] nanos = new long[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            long t0 = System.nanoTime();
+            var response = client.send(request, HttpResponse.BodyHandlers.discarding());
+            nanos[i] = System.nanoTime() - t0;
+            assertEquals(200, response.statusCode());
+        }
+        Arrays.sort(nanos);
+        log.info("[{}] {} downloads: p50 {} us, p99 {} us", mode, REQUESTS,
+                nanos[REQUESTS / 2] / 1_000, nanos[(int) (REQUESTS * 0.99)] / 1_000);
+    }
+}
@@ -0,0 +1,109 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.util.unit.DataSize;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.HashAlgorithm;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+import org.teletronics.vsyrov.filestorage.service.upload.ContentReceiver;
+import org.teletronics.vsyrov.filestorage.storage.CasVolumes.Volume;
+import org.teletronics.vsyrov.filestorage.storage.FileSystemCasStorage;
+import org.teletronics.vsyrov.filestorage.storage.VolumeRebalancer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.teletronics.vsyrov.filestorage.it.config.TestFiles.casStorage;
+
+/**
+ * @author vsyrov
+ */
+@AutoConfigureMockMvc
+@TestPropertySource(properties =
+        "filestorage.volumes=${java.io.tmpdir}/filestorage-test/vol2,${java.io.tmpdir}/filestorage-test/vol3")
+public class MultiVolumeIT extends MongoTestBase {
+
+    @Autowired
+    MockMvc mvc;
+    @Autowired
+    FileService fileService;
+    @Autowired
+    FileSystemCasStorage storage;
+
+    @Test
+    void objects_placedOnOwningVolume_andServed() throws Exception {
+        assertEquals(3, storage.volumes().all().size());
+        Set<Volume> used = new HashSet<>();
+        for (int i = 0; i < 30; i++) {
+            byte[] body = ("volume content " + i).repeat(100).getBytes(StandardCharsets.UTF_8);
+            FileMetadata meta = fileService.upload("userV1",
+                    new MockMultipartFile("file", "v" + i + ".txt", "text/plain", body),
+                    VisibilityType.USER_PRIVATE, null, null);
+
+            Volume owner = storage.volumes().owner(meta.getHash());
+            assertTrue(storage.locate(meta.getHash()).path().startsWith(owner.cas()));
+            used.add(owner);
+            mvc.perform(get("/file/v1/{id}", meta.getId()).header("X-User-Id", "userV1"))
+                    .andExpect(status().isOk())
+                    .andExpect(content().bytes(body));
+        }
+        assertEquals(3, used.size(), "30 objects should land on every volume");
+    }
+
+    @Test
+    void addedVolume_rebalancedOnline() throws Exception {
+        Path base = Files.createTempDirectory("volumes");
+        FileSystemCasStorage single = casStorage(base.resolve("v1"));
+        List<String> hashes = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            byte[] body = ("object " + i).getBytes(StandardCharsets.UTF_8);
+            String hash = ContentReceiver.hashBytes(body, HashAlgorithm.SHA256);
+            single.moveToCas(single.writeTemp(new ByteArrayInputStream(body)), hash);
+            hashes.add(hash);
+        }
+        assertFalse(single.volumesChanged());
+
+        var registry = new SimpleMeterRegistry();
+        FileSystemCasStorage grown = new FileSystemCasStorage(base.resolve("v1").toString(),
+                Deflater.DEFAULT_COMPRESSION, null, List.of(base.resolve("v2").toString()), registry);
+        assertTrue(grown.volumesChanged());
+        // still readable before anything moved
+        for (String hash : hashes) {
+            assertTrue(grown.exists(hash));
+        }
+
+        long moved = new VolumeRebalancer(grown, registry, true, DataSize.ofBytes(0)).run();
+        assertTrue(moved > 0 && moved < hashes.size(), "only the objects now owned by the new volume move");
+        assertFalse(grown.volumesChanged());
+        for (int i = 0; i < hashes.size(); i++) {
+            String hash = hashes.get(i);
+            assertTrue(grown.locate(hash).path().startsWith(grown.volumes().owner(hash).cas()));
+            try (var in = grown.open(hash)) {
+                assertArrayEquals(("object " + i).getBytes(StandardCharsets.UTF_8), in.readAllBytes());
+            }
+        }
+        assertEquals(moved, (long) registry.get("filestorage.volume.rebalanced.files").counter().count());
+    }
+}
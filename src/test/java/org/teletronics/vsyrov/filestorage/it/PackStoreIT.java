@@ -0,0 +1,125 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+import org.teletronics.vsyrov.filestorage.storage.ContentStorageService;
+import org.teletronics.vsyrov.filestorage.storage.PackStore;
+import org.teletronics.vsyrov.filestorage.storage.StoredContent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.teletronics.vsyrov.filestorage.it.config.TestFiles.bytes;
+import static org.teletronics.vsyrov.filestorage.it.config.TestFiles.upload;
+
+/**
+ * @author vsyrov
+ */
+@AutoConfigureMockMvc
+@TestPropertySource(properties = {
+        "filestorage.pack.enabled=true",
+        "filestorage.pack.compaction.min-age=PT0S"
+})
+public class PackStoreIT extends MongoTestBase {
+
+    @Autowired
+    MockMvc mvc;
+    @Autowired
+    FileService fileService;
+    @Autowired
+    ContentStorageService storage;
+    @Autowired
+    PackStore packStore;
+
+    @BeforeEach
+    void freshSegment() {
+        // the base directory was just wiped under the open segment
+        packStore.roll();
+    }
+
+    @Test
+    void smallObject_packed_servedAsSlice() throws Exception {
+        byte[] body = bytes(1, 5000);
+        FileMetadata meta = upload(fileService, "userP1", "small.bin", body);
+
+        assertFalse(Files.exists(storage.resolvePath(meta.getHash())), "no loose file for a packed object");
+        StoredContent stored = storage.locate(meta.getHash());
+        assertTrue(stored.offset() > 0);
+        assertEquals(body.length, stored.length());
+        try (var in = storage.open(meta.getHash())) {
+            assertArrayEquals(body, in.readAllBytes());
+        }
+
+        mvc.perform(get("/file/v1/{id}", meta.getId()).header("X-User-Id", "userP1"))
+                .andExpect(status().isOk())
+                .andExpect(header().longValue("Content-Length", body.length))
+                .andExpect(content().bytes(body));
+        mvc.perform(get("/file/v1/{id}", meta.getId()).header("X-User-Id", "userP1").header("Range", "bytes=100-109"))
+                .andExpect(status().isPartialContent())
+                .andExpect(content().bytes(Arrays.copyOfRange(body, 100, 110)));
+    }
+
+    @Test
+    void largeObject_staysLoose() throws Exception {
+        FileMetadata meta = upload(fileService, "userP2", "large.bin", bytes(2, 256 * 1024));
+
+        assertTrue(Files.exists(storage.resolvePath(meta.getHash())));
+        assertEquals(0, storage.locate(meta.getHash()).offset());
+    }
+
+    @Test
+    void delete_dropsIndexEntry() throws Exception {
+        FileMetadata meta = upload(fileService, "userP3", "gone.bin", bytes(3, 2000));
+        assertTrue(storage.exists(meta.getHash()));
+
+        fileService.delete("userP3", meta.getId());
+        assertFalse(storage.exists(meta.getHash()));
+    }
+
+    @Test
+    void compaction_movesLiveObjects_thenRemovesEmptySegment() throws Exception {
+        List<FileMetadata> files = new ArrayList<>();
+        List<byte[]> bodies = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            byte[] body = bytes(100 + i, 4000);
+            bodies.add(body);
+            files.add(upload(fileService, "userP4", "f" + i + ".bin", body));
+        }
+        String segment = storage.locate(files.getFirst().getHash()).path().getFileName().toString();
+        packStore.roll();
+        for (int i = 2; i < 10; i++) {
+            fileService.delete("userP4", files.get(i).getId());
+        }
+        Thread.sleep(20);
+
+        assertTrue(packStore.compact() > 0);
+        for (int i = 0; i < 2; i++) {
+            StoredContent moved = storage.locate(files.get(i).getHash());
+            assertNotEquals(segment, moved.path().getFileName().toString());
+            try (var in = storage.open(files.get(i).getHash())) {
+                assertArrayEquals(bodies.get(i), in.readAllBytes());
+            }
+        }
+
+        packStore.compact();
+        assertFalse(packStore.segments().contains(segment), "emptied segment should be removed on the next run");
+    }
+}
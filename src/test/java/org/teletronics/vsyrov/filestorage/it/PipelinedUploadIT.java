@@ -0,0 +1,69 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.List;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import org.teletronics.vsyrov.filestorage.common.io.HashingInputStream;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.it.config.RandomBlockInputStream;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author vsyrov
+ */
+@TestPropertySource(properties = {
+        "filestorage.upload.pipeline.enabled=true",
+        "filestorage.upload.pipeline.buffer-size=256KB",
+        "filestorage.upload.pipeline.buffers-per-upload=4",
+        "filestorage.upload.pipeline.pool-buffers=8"
+})
+public class PipelinedUploadIT extends MongoTestBase {
+    private static final long SIZE = 64L * 1024 * 1024 + 123;
+
+    @Autowired
+    FileService fileService;
+    @Autowired
+    MeterRegistry registry;
+
+    @Test
+    void pipelinedUpload_sameHashAndBytes_asSerial() throws Exception {
+        String expectedHash;
+        try (HashingInputStream his = HashingInputStream.of(new RandomBlockInputStream(SIZE, 11))) {
+            his.transferTo(OutputStream.nullOutputStream());
+            expectedHash = his.digestHex();
+        }
+
+        var meta = fileService.uploadStream("userP", new RandomBlockInputStream(SIZE, 11), -1,
+                null, "pipe.bin", VisibilityType.USER_PRIVATE, List.of());
+
+        assertEquals(expectedHash, meta.getHash());
+        assertEquals(SIZE, meta.getSize());
+        try (InputStream stored = Files.newInputStream(fileService.download(meta.getId(), "userP").path());
+             HashingInputStream his = HashingInputStream.of(stored)) {
+            his.transferTo(OutputStream.nullOutputStream());
+            assertEquals(expectedHash, his.digestHex());
+        }
+        for (String stage : List.of("read", "hash", "write")) {
+            assertTrue(registry.get("filestorage.upload.pipeline.bytes").tag("stage", stage).counter().count() >= SIZE);
+        }
+    }
+
+    @Test
+    void emptyUpload_ok() {
+        var meta = fileService.uploadStream("userP", InputStream.nullInputStream(), -1,
+                null, "empty.bin", VisibilityType.USER_PRIVATE, List.of());
+
+        assertEquals(0, meta.getSize());
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", meta.getHash());
+    }
+}
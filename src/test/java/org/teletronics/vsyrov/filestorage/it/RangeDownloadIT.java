@@ -0,0 +1,90 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.util.List;
+
+import org.hamcrest.Matchers;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.web.servlet.MockMvc;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * @author vsyrov
+ */
+@AutoConfigureMockMvc
+public class RangeDownloadIT extends MongoTestBase {
+    private static final String DATA = "0123456789abcdefghij";
+
+    @Autowired
+    MockMvc mvc;
+    @Autowired
+    FileService fileService;
+
+    @Test
+    void singleRange_partialContent() throws Exception {
+        var meta = upload();
+
+        mvc.perform(get("/file/v1/{id}", meta.getId()).header("X-User-Id", "userR").header("Range", "bytes=5-9"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Range", "bytes 5-9/20"))
+                .andExpect(header().longValue("Content-Length", 5))
+                .andExpect(content().string("56789"));
+
+        mvc.perform(get("/file/v1/{id}", meta.getId()).header("X-User-Id", "userR").header("Range", "bytes=-3"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Range", "bytes 17-19/20"))
+                .andExpect(content().string("hij"));
+    }
+
+    @Test
+    void multipleRanges_byteranges() throws Exception {
+        var meta = upload();
+
+        mvc.perform(get("/file/v1/{id}", meta.getId()).header("X-User-Id", "userR").header("Range", "bytes=0-1,10-11"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Type", Matchers.startsWith("multipart/byteranges; boundary=")))
+                .andExpect(content().string(Matchers.allOf(
+                        Matchers.containsString("Content-Range: bytes 0-1/20\r\n\r\n01"),
+                        Matchers.containsString("Content-Range: bytes 10-11/20\r\n\r\nab"))));
+    }
+
+    @Test
+    void ifRange_staleEtag_fullContent() throws Exception {
+        var meta = upload();
+
+        mvc.perform(get("/file/v1/{id}", meta.getId()).header("X-User-Id", "userR")
+                        .header("Range", "bytes=0-1").header("If-Range", "\"other\""))
+                .andExpect(status().isOk())
+                .andExpect(content().string(DATA));
+
+        mvc.perform(get("/file/v1/{id}", meta.getId()).header("X-User-Id", "userR")
+                        .header("Range", "bytes=0-1").header("If-Range", "\"" + meta.getHash() + "\""))
+                .andExpect(status().isPartialContent())
+                .andExpect(content().string("01"));
+    }
+
+    @Test
+    void unsatisfiableRange_416() throws Exception {
+        var meta = upload();
+
+        mvc.perform(get("/file/v1/{id}", meta.getId()).header("X-User-Id", "userR").header("Range", "bytes=50-60"))
+                .andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string("Content-Range", "bytes */20"));
+    }
+
+    private FileMetadata upload() {
+        return fileService.upload("userR",
+                new MockMultipartFile("file", "r.txt", "text/plain", DATA.getBytes()),
+                VisibilityType.PUBLIC, "r.txt", List.of());
+    }
+}
@@ -0,0 +1,133 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.teletronics.vsyrov.filestorage.api.controller.FileDto;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.dao.FileMetadataRepository;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author vsyrov
+ */
+@ActiveProfiles("reactive")
+public class ReactiveApiIT extends MongoTestBase {
+
+    @LocalServerPort
+    int port;
+    @Autowired
+    FileMetadataRepository repo;
+
+    WebTestClient client;
+
+    @BeforeEach
+    void client() {
+        client = WebTestClient.bindToServer()
+                .baseUrl("http://localhost:" + port + "/api")
+                .responseTimeout(Duration.ofSeconds(30))
+                .build();
+    }
+
+    @Test
+    void streamUpload_download_list_export() throws Exception {
+        byte[] body = new byte[3 * 1024 * 1024 + 17];
+        new Random(17).nextBytes(body);
+
+        FileDto dto = client.post()
+                .uri(b -> b.path("/file/v1/stream")
+                        .queryParam("filename", "rx.bin")
+                        .queryParam("visibility", "USER_PRIVATE")
+                        .queryParam("tags", "rx")
+                        .build())
+                .header("X-User-Id", "userRx")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .bodyValue(body)
+                .exchange()
+                .expectStatus().isCreated()
+                .expectBody(FileDto.class)
+                .returnResult().getResponseBody();
+        assertNotNull(dto);
+        assertEquals(body.length, dto.getSize());
+
+        FileMetadata meta = repo.findById(dto.getId()).orElseThrow();
+        assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(body)), meta.getHash());
+
+        byte[] downloaded = client.get().uri("/file/v1/{id}", dto.getId())
+                .header("X-User-Id", "userRx")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(HttpHeaders.ETAG, "\"" + meta.getHash() + "\"")
+                .expectBody(byte[].class)
+                .returnResult().getResponseBody();
+        assertArrayEquals(body, downloaded);
+
+        byte[] range = client.get().uri("/file/v1/{id}", dto.getId())
+                .header("X-User-Id", "userRx")
+                .header(HttpHeaders.RANGE, "bytes=10-19")
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+                .expectBody(byte[].class)
+                .returnResult().getResponseBody();
+        assertArrayEquals(Arrays.copyOfRange(body, 10, 20), range);
+
+        client.get().uri("/file/v1/{id}", dto.getId())
+                .header("X-User-Id", "someoneElse")
+                .exchange()
+                .expectStatus().isForbidden();
+
+        List<FileDto> listed = client.get().uri("/files/v1?tag=rx")
+                .header("X-User-Id", "userRx")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBodyList(FileDto.class)
+                .returnResult().getResponseBody();
+        assertEquals(List.of("rx.bin"), listed.stream().map(FileDto::getFileName).toList());
+
+        String exported = client.get().uri("/files/v1/export")
+                .header("X-User-Id", "userRx")
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class)
+                .returnResult().getResponseBody();
+        assertTrue(exported.contains("\"fileName\":\"rx.bin\""));
+
+        client.delete().uri("/file/v1/{id}", dto.getId())
+                .header("X-User-Id", "userRx")
+                .exchange()
+                .expectStatus().isNoContent();
+        assertTrue(repo.findById(dto.getId()).isEmpty());
+    }
+
+    @Test
+    void duplicateName_conflict() {
+        for (int status : new int[]{201, 409}) {
+            client.post()
+                    .uri("/file/v1/stream?filename=dup.txt&visibility=PUBLIC")
+                    .header("X-User-Id", "userRx2")
+                    .contentType(MediaType.TEXT_PLAIN)
+                    .bodyValue("same name " + status)
+                    .exchange()
+                    .expectStatus().isEqualTo(status);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.TestPropertySource;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.it.config.RandomBlockInputStream;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Load comparison of platform and virtual request threads: {@value #CLIENTS} concurrent clients download the
+ * same file, each reading {@value #READ_CHUNK} bytes every {@value #READ_PAUSE_MILLIS} ms through a small
+ * receive buffer, so every download holds its request thread until it is done. Sendfile is off, otherwise
+ * Tomcat's poller would serve the bytes and no request thread would wait at all.
+ * <p>
+ * Logged per mode: wall time, peak JVM threads and the latency of a single fast request issued while the
+ * slow clients are connected. Needs {@code -Dbenchmark=true} and a file descriptor limit above 25000.
+ *
+ * @author vsyrov
+ */
+@Slf4j
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+@TestPropertySource(properties = {
+        "filestorage.download.sendfile=false",
+        "server.tomcat.max-connections=20000",
+        "server.tomcat.accept-count=10000"
+})
+public class SlowDownloadsBenchmarkIT extends MongoTestBase {
+    private static final int CLIENTS = 10_000;
+    private static final long FILE_SIZE = 256 * 1024;
+    private static final int READ_CHUNK = 16 * 1024;
+    private static final long READ_PAUSE_MILLIS = 100;
+
+    @Nested
+    @TestPropertySource(properties = "spring.threads.virtual.enabled=false")
+    class PlatformThreads {
+        @LocalServerPort
+        int port;
+        @Autowired
+        FileService fileService;
+
+        @Test
+        void slowDownloads() throws Exception {
+            run("platform", port, fileService);
+        }
+    }
+
+    @Nested
+    @TestPropertySource(properties = "spring.threads.virtual.enabled=true")
+    class VirtualThreads {
+        @LocalServerPort
+        int port;
+        @Autowired
+        FileService fileService;
+
+        @Test
+        void slowDownloads() throws Exception {
+            run("virtual", port, fileService);
+        }
+    }
+
+    private static void run(String mode, int port, FileService fileService) throws Exception {
+        var meta = fileService.uploadStream("benchVt", new RandomBlockInputStream(FILE_SIZE, 7), FILE_SIZE,
+                "application/octet-stream", "slow-" + mode + ".bin", VisibilityType.PUBLIC, List.of());
+        byte[] request = ("GET /api/file/v1/" + meta.getId() + " HTTP/1.1\r\n"
+                + "Host: localhost\r\nX-User-Id: benchVt\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+
+        var threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        long started = System.nanoTime();
+        List<Future<Long>> clients = new ArrayList<>(CLIENTS);
+        long probeMillis;
+        try (ExecutorService virtual = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < CLIENTS; i++) {
+                clients.add(virtual.submit(() -> slowDownload(port, request)));
+            }
+            // let the slow clients occupy the server, then time one ordinary request
+            TimeUnit.SECONDS.sleep(2);
+            probeMillis = probe(port, meta.getId());
+
+            long bodies = 0;
+            for (Future<Long> client : clients) {
+                bodies += client.get() > FILE_SIZE ? 1 : 0;
+            }
+            assertEquals(CLIENTS, bodies);
+        }
+        long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        log.info("[{}] {} slow downloads of {} KiB in {} ms, peak threads {}, probe request {} ms",
+                mode, CLIENTS, FILE_SIZE / 1024, wallMillis, threads.getPeakThreadCount(), probeMillis);
+    }
+
+    /**
+     * @return bytes received including headers
+     */
+    private static long slowDownload(int port, byte[] request) throws Exception {
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(READ_CHUNK);
+            socket.connect(new InetSocketAddress("localhost", port));
+            OutputStream out = socket.getOutputStream();
+            out.write(request);
+            out.flush();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[READ_CHUNK];
+            long total = 0;
+            int n;
+            while ((n = in.readNBytes(buffer, 0, buffer.length)) > 0) {
+                total += n;
+                TimeUnit.MILLISECONDS.sleep(READ_PAUSE_MILLIS);
+                if (n < buffer.length) {
+                    break;
+                }
+            }
+            return total;
+        }
+    }
+
+    private static long probe(int port, String fileId) throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        long t0 = System.nanoTime();
+        HttpResponse<Void> response = client.send(
+                HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/file/v1/" + fileId))
+                        .header("X-User-Id", "benchVt")
+                        .header("Range", "bytes=0-0")
+                        .build(),
+                HttpResponse.BodyHandlers.discarding());
+        assertEquals(206, response.statusCode());
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+    }
+}
@@ -0,0 +1,59 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import com.jayway.jsonpath.JsonPath;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * @author vsyrov
+ */
+@AutoConfigureMockMvc
+public class StreamingUploadIT extends MongoTestBase {
+
+    @Autowired
+    MockMvc mvc;
+
+    @Test
+    void streamUpload_thenDownload_sameBytes() throws Exception {
+        byte[] body = "streamed body".getBytes();
+
+        var result = mvc.perform(post("/file/v1/stream")
+                        .header("X-User-Id", "userS")
+                        .param("filename", "s.txt")
+                        .param("visibility", "PUBLIC")
+                        .param("tags", "Stream")
+                        .contentType(MediaType.TEXT_PLAIN)
+                        .content(body))
+                .andExpect(status().isCreated())
+                .andExpect(jsonPath("$.fileName").value("s.txt"))
+                .andExpect(jsonPath("$.size").value(body.length))
+                .andExpect(jsonPath("$.tags[0]").value("stream"))
+                .andReturn();
+
+        String id = JsonPath.read(result.getResponse().getContentAsString(), "$.id");
+        mvc.perform(get("/file/v1/{id}", id).header("X-User-Id", "userS"))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(body));
+    }
+
+    @Test
+    void streamUpload_withoutFilename_badRequest() throws Exception {
+        mvc.perform(post("/file/v1/stream")
+                        .header("X-User-Id", "userS")
+                        .param("filename", " ")
+                        .param("visibility", "PUBLIC")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(new byte[]{1, 2, 3}))
+                .andExpect(status().isBadRequest());
+    }
+}
@@ -0,0 +1,72 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.web.servlet.MockMvc;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+import org.teletronics.vsyrov.filestorage.service.TagIndexService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * @author vsyrov
+ */
+@AutoConfigureMockMvc
+public class TagIndexIT extends MongoTestBase {
+
+    @Autowired
+    MockMvc mvc;
+    @Autowired
+    FileService fileService;
+    @Autowired
+    TagIndexService tagIndexService;
+
+    @Test
+    void counts_followUploadsAndDeletes() throws Exception {
+        FileMetadata mine = upload("userT", "t1.txt", VisibilityType.USER_PRIVATE, List.of("ti-a", "ti-b"));
+        upload("userT", "t2.txt", VisibilityType.USER_PRIVATE, List.of("ti-a"));
+        upload("userT2", "t3.txt", VisibilityType.PUBLIC, List.of("ti-a", "ti-c"));
+        upload("userT2", "t4.txt", VisibilityType.USER_PRIVATE, List.of("ti-d"));
+
+        Map<String, Long> seenByT = fileService.getAccessibleTags("userT");
+        assertEquals(3L, seenByT.get("ti-a"));
+        assertEquals(1L, seenByT.get("ti-b"));
+        assertEquals(1L, seenByT.get("ti-c"));
+        assertFalse(seenByT.containsKey("ti-d"));
+
+        Map<String, Long> seenByT2 = fileService.getAccessibleTags("userT2");
+        assertEquals(1L, seenByT2.get("ti-a"));
+        assertEquals(1L, seenByT2.get("ti-d"));
+        assertFalse(seenByT2.containsKey("ti-b"));
+
+        fileService.delete("userT", mine.getId());
+        Map<String, Long> afterDelete = fileService.getAccessibleTags("userT");
+        assertEquals(2L, afterDelete.get("ti-a"));
+        assertFalse(afterDelete.containsKey("ti-b"));
+
+        tagIndexService.rebuild();
+        assertEquals(afterDelete.get("ti-a"), fileService.getAccessibleTags("userT").get("ti-a"));
+
+        mvc.perform(get("/files/v1/tags").header("X-User-Id", "userT"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.counts['ti-a']").value(2))
+                .andExpect(jsonPath("$.tags").isArray());
+    }
+
+    private FileMetadata upload(String owner, String name, VisibilityType visibility, List<String> tags) {
+        return fileService.upload(owner, new MockMultipartFile("f", name, "text/plain", (owner + name).getBytes()),
+                visibility, null, tags);
+    }
+}
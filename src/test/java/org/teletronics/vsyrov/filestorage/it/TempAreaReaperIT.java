@@ -0,0 +1,58 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.storage.TempAreaReaper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author vsyrov
+ */
+@TestPropertySource(properties = {
+        "filestorage.tmp-reaper.max-age=PT6H",
+        "filestorage.tmp-reaper.parallelism=4"
+})
+public class TempAreaReaperIT extends MongoTestBase {
+
+    @Autowired
+    TempAreaReaper reaper;
+    @Autowired
+    MeterRegistry registry;
+
+    @Test
+    void reapStale_removesOnlyStaleParts() throws Exception {
+        Path tmp = Files.createDirectories(
+                Paths.get(System.getProperty("java.io.tmpdir"), "filestorage-test", "tmp"));
+        FileTime old = FileTime.from(Instant.now().minus(Duration.ofHours(12)));
+        for (int i = 0; i < 50; i++) {
+            Path stale = Files.write(tmp.resolve("up-" + i + ".part"), new byte[100]);
+            Files.setLastModifiedTime(stale, old);
+        }
+        Path active = Files.write(tmp.resolve("up-active.part"), new byte[100]);
+        Path foreign = Files.write(tmp.resolve("keep.txt"), new byte[100]);
+        Files.setLastModifiedTime(foreign, old);
+        double files = registry.counter("filestorage.tmp.reaped.files").count();
+        double bytes = registry.counter("filestorage.tmp.reaped.bytes").count();
+
+        reaper.reapStale();
+
+        assertTrue(Files.exists(active));
+        assertTrue(Files.exists(foreign));
+        assertFalse(Files.exists(tmp.resolve("up-0.part")));
+        assertEquals(50, registry.counter("filestorage.tmp.reaped.files").count() - files);
+        assertEquals(5000, registry.counter("filestorage.tmp.reaped.bytes").count() - bytes);
+    }
+}
@@ -0,0 +1,105 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.util.unit.DataSize;
+import org.teletronics.vsyrov.filestorage.common.exception.InsufficientStorageException;
+import org.teletronics.vsyrov.filestorage.common.exception.TooManyUploadsException;
+import org.teletronics.vsyrov.filestorage.dao.FileMetadataRepository;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.service.upload.UploadAdmission;
+import org.teletronics.vsyrov.filestorage.service.upload.UploadAdmission.Permit;
+import org.teletronics.vsyrov.filestorage.storage.FileSystemCasStorage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * @author vsyrov
+ */
+@AutoConfigureMockMvc
+@TestPropertySource(properties = "filestorage.upload.admission.min-free-space=1PB")
+public class UploadAdmissionIT extends MongoTestBase {
+
+    @Autowired
+    MockMvc mvc;
+    @Autowired
+    FileMetadataRepository repo;
+
+    @Test
+    void diskFull_rejectedBeforeBodyIsStored() throws Exception {
+        mvc.perform(post("/file/v1/stream")
+                        .header("X-User-Id", "userAdm")
+                        .param("filename", "big.bin")
+                        .param("visibility", "PUBLIC")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .content(new byte[1024]))
+                .andExpect(status().isInsufficientStorage());
+
+        assertEquals(0, repo.findByOwnerId("userAdm", Pageable.unpaged())
+                .getTotalElements());
+    }
+
+    @Test
+    void concurrencyLimits_perOwnerAndGlobal() throws IOException {
+        UploadAdmission admission = admission(2, 1, 1_000_000, 0);
+
+        Permit first = admission.admit("a", 10);
+        assertThrows(TooManyUploadsException.class, () -> admission.admit("a", 10));
+        Permit second = admission.admit("b", 10);
+        assertThrows(TooManyUploadsException.class, () -> admission.admit("c", 10));
+
+        first.close();
+        first.close();
+        try (Permit again = admission.admit("a", 10)) {
+            assertEquals(20, admission.reservedBytes());
+        }
+        second.close();
+        assertEquals(0, admission.reservedBytes());
+    }
+
+    @Test
+    void spaceReservation_countsRunningUploads() throws IOException {
+        // 1000 bytes usable, 100 must stay free
+        UploadAdmission admission = admission(10, 10, 1000, 100);
+
+        Permit big = admission.admit("a", 800);
+        assertThrows(InsufficientStorageException.class, () -> admission.admit("b", 200));
+        // unknown length reserves unknown-size-reservation (50)
+        try (Permit unknown = admission.admit("b", -1)) {
+            assertEquals(850, admission.reservedBytes());
+        }
+        big.close();
+        try (Permit fits = admission.admit("b", 200)) {
+            assertEquals(200, admission.reservedBytes());
+        }
+    }
+
+    private static UploadAdmission admission(int maxConcurrent, int perOwner, long usable, long minFree)
+            throws IOException {
+        Path base = Files.createTempDirectory("admission");
+        FileSystemCasStorage storage = new FileSystemCasStorage(base.toString(), Deflater.DEFAULT_COMPRESSION, null,
+                List.of(), new SimpleMeterRegistry()) {
+            @Override
+            public long usableSpace() {
+                return usable;
+            }
+        };
+        return new UploadAdmission(storage, new SimpleMeterRegistry(), true, maxConcurrent, perOwner,
+                DataSize.ofBytes(minFree), DataSize.ofBytes(50), DataSize.ofBytes(0));
+    }
+}
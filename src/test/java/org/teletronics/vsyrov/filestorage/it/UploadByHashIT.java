@@ -0,0 +1,169 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+
+import com.jayway.jsonpath.JsonPath;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.util.unit.DataSize;
+import org.teletronics.vsyrov.filestorage.common.exception.ForbiddenException;
+import org.teletronics.vsyrov.filestorage.common.model.PossessionChallenge;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.service.upload.PossessionVerifier;
+import org.teletronics.vsyrov.filestorage.storage.StoredContent;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * @author vsyrov
+ */
+@AutoConfigureMockMvc
+public class UploadByHashIT extends MongoTestBase {
+
+    @Autowired
+    MockMvc mvc;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void knownContent_createdWithoutBody() throws Exception {
+        byte[] body = "content already in the store".getBytes(StandardCharsets.UTF_8);
+        mvc.perform(post("/file/v1/stream")
+                        .header("X-User-Id", "userH1")
+                        .param("filename", "first.txt")
+                        .param("visibility", "PUBLIC")
+                        .contentType(MediaType.TEXT_PLAIN)
+                        .content(body))
+                .andExpect(status().isCreated());
+
+        // knowing the hash is not enough: the first call only returns a challenge
+        var challenged = mvc.perform(post("/file/v1/by-hash")
+                        .header("X-User-Id", "userH2")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(claim(sha256(body), body.length, "second.txt")))
+                .andExpect(status().isPreconditionRequired())
+                .andReturn();
+        String json = challenged.getResponse().getContentAsString();
+        List<Number> offsets = JsonPath.read(json, "$.ranges[*].offset");
+        List<Number> lengths = JsonPath.read(json, "$.ranges[*].length");
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        for (int i = 0; i < offsets.size(); i++) {
+            md.update(body, offsets.get(i).intValue(), lengths.get(i).intValue());
+        }
+
+        var result = mvc.perform(post("/file/v1/by-hash")
+                        .header("X-User-Id", "userH2")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(claim(sha256(body), body.length, "second.txt",
+                                JsonPath.read(json, "$.challenge"), HexFormat.of().formatHex(md.digest()))))
+                .andExpect(status().isCreated())
+                .andExpect(jsonPath("$.fileName").value("second.txt"))
+                .andExpect(jsonPath("$.size").value(body.length))
+                .andExpect(jsonPath("$.contentType").value("text/plain"))
+                .andReturn();
+
+        String id = JsonPath.read(result.getResponse().getContentAsString(), "$.id");
+        mvc.perform(get("/file/v1/{id}", id).header("X-User-Id", "userH2"))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(body));
+
+        // the owner of the original cannot claim the same content twice
+        mvc.perform(post("/file/v1/by-hash")
+                        .header("X-User-Id", "userH1")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(claim(sha256(body), body.length, "again.txt")))
+                .andExpect(status().isConflict());
+    }
+
+    @Test
+    void unknownContentOrWrongSize_notFound() throws Exception {
+        byte[] body = "only partly known".getBytes(StandardCharsets.UTF_8);
+        mvc.perform(post("/file/v1/by-hash")
+                        .header("X-User-Id", "userH3")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(claim(sha256(body), body.length, "missing.txt")))
+                .andExpect(status().isNotFound());
+
+        mvc.perform(post("/file/v1/stream")
+                        .header("X-User-Id", "userH3")
+                        .param("filename", "known.txt")
+                        .param("visibility", "PUBLIC")
+                        .contentType(MediaType.TEXT_PLAIN)
+                        .content(body))
+                .andExpect(status().isCreated());
+        mvc.perform(post("/file/v1/by-hash")
+                        .header("X-User-Id", "userH4")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(claim(sha256(body), body.length + 1, "wrong-size.txt")))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void malformedHash_badRequest() throws Exception {
+        mvc.perform(post("/file/v1/by-hash")
+                        .header("X-User-Id", "userH5")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(claim("../../../../etc/passwd", 1, "x.txt")))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void proofOfPossession_onlyAcceptsMatchingRanges() throws Exception {
+        byte[] body = new byte[64 * 1024];
+        new Random(3).nextBytes(body);
+        Path file = dir.resolve("content");
+        Files.write(file, body);
+        StoredContent stored = new StoredContent(file, body.length, body.length, null);
+        var verifier = new PossessionVerifier(true, 3, DataSize.ofKilobytes(1), Duration.ofMinutes(5), "secret");
+        String key = sha256(body);
+
+        PossessionChallenge challenge = verifier.issue("userP", key, body.length);
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        for (PossessionChallenge.ByteRange range : challenge.ranges()) {
+            md.update(body, (int) range.offset(), (int) range.length());
+        }
+        String proof = HexFormat.of().formatHex(md.digest());
+
+        assertDoesNotThrow(() -> verifier.verify("userP", key, stored, challenge.challenge(), proof));
+        assertThrows(ForbiddenException.class,
+                () -> verifier.verify("userP", key, stored, challenge.challenge(), sha256(body)));
+        assertThrows(ForbiddenException.class,
+                () -> verifier.verify("intruder", key, stored, challenge.challenge(), proof));
+        assertThrows(ForbiddenException.class,
+                () -> verifier.verify("userP", key, stored, challenge.challenge().replace('.', 'x'), proof));
+    }
+
+    private static String claim(String hash, long size, String filename) {
+        return """
+                {"hash": "%s", "size": %d, "filename": "%s", "visibility": "PUBLIC"}
+                """.formatted(hash, size, filename);
+    }
+
+    private static String claim(String hash, long size, String filename, String challenge, String proof) {
+        return """
+                {"hash": "%s", "size": %d, "filename": "%s", "visibility": "PUBLIC", "challenge": "%s", "proof": "%s"}
+                """.formatted(hash, size, filename, challenge, proof);
+    }
+
+    private static String sha256(byte[] body) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(body));
+    }
+}
@@ -0,0 +1,73 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.teletronics.vsyrov.filestorage.common.exception.BadRequestException;
+import org.teletronics.vsyrov.filestorage.common.exception.ForbiddenException;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+import org.teletronics.vsyrov.filestorage.service.UploadSessionService;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * @author vsyrov
+ */
+public class UploadSessionIT extends MongoTestBase {
+
+    @Autowired
+    UploadSessionService sessions;
+    @Autowired
+    FileService fileService;
+
+    @Test
+    void partsOutOfOrderWithRetry_completed() throws Exception {
+        var session = sessions.create("userU", "joined.txt", VisibilityType.USER_PRIVATE, List.of("Parts"), "text/plain");
+
+        sessions.uploadPart("userU", session.getId(), 3, stream("ccc"));
+        sessions.uploadPart("userU", session.getId(), 1, stream("xxx"));
+        sessions.uploadPart("userU", session.getId(), 2, stream("bbb"));
+        // retry of part 1 replaces the first attempt
+        sessions.uploadPart("userU", session.getId(), 1, stream("aaa"));
+
+        var meta = sessions.complete("userU", session.getId(), 3);
+
+        assertEquals("joined.txt", meta.getFileName());
+        assertEquals(9, meta.getSize());
+        assertEquals(List.of("parts"), meta.getTags());
+        try (InputStream in = Files.newInputStream(fileService.download(meta.getId(), "userU").path())) {
+            assertArrayEquals("aaabbbccc".getBytes(), in.readAllBytes());
+        }
+    }
+
+    @Test
+    void missingPart_badRequest_sessionKept() {
+        var session = sessions.create("userU", "gap.txt", VisibilityType.USER_PRIVATE, List.of(), null);
+        sessions.uploadPart("userU", session.getId(), 1, stream("a"));
+        sessions.uploadPart("userU", session.getId(), 3, stream("c"));
+
+        assertThrows(BadRequestException.class, () -> sessions.complete("userU", session.getId(), 3));
+
+        sessions.uploadPart("userU", session.getId(), 2, stream("b"));
+        assertEquals(3, sessions.complete("userU", session.getId(), 3).getSize());
+    }
+
+    @Test
+    void foreignSession_forbidden() {
+        var session = sessions.create("userU", "mine.txt", VisibilityType.USER_PRIVATE, List.of(), null);
+
+        assertThrows(ForbiddenException.class, () -> sessions.uploadPart("userV", session.getId(), 1, stream("a")));
+    }
+
+    private static InputStream stream(String s) {
+        return new ByteArrayInputStream(s.getBytes());
+    }
+}
@@ -0,0 +1,114 @@
+package org.teletronics.vsyrov.filestorage.it;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.TestPropertySource;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.it.config.MongoTestBase;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+import org.teletronics.vsyrov.filestorage.service.MetadataCache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Uploads, metadata lookups and downloads on virtual threads must not pin their carrier threads:
+ * every {@code jdk.VirtualThreadPinned} event whose stack passes through our code fails the test.
+ *
+ * @author vsyrov
+ */
+@TestPropertySource(properties = {
+        "spring.threads.virtual.enabled=true",
+        "filestorage.upload.pipeline.enabled=true"
+})
+public class VirtualThreadPinningIT extends MongoTestBase {
+    private static final int CLIENTS = 200;
+
+    @LocalServerPort
+    int port;
+    @Autowired
+    FileService fileService;
+    @Autowired
+    MetadataCache metadataCache;
+
+    @Test
+    void hotPaths_doNotPinCarriers() throws Exception {
+        Path jfr = Files.createTempFile("pinning", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+            recording.start();
+
+            List<FileMetadata> uploaded = new ArrayList<>();
+            try (ExecutorService virtual = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<FileMetadata>> uploads = new ArrayList<>();
+                for (int i = 0; i < CLIENTS; i++) {
+                    int n = i;
+                    uploads.add(virtual.submit(() -> fileService.uploadStream("userVt",
+                            new ByteArrayInputStream(("virtual " + n).repeat(1000).getBytes()), -1,
+                            "text/plain", "vt-" + n + ".txt", VisibilityType.PUBLIC, List.of("vt"))));
+                }
+                for (Future<FileMetadata> f : uploads) {
+                    uploaded.add(f.get());
+                }
+            }
+
+            // cold cache: lookups go to Mongo from request threads, which are virtual here
+            metadataCache.invalidateAll();
+            HttpClient client = HttpClient.newHttpClient();
+            List<CompletableFuture<HttpResponse<byte[]>>> downloads = new ArrayList<>();
+            for (FileMetadata meta : uploaded) {
+                downloads.add(client.sendAsync(
+                        HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/file/v1/" + meta.getId()))
+                                .header("X-User-Id", "userVt")
+                                .build(),
+                        HttpResponse.BodyHandlers.ofByteArray()));
+            }
+            for (int i = 0; i < downloads.size(); i++) {
+                HttpResponse<byte[]> response = downloads.get(i).get();
+                assertEquals(200, response.statusCode());
+                assertEquals(uploaded.get(i).getSize(), response.body().length);
+            }
+
+            recording.stop();
+            recording.dump(jfr);
+        }
+
+        List<String> pinned = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(jfr)) {
+            if (event.getStackTrace() == null) {
+                continue;
+            }
+            List<RecordedFrame> frames = event.getStackTrace().getFrames();
+            boolean ours = frames.stream()
+                    .anyMatch(f -> f.getMethod().getType().getName().startsWith("org.teletronics"));
+            if (ours) {
+                pinned.add(frames.stream().limit(12)
+                        .map(f -> f.getMethod().getType().getName() + "." + f.getMethod().getName())
+                        .toList().toString());
+            }
+        }
+        Files.deleteIfExists(jfr);
+        assertTrue(pinned.isEmpty(), "Pinned virtual threads: " + pinned);
+    }
+}
@@ -0,0 +1,42 @@
+package org.teletronics.vsyrov.filestorage.it.config;
+
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Endless-looking stream of incompressible bytes: a 1 MiB random block repeated up to {@code total} bytes.
+ *
+ * @author vsyrov
+ */
+public class RandomBlockInputStream extends InputStream {
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final long total;
+    private long read = 0L;
+
+    public RandomBlockInputStream(long total, long seed) {
+        this.total = total;
+        new Random(seed).nextBytes(block);
+    }
+
+    @Override
+    public int read() {
+        if (read >= total) {
+            return -1;
+        }
+        return block[(int) (read++ % BLOCK_SIZE)] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (read >= total) {
+            return -1;
+        }
+        int pos = (int) (read % BLOCK_SIZE);
+        int n = (int) Math.min(Math.min(len, total - read), BLOCK_SIZE - pos);
+        System.arraycopy(block, pos, b, off, n);
+        read += n;
+        return n;
+    }
+}
@@ -0,0 +1,55 @@
+package org.teletronics.vsyrov.filestorage.it.config;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.mock.web.MockMultipartFile;
+import org.teletronics.vsyrov.filestorage.common.model.FileMetadata;
+import org.teletronics.vsyrov.filestorage.common.model.VisibilityType;
+import org.teletronics.vsyrov.filestorage.service.FileService;
+import org.teletronics.vsyrov.filestorage.storage.FileSystemCasStorage;
+
+/**
+ * Small fixtures shared by the storage ITs: private uploads without tags, reproducible random content and
+ * a CAS outside the application context.
+ *
+ * @author vsyrov
+ */
+public final class TestFiles {
+
+    private TestFiles() {
+    }
+
+    public static FileMetadata upload(FileService fileService, String owner, String name, byte[] body) {
+        return upload(fileService, owner, name, "application/octet-stream", body);
+    }
+
+    public static FileMetadata upload(
+            FileService fileService,
+            String owner,
+            String name,
+            String contentType,
+            byte[] body
+    ) {
+        return fileService.upload(owner, new MockMultipartFile("file", name, contentType, body),
+                VisibilityType.USER_PRIVATE, null, null);
+    }
+
+    public static byte[] bytes(long seed, int size) {
+        byte[] body = new byte[size];
+        new Random(seed).nextBytes(body);
+        return body;
+    }
+
+    /**
+     * A plain CAS on {@code base} (no packs, default compression level, own meter registry).
+     */
+    public static FileSystemCasStorage casStorage(Path base, Path... extraVolumes) throws IOException {
+        return new FileSystemCasStorage(base.toString(), Deflater.DEFAULT_COMPRESSION, null,
+                Stream.of(extraVolumes).map(Path::toString).toList(), new SimpleMeterRegistry());
+    }
+}